@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package android.app;
+
+import java.util.List;
+
+/**
+ * Stub of the Android class for running the benchmarks on a plain JVM.
+ */
+public abstract class FragmentManager {
+
+    public abstract FragmentTransaction beginTransaction();
+
+    public abstract Fragment findFragmentByTag(String tag);
+
+    public abstract boolean executePendingTransactions();
+
+    public abstract List<Fragment> getFragments();
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package android.support.v4.app;
+
+/**
+ * Stub of the Android class for running the benchmarks on a plain JVM.
+ */
+public class Fragment {
+
+    public FragmentActivity getActivity() {
+        return null;
+    }
+
+    public FragmentManager getFragmentManager() {
+        return null;
+    }
+
+    public FragmentManager getChildFragmentManager() {
+        return null;
+    }
+
+    public Fragment getParentFragment() {
+        return null;
+    }
+
+    public String getTag() {
+        return null;
+    }
+
+    public int getId() {
+        return 0;
+    }
+
+    public boolean isAdded() {
+        return false;
+    }
+
+    public void setRetainInstance(boolean retain) {
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash.benchmarks;
+
+import android.app.Fragment;
+
+/**
+ * Added Fragment without retained fields.
+ *
+ * @author rgeldmacher
+ */
+public class BenchmarkFragment extends Fragment {
+
+    private final String tag;
+
+    public BenchmarkFragment(String tag) {
+        this.tag = tag;
+    }
+
+    @Override
+    public String getTag() {
+        return tag;
+    }
+
+    @Override
+    public boolean isAdded() {
+        return true;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash.benchmarks;
+
+import android.app.Fragment;
+import android.app.FragmentManager;
+import android.app.FragmentTransaction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FragmentManager that adds Fragments immediately and, like the framework, finds them
+ * by tag with a linear search over the added Fragments.
+ *
+ * @author rgeldmacher
+ */
+public class BenchmarkFragmentManager extends FragmentManager {
+
+    private final List<Fragment> fragments;
+    private final List<String> tags;
+
+    public BenchmarkFragmentManager() {
+        this(new ArrayList<Fragment>(), new ArrayList<String>());
+    }
+
+    /**
+     * Creates a manager that shares the Fragments of another manager, but is a different
+     * key for the caches of the generated code.
+     */
+    public BenchmarkFragmentManager(BenchmarkFragmentManager fm) {
+        this(fm.fragments, fm.tags);
+    }
+
+    private BenchmarkFragmentManager(List<Fragment> fragments, List<String> tags) {
+        this.fragments = fragments;
+        this.tags = tags;
+    }
+
+    @Override
+    public FragmentTransaction beginTransaction() {
+        return new FragmentTransaction() {
+            @Override
+            public FragmentTransaction add(Fragment fragment, String tag) {
+                fragments.add(fragment);
+                tags.add(tag);
+                return this;
+            }
+
+            @Override
+            public int commit() {
+                return 0;
+            }
+
+            @Override
+            public int commitAllowingStateLoss() {
+                return 0;
+            }
+        };
+    }
+
+    @Override
+    public Fragment findFragmentByTag(String tag) {
+        for (int i = 0; i < fragments.size(); i++) {
+            if (tag.equals(tags.get(i))) {
+                return fragments.get(i);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public boolean executePendingTransactions() {
+        return false;
+    }
+
+    @Override
+    public List<Fragment> getFragments() {
+        return fragments;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash.benchmarks;
+
+import com.rgeldmacher.leash.Leash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares calls through {@link Leash}, which looks up the generated binder of the
+ * host class, with direct calls to the generated Leash class.
+ *
+ * @author rgeldmacher
+ */
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+    private OneFieldActivity activity;
+
+    @Setup
+    public void setUp() {
+        activity = new OneFieldActivity();
+        OneFieldActivityLeash.retain(activity);
+    }
+
+    @Benchmark
+    public void leashRetain() {
+        Leash.retain(activity);
+    }
+
+    @Benchmark
+    public void leashRestore() {
+        Leash.restore(activity);
+    }
+
+    @Benchmark
+    public void leashClear() {
+        Leash.clear(activity);
+    }
+
+    @Benchmark
+    public void generatedRetain() {
+        OneFieldActivityLeash.retain(activity);
+    }
+
+    @Benchmark
+    public void generatedRestore() {
+        OneFieldActivityLeash.restore(activity);
+    }
+
+    @Benchmark
+    public void generatedClear() {
+        OneFieldActivityLeash.clear(activity);
+    }
+}
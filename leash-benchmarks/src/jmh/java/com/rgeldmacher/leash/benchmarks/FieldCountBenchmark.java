@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash.benchmarks;
+
+import com.rgeldmacher.leash.Leash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures retain and restore of hosts with a growing number of retained fields.
+ *
+ * @author rgeldmacher
+ */
+@State(Scope.Thread)
+public class FieldCountBenchmark {
+
+    @Param({"1", "10", "50"})
+    public int fieldCount;
+
+    private BenchmarkActivity activity;
+
+    @Setup
+    public void setUp() {
+        if (fieldCount == 1) {
+            activity = new OneFieldActivity();
+        } else if (fieldCount == 10) {
+            activity = new TenFieldsActivity();
+        } else if (fieldCount == 50) {
+            activity = new FiftyFieldsActivity();
+        } else {
+            throw new IllegalArgumentException("No activity with " + fieldCount + " fields");
+        }
+
+        Leash.retain(activity);
+    }
+
+    @Benchmark
+    public void retain() {
+        Leash.retain(activity);
+    }
+
+    @Benchmark
+    public void restore() {
+        Leash.restore(activity);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash.benchmarks;
+
+import com.rgeldmacher.leash.Retain;
+
+/**
+ * Activity with fifty retained fields.
+ *
+ * @author rgeldmacher
+ */
+public class FiftyFieldsActivity extends BenchmarkActivity {
+
+    @Retain
+    Object field0;
+
+    @Retain
+    String field1;
+
+    @Retain
+    int field2;
+
+    @Retain
+    long field3;
+
+    @Retain
+    boolean field4;
+
+    @Retain
+    Object field5;
+
+    @Retain
+    String field6;
+
+    @Retain
+    int field7;
+
+    @Retain
+    long field8;
+
+    @Retain
+    boolean field9;
+
+    @Retain
+    Object field10;
+
+    @Retain
+    String field11;
+
+    @Retain
+    int field12;
+
+    @Retain
+    long field13;
+
+    @Retain
+    boolean field14;
+
+    @Retain
+    Object field15;
+
+    @Retain
+    String field16;
+
+    @Retain
+    int field17;
+
+    @Retain
+    long field18;
+
+    @Retain
+    boolean field19;
+
+    @Retain
+    Object field20;
+
+    @Retain
+    String field21;
+
+    @Retain
+    int field22;
+
+    @Retain
+    long field23;
+
+    @Retain
+    boolean field24;
+
+    @Retain
+    Object field25;
+
+    @Retain
+    String field26;
+
+    @Retain
+    int field27;
+
+    @Retain
+    long field28;
+
+    @Retain
+    boolean field29;
+
+    @Retain
+    Object field30;
+
+    @Retain
+    String field31;
+
+    @Retain
+    int field32;
+
+    @Retain
+    long field33;
+
+    @Retain
+    boolean field34;
+
+    @Retain
+    Object field35;
+
+    @Retain
+    String field36;
+
+    @Retain
+    int field37;
+
+    @Retain
+    long field38;
+
+    @Retain
+    boolean field39;
+
+    @Retain
+    Object field40;
+
+    @Retain
+    String field41;
+
+    @Retain
+    int field42;
+
+    @Retain
+    long field43;
+
+    @Retain
+    boolean field44;
+
+    @Retain
+    Object field45;
+
+    @Retain
+    String field46;
+
+    @Retain
+    int field47;
+
+    @Retain
+    long field48;
+
+    @Retain
+    boolean field49;
+
+    public FiftyFieldsActivity() {
+        field0 = new Object();
+        field1 = "value";
+        field2 = 1;
+        field3 = 1L;
+        field4 = true;
+        field5 = new Object();
+        field6 = "value";
+        field7 = 1;
+        field8 = 1L;
+        field9 = true;
+        field10 = new Object();
+        field11 = "value";
+        field12 = 1;
+        field13 = 1L;
+        field14 = true;
+        field15 = new Object();
+        field16 = "value";
+        field17 = 1;
+        field18 = 1L;
+        field19 = true;
+        field20 = new Object();
+        field21 = "value";
+        field22 = 1;
+        field23 = 1L;
+        field24 = true;
+        field25 = new Object();
+        field26 = "value";
+        field27 = 1;
+        field28 = 1L;
+        field29 = true;
+        field30 = new Object();
+        field31 = "value";
+        field32 = 1;
+        field33 = 1L;
+        field34 = true;
+        field35 = new Object();
+        field36 = "value";
+        field37 = 1;
+        field38 = 1L;
+        field39 = true;
+        field40 = new Object();
+        field41 = "value";
+        field42 = 1;
+        field43 = 1L;
+        field44 = true;
+        field45 = new Object();
+        field46 = "value";
+        field47 = 1;
+        field48 = 1L;
+        field49 = true;
+    }
+}
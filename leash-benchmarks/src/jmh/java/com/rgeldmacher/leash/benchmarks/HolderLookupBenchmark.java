@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash.benchmarks;
+
+import com.rgeldmacher.leash.Leash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the lookup of the retained fragment in a FragmentManager with other Fragments,
+ * both from the cache of the generated code and, after a configuration change, from the
+ * FragmentManager itself.
+ *
+ * @author rgeldmacher
+ */
+@State(Scope.Thread)
+public class HolderLookupBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int fragmentCount;
+
+    private OneFieldActivity activity;
+    private BenchmarkFragmentManager fragmentManager;
+
+    @Setup
+    public void setUp() {
+        fragmentManager = new BenchmarkFragmentManager();
+        for (int i = 0; i < fragmentCount; i++) {
+            fragmentManager.beginTransaction().add(new BenchmarkFragment("fragment" + i), "fragment" + i).commit();
+        }
+
+        activity = new OneFieldActivity();
+        activity.setFragmentManager(fragmentManager);
+        // adds the retained fragment after all other Fragments
+        OneFieldActivityLeash.retain(activity);
+    }
+
+    @Benchmark
+    public void cachedLookup() {
+        OneFieldActivityLeash.restore(activity);
+    }
+
+    @Benchmark
+    public void lookupAfterConfigurationChange() {
+        // a new manager with the same Fragments misses the cache
+        activity.setFragmentManager(new BenchmarkFragmentManager(fragmentManager));
+        OneFieldActivityLeash.restore(activity);
+    }
+
+    @Benchmark
+    public void restoreAll() {
+        Leash.restoreAll(activity);
+    }
+}
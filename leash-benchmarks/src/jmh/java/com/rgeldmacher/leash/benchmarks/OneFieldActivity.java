@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash.benchmarks;
+
+import com.rgeldmacher.leash.Retain;
+
+/**
+ * Activity with one retained field.
+ *
+ * @author rgeldmacher
+ */
+public class OneFieldActivity extends BenchmarkActivity {
+
+    @Retain
+    Object field0;
+
+    public OneFieldActivity() {
+        field0 = new Object();
+    }
+}
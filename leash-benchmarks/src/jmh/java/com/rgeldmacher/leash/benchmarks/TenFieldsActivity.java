@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash.benchmarks;
+
+import com.rgeldmacher.leash.Retain;
+
+/**
+ * Activity with ten retained fields.
+ *
+ * @author rgeldmacher
+ */
+public class TenFieldsActivity extends BenchmarkActivity {
+
+    @Retain
+    Object field0;
+
+    @Retain
+    String field1;
+
+    @Retain
+    int field2;
+
+    @Retain
+    long field3;
+
+    @Retain
+    boolean field4;
+
+    @Retain
+    Object field5;
+
+    @Retain
+    String field6;
+
+    @Retain
+    int field7;
+
+    @Retain
+    long field8;
+
+    @Retain
+    boolean field9;
+
+    public TenFieldsActivity() {
+        field0 = new Object();
+        field1 = "value";
+        field2 = 1;
+        field3 = 1L;
+        field4 = true;
+        field5 = new Object();
+        field6 = "value";
+        field7 = 1;
+        field8 = 1L;
+        field9 = true;
+    }
+}
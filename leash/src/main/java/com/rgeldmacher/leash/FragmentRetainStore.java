@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.app.Activity;
+import android.support.v4.app.FragmentActivity;
+
+/**
+ * Keeps the holder of an Activity in a headless Fragment that is retained across
+ * configuration changes and is added once per Activity. Holders are cached by
+ * FragmentManager, so the FragmentManager is only searched after the Activity has been
+ * recreated and repeated calls never add a second holder while the first transaction is
+ * still pending.
+ * <p/>
+ * This is the default store.
+ *
+ * @author rgeldmacher
+ */
+public final class FragmentRetainStore implements RetainStore {
+
+    static final String FRAGMENT_TAG = "com.rgeldmacher.leash.LeashHolderFragment";
+
+    private final HolderCache<RetainedHolder> cache = new HolderCache<>();
+
+    @Override
+    public RetainedHolder get(Activity activity, Class<?> host) {
+        android.app.FragmentManager fm = activity.getFragmentManager();
+        if (fm != null) {
+            RetainedHolder cachedHolder = cache.get(fm);
+            if (cachedHolder != null) {
+                LeashMetrics.holderLookup(host, true);
+                return cachedHolder;
+            }
+
+            LeashMetrics.holderLookup(host, false);
+            android.app.Fragment holderFragment = fm.findFragmentByTag(FRAGMENT_TAG);
+            if (holderFragment == null) {
+                holderFragment = new LeashHolderFragment();
+                HolderFragments.add(fm, holderFragment, FRAGMENT_TAG);
+                LeashMetrics.holderCreated(host, true);
+            }
+
+            if (holderFragment instanceof LeashHolderFragment) {
+                RetainedHolder holder = ((LeashHolderFragment) holderFragment).holder;
+                cache.put(fm, holder);
+                return holder;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public RetainedHolder get(FragmentActivity activity, Class<?> host) {
+        android.support.v4.app.FragmentManager fm = activity.getSupportFragmentManager();
+        if (fm != null) {
+            RetainedHolder cachedHolder = cache.get(fm);
+            if (cachedHolder != null) {
+                LeashMetrics.holderLookup(host, true);
+                return cachedHolder;
+            }
+
+            LeashMetrics.holderLookup(host, false);
+            android.support.v4.app.Fragment holderFragment = fm.findFragmentByTag(FRAGMENT_TAG);
+            if (holderFragment == null) {
+                holderFragment = new SupportLeashHolderFragment();
+                HolderFragments.add(fm, holderFragment, FRAGMENT_TAG);
+                LeashMetrics.holderCreated(host, true);
+            }
+
+            if (holderFragment instanceof SupportLeashHolderFragment) {
+                RetainedHolder holder = ((SupportLeashHolderFragment) holderFragment).holder;
+                cache.put(fm, holder);
+                return holder;
+            }
+        }
+
+        return null;
+    }
+}
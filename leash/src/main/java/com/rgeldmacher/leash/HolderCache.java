@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Remembers the holders of each FragmentManager, so that repeated lookups don't have to
+ * search the FragmentManager again. A holder is cached as soon as it has been created,
+ * before the transaction that adds it has been executed, so that further lookups in the
+ * same frame can't create a second holder. Both the FragmentManager and the holder are
+ * only weakly referenced.
+ * <p/>
+ * This class is used by the generated code and is not thread safe, it must only
+ * be used on the main thread.
+ *
+ * @param <T> the type of the holder
+ * @author rgeldmacher
+ */
+public final class HolderCache<T> {
+
+    private static final String DEFAULT_KEY = "";
+
+    /**
+     * All caches, so that {@link Leash#snapshot()} can find the live holders.
+     */
+    private static final Set<HolderCache<?>> CACHES = Collections.newSetFromMap(new WeakHashMap<HolderCache<?>, Boolean>());
+
+    private final Map<Object, Map<String, WeakReference<T>>> holders = new WeakHashMap<>();
+
+    public HolderCache() {
+        CACHES.add(this);
+    }
+
+    /**
+     * @param fragmentManager the FragmentManager the holder belongs to
+     * @return the cached holder or null if no holder is cached for the FragmentManager
+     */
+    public T get(Object fragmentManager) {
+        return get(fragmentManager, DEFAULT_KEY);
+    }
+
+    /**
+     * @param fragmentManager the FragmentManager the holder belongs to
+     * @param key             the key of the holder, e.g. the {@linkplain HostKeys key} of a Fragment
+     * @return the cached holder or null if no holder is cached for the FragmentManager and key
+     */
+    public T get(Object fragmentManager, String key) {
+        Map<String, WeakReference<T>> holdersByKey = holders.get(fragmentManager);
+        if (holdersByKey != null) {
+            WeakReference<T> holder = holdersByKey.get(key);
+            if (holder != null) {
+                return holder.get();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param fragmentManager the FragmentManager the holder belongs to
+     * @param holder          the holder to cache
+     */
+    public void put(Object fragmentManager, T holder) {
+        put(fragmentManager, DEFAULT_KEY, holder);
+    }
+
+    /**
+     * @param fragmentManager the FragmentManager the holder belongs to
+     * @param key             the key of the holder, e.g. the {@linkplain HostKeys key} of a Fragment
+     * @param holder          the holder to cache
+     */
+    public void put(Object fragmentManager, String key, T holder) {
+        Map<String, WeakReference<T>> holdersByKey = holders.get(fragmentManager);
+        if (holdersByKey == null) {
+            holdersByKey = new HashMap<>();
+            holders.put(fragmentManager, holdersByKey);
+        }
+
+        holdersByKey.put(key, new WeakReference<>(holder));
+    }
+
+    /**
+     * @param fragmentManager the FragmentManager the holder belongs to
+     * @param key             the key of the holder, e.g. the {@linkplain HostKeys key} of a Fragment
+     */
+    public void remove(Object fragmentManager, String key) {
+        Map<String, WeakReference<T>> holdersByKey = holders.get(fragmentManager);
+        if (holdersByKey != null) {
+            holdersByKey.remove(key);
+        }
+    }
+
+    /**
+     * @param out receives the live holders of all caches, mapped to their keys
+     */
+    static void collectHolders(Map<Object, String> out) {
+        List<HolderCache<?>> caches = new ArrayList<>(CACHES);
+        for (HolderCache<?> cache : caches) {
+            for (Map<String, ? extends WeakReference<?>> holdersByKey : cache.holders.values()) {
+                for (Map.Entry<String, ? extends WeakReference<?>> entry : holdersByKey.entrySet()) {
+                    Object holder = entry.getValue().get();
+                    if (holder != null && !out.containsKey(holder)) {
+                        out.put(holder, entry.getKey());
+                    }
+                }
+            }
+        }
+    }
+}
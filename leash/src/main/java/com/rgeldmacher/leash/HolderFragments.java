@@ -0,0 +1,229 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Adds, finds and removes the holder Fragments of Fragment instances, see {@link HostKeys}.
+ * <p/>
+ * Holders are added with one transaction each, except while {@link Leash#retainAll} or
+ * {@link Leash#restoreAll} bind an Activity and its Fragments. Then all holders added to
+ * the FragmentManager of the Activity are collected in one transaction that is committed
+ * once all classes have been bound. The holders are cached, so they are found before that
+ * transaction has been executed.
+ * <p/>
+ * {@code clear()} is typically called from {@code onDestroy()}, after the state of the
+ * Activity has been saved or while its FragmentManager is torn down. So an existing holder
+ * is only looked up, never created, it is removed with a transaction that allows state loss
+ * and it is not removed at all from a destroyed FragmentManager, which drops its Fragments
+ * anyway. Framework FragmentManagers can only tell whether they have been destroyed from
+ * Android 4.2 (API 17), on older versions a holder is only emptied.
+ * <p/>
+ * This class is used by the generated code and is not thread safe, it must only
+ * be used on the main thread.
+ *
+ * @author rgeldmacher
+ */
+public final class HolderFragments {
+
+    private static Method isDestroyedMethod;
+    private static boolean isDestroyedMethodResolved;
+
+    private static android.app.FragmentManager batchFragmentManager;
+    private static android.app.FragmentTransaction batchTransaction;
+    private static android.support.v4.app.FragmentManager supportBatchFragmentManager;
+    private static android.support.v4.app.FragmentTransaction supportBatchTransaction;
+
+    private HolderFragments() {
+        // prevent instantiation
+    }
+
+    /**
+     * Collect the holders added to the FragmentManager in one transaction until
+     * {@link #commitBatch()} is called.
+     */
+    static void startBatch(android.app.FragmentManager fm) {
+        batchFragmentManager = fm;
+    }
+
+    /**
+     * Collect the holders added to the FragmentManager in one transaction until
+     * {@link #commitBatch()} is called.
+     */
+    static void startBatch(android.support.v4.app.FragmentManager fm) {
+        supportBatchFragmentManager = fm;
+    }
+
+    /**
+     * Commit the transaction of the current batch, if any holder has been added.
+     */
+    static void commitBatch() {
+        android.app.FragmentTransaction transaction = batchTransaction;
+        android.support.v4.app.FragmentTransaction supportTransaction = supportBatchTransaction;
+        batchFragmentManager = null;
+        batchTransaction = null;
+        supportBatchFragmentManager = null;
+        supportBatchTransaction = null;
+        if (transaction != null) {
+            transaction.commit();
+        }
+
+        if (supportTransaction != null) {
+            supportTransaction.commit();
+        }
+    }
+
+    /**
+     * @param fm     the FragmentManager of the Activity
+     * @param holder the new holder Fragment
+     * @param tag    the tag of the holder Fragment
+     */
+    public static void add(android.app.FragmentManager fm, android.app.Fragment holder, String tag) {
+        if (fm != batchFragmentManager) {
+            fm.beginTransaction().add(holder, tag).commit();
+            return;
+        }
+
+        if (batchTransaction == null) {
+            batchTransaction = fm.beginTransaction();
+        }
+
+        batchTransaction.add(holder, tag);
+    }
+
+    /**
+     * @param fm     the FragmentManager of the Activity
+     * @param holder the new holder Fragment
+     * @param tag    the tag of the holder Fragment
+     */
+    public static void add(android.support.v4.app.FragmentManager fm, android.support.v4.app.Fragment holder, String tag) {
+        if (fm != supportBatchFragmentManager) {
+            fm.beginTransaction().add(holder, tag).commit();
+            return;
+        }
+
+        if (supportBatchTransaction == null) {
+            supportBatchTransaction = fm.beginTransaction();
+        }
+
+        supportBatchTransaction.add(holder, tag);
+    }
+
+    /**
+     * @param fm         the FragmentManager of the Activity, may be null
+     * @param cache      the holders cached by FragmentManager
+     * @param key        the {@linkplain HostKeys key} of the Fragment instance
+     * @param tag        the tag of the holder Fragment
+     * @param holderType the type of the holder Fragment
+     * @return the existing holder or null if the Fragment instance has none
+     */
+    public static <T extends android.app.Fragment> T find(android.app.FragmentManager fm, HolderCache<T> cache, String key, String tag, Class<T> holderType) {
+        if (fm == null) {
+            return null;
+        }
+
+        T holder = cache.get(fm, key);
+        if (holder == null) {
+            android.app.Fragment fragment = fm.findFragmentByTag(tag);
+            if (holderType.isInstance(fragment)) {
+                holder = holderType.cast(fragment);
+            }
+        }
+
+        return holder;
+    }
+
+    /**
+     * @param fm         the FragmentManager of the Activity, may be null
+     * @param cache      the holders cached by FragmentManager
+     * @param key        the {@linkplain HostKeys key} of the Fragment instance
+     * @param tag        the tag of the holder Fragment
+     * @param holderType the type of the holder Fragment
+     * @return the existing holder or null if the Fragment instance has none
+     */
+    public static <T extends android.support.v4.app.Fragment> T find(android.support.v4.app.FragmentManager fm, HolderCache<T> cache, String key, String tag, Class<T> holderType) {
+        if (fm == null) {
+            return null;
+        }
+
+        T holder = cache.get(fm, key);
+        if (holder == null) {
+            android.support.v4.app.Fragment fragment = fm.findFragmentByTag(tag);
+            if (holderType.isInstance(fragment)) {
+                holder = holderType.cast(fragment);
+            }
+        }
+
+        return holder;
+    }
+
+    /**
+     * @param fm     the FragmentManager of the Activity
+     * @param cache  the holders cached by FragmentManager
+     * @param key    the {@linkplain HostKeys key} of the Fragment instance
+     * @param holder the holder Fragment to remove
+     */
+    public static <T extends android.app.Fragment> void remove(android.app.FragmentManager fm, HolderCache<T> cache, String key, T holder) {
+        cache.remove(fm, key);
+        Boolean destroyed = isDestroyed(fm);
+        if (destroyed != null && !destroyed) {
+            fm.beginTransaction().remove(holder).commitAllowingStateLoss();
+        }
+    }
+
+    /**
+     * @param fm     the FragmentManager of the Activity
+     * @param cache  the holders cached by FragmentManager
+     * @param key    the {@linkplain HostKeys key} of the Fragment instance
+     * @param holder the holder Fragment to remove
+     */
+    public static <T extends android.support.v4.app.Fragment> void remove(android.support.v4.app.FragmentManager fm, HolderCache<T> cache, String key, T holder) {
+        cache.remove(fm, key);
+        if (!fm.isDestroyed()) {
+            fm.beginTransaction().remove(holder).commitAllowingStateLoss();
+        }
+    }
+
+    /**
+     * @return whether the FragmentManager has been destroyed or null if that is not
+     * known before API 17
+     */
+    private static Boolean isDestroyed(android.app.FragmentManager fm) {
+        if (!isDestroyedMethodResolved) {
+            try {
+                isDestroyedMethod = android.app.FragmentManager.class.getMethod("isDestroyed");
+            } catch (NoSuchMethodException e) {
+                // not available before API 17
+            }
+
+            isDestroyedMethodResolved = true;
+        }
+
+        if (isDestroyedMethod != null) {
+            try {
+                return (Boolean) isDestroyedMethod.invoke(fm);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("Failed to access the state of " + fm, e);
+            } catch (InvocationTargetException e) {
+                throw new RuntimeException("Failed to access the state of " + fm, e);
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The state of a live holder at the time of {@link Leash#snapshot()}: the class whose
+ * fields it retains, the retained fields and their approximate sizes, and the time since
+ * the class was last retained and restored.
+ * <p/>
+ * The sizes are estimates of the heap used by the retained objects, meant to find the
+ * holders that keep the most memory alive rather than to account for every byte.
+ *
+ * @author rgeldmacher
+ */
+public final class HolderSnapshot {
+
+    private final String hostClass;
+    private final String hostKey;
+    private final List<FieldSnapshot> fields;
+    private final long shallowSize;
+    private final long retainedSize;
+    private final boolean truncated;
+    private final long millisSinceRetain;
+    private final long millisSinceRestore;
+
+    HolderSnapshot(String hostClass, String hostKey, List<FieldSnapshot> fields, long shallowSize,
+                   long retainedSize, boolean truncated, long millisSinceRetain, long millisSinceRestore) {
+        this.hostClass = hostClass;
+        this.hostKey = hostKey;
+        this.fields = Collections.unmodifiableList(fields);
+        this.shallowSize = shallowSize;
+        this.retainedSize = retainedSize;
+        this.truncated = truncated;
+        this.millisSinceRetain = millisSinceRetain;
+        this.millisSinceRestore = millisSinceRestore;
+    }
+
+    /**
+     * @return the name of the Activity or Fragment class whose fields are retained
+     */
+    public String getHostClass() {
+        return hostClass;
+    }
+
+    /**
+     * @return the {@linkplain HostKeys key} of the Fragment instance, or null for an Activity
+     * and for Fragments that are not retained per instance
+     */
+    public String getHostKey() {
+        return hostKey;
+    }
+
+    /**
+     * @return the retained fields
+     */
+    public List<FieldSnapshot> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return the approximate size of the holder itself in bytes
+     */
+    public long getShallowSize() {
+        return shallowSize;
+    }
+
+    /**
+     * @return the approximate size in bytes of the holder and all objects reachable from its
+     * retained fields, objects reachable from several fields are counted once
+     */
+    public long getRetainedSize() {
+        return retainedSize;
+    }
+
+    /**
+     * @return true if the walk of the retained objects has been stopped early, the retained
+     * sizes are then lower bounds
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return the milliseconds since the host class was last retained through {@link Leash},
+     * or -1 if it has not been retained or the times are not
+     * {@linkplain Leash#setSnapshotTimesEnabled(boolean) recorded}
+     */
+    public long getMillisSinceRetain() {
+        return millisSinceRetain;
+    }
+
+    /**
+     * @return the milliseconds since the host class was last restored through {@link Leash},
+     * or -1 if it has not been restored or the times are not
+     * {@linkplain Leash#setSnapshotTimesEnabled(boolean) recorded}
+     */
+    public long getMillisSinceRestore() {
+        return millisSinceRestore;
+    }
+
+    @Override
+    public String toString() {
+        return hostClass + (hostKey != null ? " [" + hostKey + "]" : "") + ": " + fields.size()
+                + " fields, shallow " + shallowSize + " B, retained " + (truncated ? ">= " : "")
+                + retainedSize + " B, retained " + formatMillis(millisSinceRetain)
+                + ", restored " + formatMillis(millisSinceRestore);
+    }
+
+    private static String formatMillis(long millis) {
+        return millis >= 0 ? millis + " ms ago" : "never";
+    }
+
+    /**
+     * A retained field of a {@link HolderSnapshot}.
+     */
+    public static final class FieldSnapshot {
+
+        private final String name;
+        private final String type;
+        private final String valueType;
+        private final long shallowSize;
+        private final long retainedSize;
+
+        FieldSnapshot(String name, String type, String valueType, long shallowSize, long retainedSize) {
+            this.name = name;
+            this.type = type;
+            this.valueType = valueType;
+            this.shallowSize = shallowSize;
+            this.retainedSize = retainedSize;
+        }
+
+        /**
+         * @return the name of the field in the holder
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the declared type of the field in the holder
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return the class of the retained object, or null if the field is null, has
+         * been reclaimed or is spilled
+         */
+        public String getValueType() {
+            return valueType;
+        }
+
+        /**
+         * @return the approximate size of the retained object itself in bytes
+         */
+        public long getShallowSize() {
+            return shallowSize;
+        }
+
+        /**
+         * @return the approximate size in bytes of the retained object and all objects
+         * reachable from it
+         */
+        public long getRetainedSize() {
+            return retainedSize;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + type + (valueType != null ? " = " + valueType : "")
+                    + ", shallow " + shallowSize + " B, retained " + retainedSize + " B";
+        }
+    }
+}
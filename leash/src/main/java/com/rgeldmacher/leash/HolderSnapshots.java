@@ -0,0 +1,249 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import java.lang.ref.Reference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Takes the snapshots of {@link Leash#snapshot()} and records when each class has last been
+ * retained and restored.
+ * <p/>
+ * The live holders are the retained fragments and shared holders of all {@link HolderCache}s
+ * and the holders of the {@link RetainedHolders#NON_CONFIGURATION_INSTANCE} and
+ * {@link RetainedHolders#MEMORY} stores.
+ *
+ * @author rgeldmacher
+ */
+final class HolderSnapshots {
+
+    private static final String RETAINED_FLAG = "hasBeenRetained";
+
+    private static final int RETAIN = 0;
+    private static final int RESTORE = 1;
+
+    private static final Comparator<HolderSnapshot> BY_RETAINED_SIZE = new Comparator<HolderSnapshot>() {
+        @Override
+        public int compare(HolderSnapshot first, HolderSnapshot second) {
+            return Long.compare(second.getRetainedSize(), first.getRetainedSize());
+        }
+    };
+
+    /**
+     * Whether {@link Leash} records the times, off by default to keep retain and restore
+     * free of the bookkeeping.
+     */
+    static boolean recordTimes;
+
+    /**
+     * The {@link System#nanoTime()} of the last retain and restore by host class.
+     */
+    private static final Map<Class<?>, long[]> TIMES = new WeakHashMap<>();
+
+    private HolderSnapshots() {
+        // prevent instantiation
+    }
+
+    static void retained(Class<?> host) {
+        getTimes(host)[RETAIN] = System.nanoTime();
+    }
+
+    static void restored(Class<?> host) {
+        getTimes(host)[RESTORE] = System.nanoTime();
+    }
+
+    /**
+     * @return the snapshots of all live holders, the largest retained size first
+     */
+    static List<HolderSnapshot> snapshot() {
+        Map<Object, String> holders = new IdentityHashMap<>();
+        HolderCache.collectHolders(holders);
+        addHolders(holders, RetainedHolders.NON_CONFIGURATION_INSTANCE.getHolders());
+        addHolders(holders, RetainedHolders.MEMORY.getHolders());
+
+        long now = System.nanoTime();
+        List<HolderSnapshot> snapshots = new ArrayList<>();
+        for (Map.Entry<Object, String> entry : holders.entrySet()) {
+            Object holder = entry.getKey();
+            if (holder instanceof RetainedHolder) {
+                for (Map.Entry<String, Map<String, Object>> slotsOfClass : ((RetainedHolder) holder).getSlots().entrySet()) {
+                    for (Map.Entry<String, Object> slot : slotsOfClass.getValue().entrySet()) {
+                        snapshots.add(snapshot(slotsOfClass.getKey(), slot.getKey(), slot.getValue(), now));
+                    }
+                }
+            } else {
+                snapshots.add(snapshot(getHostClass(holder.getClass()), entry.getValue(), holder, now));
+            }
+        }
+
+        Collections.sort(snapshots, BY_RETAINED_SIZE);
+        return snapshots;
+    }
+
+    private static void addHolders(Map<Object, String> holders, Iterable<RetainedHolder> store) {
+        for (RetainedHolder holder : store) {
+            if (!holders.containsKey(holder)) {
+                holders.put(holder, null);
+            }
+        }
+    }
+
+    private static HolderSnapshot snapshot(String hostClass, String hostKey, Object data, long now) {
+        ObjectSizes holderSizes = new ObjectSizes();
+        long shallowSize = holderSizes.shallowSize(data);
+        long retainedSize = shallowSize;
+        List<HolderSnapshot.FieldSnapshot> fields = new ArrayList<>();
+        if (data instanceof RetainedSlots) {
+            RetainedSlots slots = (RetainedSlots) data;
+            for (int i = 0; i < slots.refs.length; i++) {
+                if (slots.refs[i] != null) {
+                    fields.add(snapshot("refs[" + i + "]", "java.lang.Object", slots.refs[i]));
+                    retainedSize += holderSizes.retainedSize(getReferent(slots.refs[i]));
+                }
+            }
+
+            if (slots.prims.length > 0) {
+                fields.add(snapshot("prims", "long[]", slots.prims));
+                retainedSize += holderSizes.retainedSize(slots.prims);
+            }
+        } else if (data != null) {
+            for (Field field : data.getClass().getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || field.isSynthetic() || RETAINED_FLAG.equals(field.getName())) {
+                    continue;
+                }
+
+                Object value;
+                try {
+                    field.setAccessible(true);
+                    value = field.get(data);
+                } catch (IllegalAccessException e) {
+                    continue;
+                }
+
+                String type = getTypeName(field.getGenericType());
+                if (field.getType().isPrimitive()) {
+                    int size = RetainBudget.getElementSize(field.getType());
+                    fields.add(new HolderSnapshot.FieldSnapshot(field.getName(), type, type, size, size));
+                } else {
+                    fields.add(snapshot(field.getName(), type, value));
+                    retainedSize += holderSizes.retainedSize(getReferent(value));
+                }
+            }
+        }
+
+        long[] times = getTimes(hostClass);
+        return new HolderSnapshot(hostClass, hostKey != null && !hostKey.isEmpty() ? hostKey : null, fields,
+                shallowSize, retainedSize, holderSizes.isTruncated(), getMillisSince(now, times[RETAIN]),
+                getMillisSince(now, times[RESTORE]));
+    }
+
+    private static HolderSnapshot.FieldSnapshot snapshot(String name, String type, Object value) {
+        Object referent = getReferent(value);
+        ObjectSizes sizes = new ObjectSizes();
+        return new HolderSnapshot.FieldSnapshot(name, type, referent != null ? getTypeName(referent.getClass()) : null,
+                sizes.shallowSize(referent), sizes.retainedSize(referent));
+    }
+
+    /**
+     * @return the object retained by a field, without reading back a spilled object
+     */
+    private static Object getReferent(Object value) {
+        if (value instanceof SpillReference) {
+            return ((SpillReference<?>) value).peek();
+        } else if (value instanceof Reference) {
+            return ((Reference<?>) value).get();
+        }
+
+        return value;
+    }
+
+    /**
+     * @param dataClass the class of a retained fragment, which is nested in the Leash class
+     * @return the name of the class whose fields are retained
+     */
+    private static String getHostClass(Class<?> dataClass) {
+        Class<?> leashClass = dataClass.getEnclosingClass();
+        if (leashClass != null && leashClass.getName().endsWith(Leash.SUFFIX)) {
+            String name = leashClass.getName();
+            return name.substring(0, name.length() - Leash.SUFFIX.length());
+        }
+
+        return dataClass.getName();
+    }
+
+    private static String getTypeName(Type type) {
+        if (type instanceof Class) {
+            Class<?> c = (Class<?>) type;
+            return c.isArray() ? getTypeName(c.getComponentType()) + "[]" : c.getName();
+        }
+
+        return type.toString();
+    }
+
+    private static long[] getTimes(Class<?> host) {
+        long[] times = TIMES.get(host);
+        if (times == null) {
+            times = new long[]{-1L, -1L};
+            TIMES.put(host, times);
+        }
+
+        return times;
+    }
+
+    /**
+     * @return the latest times of the host class and its subclasses, annotated fields of a
+     * superclass are retained and restored together with those of the subclass
+     */
+    private static long[] getTimes(String hostClass) {
+        long[] latest = new long[]{-1L, -1L};
+        for (Map.Entry<Class<?>, long[]> entry : TIMES.entrySet()) {
+            for (Class<?> c = entry.getKey(); c != null; c = c.getSuperclass()) {
+                if (c.getName().equals(hostClass)) {
+                    long[] times = entry.getValue();
+                    latest[RETAIN] = latest(latest[RETAIN], times[RETAIN]);
+                    latest[RESTORE] = latest(latest[RESTORE], times[RESTORE]);
+                    break;
+                }
+            }
+        }
+
+        return latest;
+    }
+
+    private static long latest(long first, long second) {
+        if (first == -1L) {
+            return second;
+        } else if (second == -1L) {
+            return first;
+        }
+
+        return first - second > 0 ? first : second;
+    }
+
+    private static long getMillisSince(long now, long time) {
+        return time != -1L ? (now - time) / 1000000L : -1L;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.os.Bundle;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Creates keys that identify a Fragment instance across configuration changes, so that
+ * several instances of the same Fragment class, e.g. in a ViewPager, don't share their
+ * retained data. A key is made up of the keys of the parent Fragments and
+ * <ul>
+ * <li>the tag of the Fragment,</li>
+ * <li>or, if it has no tag but arguments, an id that is stored in its arguments, so it stays
+ * the same when Fragments before it are removed and after the process has been restarted,</li>
+ * <li>or else its container id and its index in the FragmentManager.</li>
+ * </ul>
+ * Keys are cached per Fragment instance once the Fragment has been added. If two added
+ * Fragments of the same FragmentManager would still get the same key, the later one gets a
+ * key of its own that is not kept across configuration changes, so that the Fragments never
+ * share their retained data.
+ * <p/>
+ * This class is used by the generated code and is not thread safe, it must only
+ * be used on the main thread.
+ *
+ * @author rgeldmacher
+ */
+public final class HostKeys {
+
+    static final String ARGUMENT_KEY = "com.rgeldmacher.leash.HostKey";
+
+    private static final Map<Object, String> KEYS = new WeakHashMap<>();
+
+    /**
+     * The added Fragments by key of each FragmentManager, to detect colliding keys.
+     */
+    private static final Map<Object, Map<String, WeakReference<Object>>> OWNERS = new WeakHashMap<>();
+
+    private static int nextId;
+
+    private HostKeys() {
+        // prevent instantiation
+    }
+
+    /**
+     * Note: The index of a framework Fragment without a tag and arguments is only known from
+     * Android 8.0 (API 26).
+     *
+     * @param fragment the Fragment containing the annotated fields
+     * @return the key of the Fragment instance
+     */
+    public static String of(android.app.Fragment fragment) {
+        String key = KEYS.get(fragment);
+        if (key == null) {
+            StringBuilder builder = new StringBuilder();
+            android.app.Fragment parent = fragment.getParentFragment();
+            if (parent != null) {
+                builder.append(of(parent));
+            }
+
+            builder.append('/');
+            android.app.FragmentManager fm = fragment.getFragmentManager();
+            if (fragment.getTag() != null) {
+                builder.append(fragment.getTag());
+            } else if (fragment.getArguments() != null) {
+                builder.append('~').append(getArgumentId(fragment.getArguments()));
+            } else {
+                builder.append('#').append(Integer.toHexString(fragment.getId()));
+                if (fm != null) {
+                    builder.append(':').append(Leash.getFragments(fm).indexOf(fragment));
+                }
+            }
+
+            key = builder.toString();
+            if (fragment.isAdded()) {
+                key = put(fragment, fm, key);
+            }
+        }
+
+        return key;
+    }
+
+    /**
+     * @param fragment the Fragment containing the annotated fields
+     * @return the key of the Fragment instance
+     */
+    public static String of(android.support.v4.app.Fragment fragment) {
+        String key = KEYS.get(fragment);
+        if (key == null) {
+            StringBuilder builder = new StringBuilder();
+            android.support.v4.app.Fragment parent = fragment.getParentFragment();
+            if (parent != null) {
+                builder.append(of(parent));
+            }
+
+            builder.append('/');
+            android.support.v4.app.FragmentManager fm = fragment.getFragmentManager();
+            if (fragment.getTag() != null) {
+                builder.append(fragment.getTag());
+            } else if (fragment.getArguments() != null) {
+                builder.append('~').append(getArgumentId(fragment.getArguments()));
+            } else {
+                builder.append('#').append(Integer.toHexString(fragment.getId()));
+                List<android.support.v4.app.Fragment> fragments = fm != null ? fm.getFragments() : null;
+                if (fragments != null) {
+                    // the index of a Fragment is restored with the Fragment after a configuration change
+                    builder.append(':').append(fragments.indexOf(fragment));
+                }
+            }
+
+            key = builder.toString();
+            if (fragment.isAdded()) {
+                key = put(fragment, fm, key);
+            }
+        }
+
+        return key;
+    }
+
+    /**
+     * The arguments are saved and restored with the Fragment, the id therefore identifies
+     * the instance across configuration changes and process restarts.
+     */
+    private static String getArgumentId(Bundle arguments) {
+        String id = arguments.getString(ARGUMENT_KEY);
+        if (id == null) {
+            // unique across process restarts, restored ids were created by an earlier process
+            id = Long.toString(System.currentTimeMillis(), 36) + '.' + nextId++;
+            arguments.putString(ARGUMENT_KEY, id);
+        }
+
+        return id;
+    }
+
+    /**
+     * @return the key, or a key of its own if another added Fragment already has the key
+     */
+    private static String put(Object fragment, Object fragmentManager, String key) {
+        if (fragmentManager != null) {
+            Map<String, WeakReference<Object>> owners = OWNERS.get(fragmentManager);
+            if (owners == null) {
+                owners = new HashMap<>();
+                OWNERS.put(fragmentManager, owners);
+            }
+
+            WeakReference<Object> owner = owners.get(key);
+            Object other = owner != null ? owner.get() : null;
+            if (other != null && other != fragment && isAdded(other)) {
+                // don't share the retained data, even though it is lost on configuration changes
+                key = key + '@' + Integer.toHexString(System.identityHashCode(fragment));
+            }
+
+            owners.put(key, new WeakReference<>(fragment));
+        }
+
+        KEYS.put(fragment, key);
+        return key;
+    }
+
+    private static boolean isAdded(Object fragment) {
+        if (fragment instanceof android.app.Fragment) {
+            return ((android.app.Fragment) fragment).isAdded();
+        }
+
+        return ((android.support.v4.app.Fragment) fragment).isAdded();
+    }
+}
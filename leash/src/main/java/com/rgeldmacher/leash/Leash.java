@@ -20,8 +20,14 @@ import android.app.Fragment;
 import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
 
+import java.io.PrintWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Keep hold of your objects during configuration changes. Use this class to
@@ -52,7 +58,9 @@ import java.lang.reflect.Method;
  *         Leash.retain(this);
  *     }
  * </code></pre>
- *
+ * <p/>
+ * Fields annotated in a superclass are retained and restored as well, so a subclass
+ * of an annotated base Activity or Fragment does not need any annotated fields itself.
  *
  * @author rgeldmacher
  */
@@ -63,10 +71,188 @@ public final class Leash {
      */
     static final String SUFFIX = "Leash";
 
+    /**
+     * Suffix of the generated {@link LeashBinder} classes nested in the Leash classes.
+     */
+    static final String BINDER_SUFFIX = "$Binder";
+
+    private static final int RESTORE = 0;
+    private static final int RETAIN = 1;
+    private static final int CLEAR = 2;
+
+    /**
+     * Binders by host class. Classes without a generated Leash class are
+     * cached as well, so the lookup is done only once per class. Cached binders
+     * are read without locking, binders are created while holding the lock on
+     * {@link #INDEXES}.
+     */
+    private static final Map<Class<?>, LeashBinder<Object>> BINDERS = new ConcurrentHashMap<>();
+
+    private static final List<LeashIndex> INDEXES = new ArrayList<>();
+
+    private static Method getFragmentsMethod;
+    private static boolean getFragmentsMethodResolved;
+
     private Leash() {
         // prevent instantiation
     }
 
+    /**
+     * Install an index generated by the annotation processor. The binders of classes
+     * contained in the index will be created without the use of reflection.
+     * <p/>
+     * Call this method before the first call to retain or restore, e.g. in
+     * {@linkplain android.app.Application#onCreate()}.
+     *
+     * @param index the generated index
+     * @see LeashIndex
+     */
+    public static void addIndex(LeashIndex index) {
+        if (index == null) {
+            throw new IllegalArgumentException("index must not be null");
+        }
+
+        synchronized (INDEXES) {
+            INDEXES.add(index);
+            BINDERS.clear();
+        }
+    }
+
+    /**
+     * Remove an index installed with {@link #addIndex(LeashIndex)}, e.g. to reset Leash
+     * between tests.
+     *
+     * @param index the index to remove
+     */
+    public static void removeIndex(LeashIndex index) {
+        synchronized (INDEXES) {
+            INDEXES.remove(index);
+            BINDERS.clear();
+        }
+    }
+
+    /**
+     * Select the store for the retained objects of classes generated with the annotation
+     * processor option {@code leash.holder=shared}. Classes generated with the option
+     * {@code leash.store} always use the store chosen at compile time.
+     * <p/>
+     * Call this method before the first call to retain or restore, e.g. in
+     * {@linkplain android.app.Application#onCreate()}.
+     *
+     * @param store the store, e.g. {@link RetainedHolders#NON_CONFIGURATION_INSTANCE}
+     * @see RetainStore
+     */
+    public static void setRetainStore(RetainStore store) {
+        if (store == null) {
+            throw new IllegalArgumentException("store must not be null");
+        }
+
+        RetainedHolders.setStore(store);
+    }
+
+    /**
+     * Limit the memory held by the objects retained by classes generated with the annotation
+     * processor option {@code leash.budget=true}. When the limit is exceeded, the objects
+     * with the lowest {@linkplain Retain#priority() priority} are evicted first and among
+     * them the least recently restored ones. Evicted objects are not restored, so the
+     * annotated fields keep their values and the Activity or Fragment has to recreate them.
+     *
+     * @param maxBytes the budget in bytes, zero or less to remove the budget
+     * @param sizer    estimates the size of retained objects, or null to use the built-in
+     *                 estimates for arrays, Strings, Bitmaps and Collections
+     */
+    public static void setRetainBudget(long maxBytes, Sizer sizer) {
+        RetainBudget.set(maxBytes, sizer);
+    }
+
+    /**
+     * Limit the size of the objects that the persisted fields of one class save to the
+     * saved instance state, see {@link Retain#persist()}. Objects that exceed the limit
+     * are not persisted. Defaults to 64 KB.
+     *
+     * @param bytes the limit in bytes
+     */
+    public static void setPersistLimit(int bytes) {
+        PersistGuard.setLimit(bytes);
+    }
+
+    /**
+     * Install a listener for the durations of retain, restore and clear and for the lookups
+     * and creations of holders. The durations are only measured for calls through this class.
+     * Without a listener no metrics are recorded.
+     *
+     * @param listener the listener, or null to remove the installed listener
+     */
+    public static void setMetricsListener(MetricsListener listener) {
+        LeashMetrics.listener = listener;
+    }
+
+    /**
+     * Record when each Activity and Fragment class is retained and restored, so that
+     * {@linkplain #snapshot() snapshots} report the time since the last retain and restore.
+     * Off by default, enable it in debug builds only.
+     *
+     * @param enabled true to record the times
+     */
+    public static void setSnapshotTimesEnabled(boolean enabled) {
+        HolderSnapshots.recordTimes = enabled;
+    }
+
+    /**
+     * Take a snapshot of all live holders for debugging, e.g. to find the Activities and
+     * Fragments that retain the most memory. Holders of AndroidX ViewModels and of custom
+     * {@link RetainStore}s are not included.
+     * <p/>
+     * The retained objects are walked via reflection, so this method is slow and should not
+     * be called in production. Call it on the main thread.
+     *
+     * @return the snapshots, the holder with the largest retained size first
+     */
+    public static List<HolderSnapshot> snapshot() {
+        return HolderSnapshots.snapshot();
+    }
+
+    /**
+     * Print a {@linkplain #snapshot() snapshot} of all live holders, e.g. from
+     * {@code Activity.dump()} or a debug menu.
+     *
+     * @param writer the writer to print to
+     */
+    public static void dump(PrintWriter writer) {
+        List<HolderSnapshot> snapshots = snapshot();
+        writer.println("Leash: " + snapshots.size() + " holders");
+        for (HolderSnapshot snapshot : snapshots) {
+            writer.println("  " + snapshot);
+            for (HolderSnapshot.FieldSnapshot field : snapshot.getFields()) {
+                writer.println("    " + field);
+            }
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * Return the result from {@code onRetainNonConfigurationInstance()} of an Activity
+     * that uses the {@link RetainedHolders#NON_CONFIGURATION_INSTANCE} store.
+     *
+     * @param activity the Activity that is about to be recreated
+     * @return the non-configuration instance
+     */
+    public static Object onRetainNonConfigurationInstance(Activity activity) {
+        return RetainedHolders.NON_CONFIGURATION_INSTANCE.getNonConfigurationInstance(activity);
+    }
+
+    /**
+     * Return the result from {@code onRetainCustomNonConfigurationInstance()} of a
+     * FragmentActivity that uses the {@link RetainedHolders#NON_CONFIGURATION_INSTANCE} store.
+     *
+     * @param activity the FragmentActivity that is about to be recreated
+     * @return the non-configuration instance
+     */
+    public static Object onRetainCustomNonConfigurationInstance(FragmentActivity activity) {
+        return RetainedHolders.NON_CONFIGURATION_INSTANCE.getNonConfigurationInstance(activity);
+    }
+
     /**
      * Restore fields that have been previously retained. The annotated fields in the
      * Activity will be set to the objects and values that were assigned to them on the
@@ -78,7 +264,7 @@ public final class Leash {
      * @param source the Activity containing the annotated fields
      */
     public static void restore(Activity source) {
-        callLeash("restore", source);
+        bind(source, RESTORE);
     }
 
     /**
@@ -92,7 +278,7 @@ public final class Leash {
      * @param source the Fragment containing the annotated fields
      */
     public static void restore(Fragment source) {
-        callLeash("restore", source);
+        bind(source, RESTORE);
     }
 
     /**
@@ -106,7 +292,7 @@ public final class Leash {
      * @param source the Activity containing the annotated fields
      */
     public static void restore(FragmentActivity source) {
-        callLeash("restore", source);
+        bind(source, RESTORE);
     }
 
     /**
@@ -120,7 +306,55 @@ public final class Leash {
      * @param source the Fragment containing the annotated fields
      */
     public static void restore(android.support.v4.app.Fragment source) {
-        callLeash("restore", source);
+        bind(source, RESTORE);
+    }
+
+    /**
+     * Restore fields like {@linkplain #restore(Activity)}. After process death, when no retained
+     * objects are left, fields annotated with {@code @Retain(persist = true)} are restored
+     * from the saved instance state instead.
+     *
+     * @param source             the Activity containing the annotated fields
+     * @param savedInstanceState the saved instance state passed to {@linkplain Activity#onCreate(Bundle)}, may be null
+     */
+    public static void restore(Activity source, Bundle savedInstanceState) {
+        restoreWithState(source, savedInstanceState);
+    }
+
+    /**
+     * Restore fields like {@linkplain #restore(Fragment)}. After process death, when no retained
+     * objects are left, fields annotated with {@code @Retain(persist = true)} are restored
+     * from the saved instance state instead.
+     *
+     * @param source             the Fragment containing the annotated fields
+     * @param savedInstanceState the saved instance state passed to {@linkplain Fragment#onCreate(Bundle)}, may be null
+     */
+    public static void restore(Fragment source, Bundle savedInstanceState) {
+        restoreWithState(source, savedInstanceState);
+    }
+
+    /**
+     * Restore fields like {@linkplain #restore(FragmentActivity)}. After process death, when no retained
+     * objects are left, fields annotated with {@code @Retain(persist = true)} are restored
+     * from the saved instance state instead.
+     *
+     * @param source             the Activity containing the annotated fields
+     * @param savedInstanceState the saved instance state passed to {@linkplain Activity#onCreate(Bundle)}, may be null
+     */
+    public static void restore(FragmentActivity source, Bundle savedInstanceState) {
+        restoreWithState(source, savedInstanceState);
+    }
+
+    /**
+     * Restore fields like {@linkplain #restore(android.support.v4.app.Fragment)}. After process death, when no retained
+     * objects are left, fields annotated with {@code @Retain(persist = true)} are restored
+     * from the saved instance state instead.
+     *
+     * @param source             the Fragment containing the annotated fields
+     * @param savedInstanceState the saved instance state passed to {@linkplain android.support.v4.app.Fragment#onCreate(Bundle)}, may be null
+     */
+    public static void restore(android.support.v4.app.Fragment source, Bundle savedInstanceState) {
+        restoreWithState(source, savedInstanceState);
     }
 
     /**
@@ -136,7 +370,7 @@ public final class Leash {
      * @param source the Activity containing the annotated fields
      */
     public static void retain(Activity source) {
-        callLeash("retain", source);
+        bind(source, RETAIN);
     }
 
     /**
@@ -152,7 +386,7 @@ public final class Leash {
      * @param source the Fragment containing the annotated fields
      */
     public static void retain(Fragment source) {
-        callLeash("retain", source);
+        bind(source, RETAIN);
     }
 
     /**
@@ -168,7 +402,7 @@ public final class Leash {
      * @param source the Activity containing the annotated fields
      */
     public static void retain(FragmentActivity source) {
-        callLeash("retain", source);
+        bind(source, RETAIN);
     }
 
     /**
@@ -184,7 +418,55 @@ public final class Leash {
      * @param source the Fragment containing the annotated fields
      */
     public static void retain(android.support.v4.app.Fragment source) {
-        callLeash("retain", source);
+        bind(source, RETAIN);
+    }
+
+    /**
+     * Retain fields like {@linkplain #retain(Activity)} and save fields annotated with
+     * {@code @Retain(persist = true)} to the saved instance state, so that they survive
+     * process death.
+     *
+     * @param source   the Activity containing the annotated fields
+     * @param outState the Bundle passed to {@linkplain Activity#onSaveInstanceState(Bundle)}
+     */
+    public static void retain(Activity source, Bundle outState) {
+        retainWithState(source, outState);
+    }
+
+    /**
+     * Retain fields like {@linkplain #retain(Fragment)} and save fields annotated with
+     * {@code @Retain(persist = true)} to the saved instance state, so that they survive
+     * process death.
+     *
+     * @param source   the Fragment containing the annotated fields
+     * @param outState the Bundle passed to {@linkplain Fragment#onSaveInstanceState(Bundle)}
+     */
+    public static void retain(Fragment source, Bundle outState) {
+        retainWithState(source, outState);
+    }
+
+    /**
+     * Retain fields like {@linkplain #retain(FragmentActivity)} and save fields annotated with
+     * {@code @Retain(persist = true)} to the saved instance state, so that they survive
+     * process death.
+     *
+     * @param source   the Activity containing the annotated fields
+     * @param outState the Bundle passed to {@linkplain Activity#onSaveInstanceState(Bundle)}
+     */
+    public static void retain(FragmentActivity source, Bundle outState) {
+        retainWithState(source, outState);
+    }
+
+    /**
+     * Retain fields like {@linkplain #retain(android.support.v4.app.Fragment)} and save fields annotated with
+     * {@code @Retain(persist = true)} to the saved instance state, so that they survive
+     * process death.
+     *
+     * @param source   the Fragment containing the annotated fields
+     * @param outState the Bundle passed to {@linkplain android.support.v4.app.Fragment#onSaveInstanceState(Bundle)}
+     */
+    public static void retain(android.support.v4.app.Fragment source, Bundle outState) {
+        retainWithState(source, outState);
     }
 
     /**
@@ -196,7 +478,7 @@ public final class Leash {
      * @param source the Activity containing the annotated fields
      */
     public static void clear(Activity source) {
-        callLeash("clear", source);
+        bind(source, CLEAR);
     }
 
     /**
@@ -208,7 +490,7 @@ public final class Leash {
      * @param source the Activity containing the annotated fields
      */
     public static void clear(FragmentActivity source) {
-        callLeash("clear", source);
+        bind(source, CLEAR);
     }
 
     /**
@@ -220,7 +502,7 @@ public final class Leash {
      * @param source the Fragment containing the annotated fields
      */
     public static void clear(Fragment source) {
-        callLeash("clear", source);
+        bind(source, CLEAR);
     }
 
     /**
@@ -232,22 +514,330 @@ public final class Leash {
      * @param source the Fragment containing the annotated fields
      */
     public static void clear(android.support.v4.app.Fragment source) {
-        callLeash("clear", source);
+        bind(source, CLEAR);
     }
 
-    private static void callLeash(String methodName, Object source) {
+    /**
+     * Restore the fields of the Activity and of all of its added Fragments, including
+     * their child Fragments, in one pass. Classes without annotated fields are skipped.
+     * <p/>
+     * Call this method in {@linkplain Activity#onCreate(Bundle)} after calling through
+     * to the super class, so that the Fragments have been recreated.
+     * <p/>
+     * The holder Fragments missing in the FragmentManager of the Activity are added in one
+     * transaction, which is committed after all Fragments have been bound.
+     *
+     * @param activity the Activity
+     * @see #restore(FragmentActivity)
+     */
+    public static void restoreAll(FragmentActivity activity) {
+        HolderFragments.startBatch(activity.getSupportFragmentManager());
         try {
-            String leashClassName = source.getClass().getName() + SUFFIX;
-            Method method = Class.forName(leashClassName).getMethod(methodName, source.getClass());
-            method.invoke(null, source);
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException("Failed to access Leash for " + source.getClass().getName(), e);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException("Failed to access Leash for " + source.getClass().getName(), e);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException("Failed to access Leash for " + source.getClass().getName(), e);
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException("Failed to access Leash for " + source.getClass().getName(), e);
+            bindIfPresent(activity, RESTORE);
+            bindAll(activity.getSupportFragmentManager(), RESTORE);
+        } finally {
+            HolderFragments.commitBatch();
+        }
+    }
+
+    /**
+     * Retain the fields of the Activity and of all of its added Fragments, including
+     * their child Fragments, in one pass. Classes without annotated fields are skipped.
+     * <p/>
+     * The holder Fragments missing in the FragmentManager of the Activity are added in one
+     * transaction, which is committed after all Fragments have been bound.
+     *
+     * @param activity the Activity
+     * @see #retain(FragmentActivity)
+     */
+    public static void retainAll(FragmentActivity activity) {
+        HolderFragments.startBatch(activity.getSupportFragmentManager());
+        try {
+            bindIfPresent(activity, RETAIN);
+            bindAll(activity.getSupportFragmentManager(), RETAIN);
+        } finally {
+            HolderFragments.commitBatch();
+        }
+    }
+
+    /**
+     * Restore the fields of the Activity and of all of its added Fragments, including
+     * their child Fragments, in one pass. Classes without annotated fields are skipped.
+     * <p/>
+     * Note: The Fragments of the framework FragmentManager can only be enumerated from
+     * Android 8.0 (API 26), on older versions only the Activity is restored and Fragments
+     * must call {@linkplain #restore(Fragment)} themselves.
+     * <p/>
+     * The holder Fragments are added as described in {@linkplain #restoreAll(FragmentActivity)}.
+     *
+     * @param activity the Activity
+     * @see #restore(Activity)
+     */
+    public static void restoreAll(Activity activity) {
+        HolderFragments.startBatch(activity.getFragmentManager());
+        try {
+            bindIfPresent(activity, RESTORE);
+            bindAll(activity.getFragmentManager(), RESTORE);
+        } finally {
+            HolderFragments.commitBatch();
+        }
+    }
+
+    /**
+     * Retain the fields of the Activity and of all of its added Fragments, including
+     * their child Fragments, in one pass. Classes without annotated fields are skipped.
+     * <p/>
+     * Note: The Fragments of the framework FragmentManager can only be enumerated from
+     * Android 8.0 (API 26), on older versions only the Activity is retained and Fragments
+     * must call {@linkplain #retain(Fragment)} themselves.
+     * <p/>
+     * The holder Fragments are added as described in {@linkplain #retainAll(FragmentActivity)}.
+     *
+     * @param activity the Activity
+     * @see #retain(Activity)
+     */
+    public static void retainAll(Activity activity) {
+        HolderFragments.startBatch(activity.getFragmentManager());
+        try {
+            bindIfPresent(activity, RETAIN);
+            bindAll(activity.getFragmentManager(), RETAIN);
+        } finally {
+            HolderFragments.commitBatch();
+        }
+    }
+
+    private static void bindAll(android.support.v4.app.FragmentManager fm, int operation) {
+        if (fm == null) {
+            return;
+        }
+
+        List<android.support.v4.app.Fragment> fragments = fm.getFragments();
+        if (fragments == null) {
+            return;
+        }
+
+        // the list is live and may contain empty slots
+        for (android.support.v4.app.Fragment fragment : new ArrayList<>(fragments)) {
+            if (fragment != null && fragment.isAdded() && !(fragment instanceof SupportLeashHolderFragment)) {
+                bindIfPresent(fragment, operation);
+                bindAll(fragment.getChildFragmentManager(), operation);
+            }
+        }
+    }
+
+    private static void bindAll(android.app.FragmentManager fm, int operation) {
+        if (fm == null) {
+            return;
+        }
+
+        for (Fragment fragment : getFragments(fm)) {
+            if (fragment != null && fragment.isAdded() && !(fragment instanceof LeashHolderFragment)) {
+                bindIfPresent(fragment, operation);
+                bindAll(fragment.getChildFragmentManager(), operation);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<Fragment> getFragments(android.app.FragmentManager fm) {
+        if (!getFragmentsMethodResolved) {
+            try {
+                getFragmentsMethod = android.app.FragmentManager.class.getMethod("getFragments");
+            } catch (NoSuchMethodException e) {
+                // not available before API 26
+            }
+
+            getFragmentsMethodResolved = true;
+        }
+
+        if (getFragmentsMethod != null) {
+            try {
+                List<Fragment> fragments = (List<Fragment>) getFragmentsMethod.invoke(fm);
+                if (fragments != null) {
+                    return new ArrayList<>(fragments);
+                }
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("Failed to access the Fragments of " + fm, e);
+            } catch (InvocationTargetException e) {
+                throw new RuntimeException("Failed to access the Fragments of " + fm, e);
+            }
+        }
+
+        return Collections.emptyList();
+    }
+
+    private static void bindIfPresent(Object source, int operation) {
+        LeashBinder<Object> binder = getBinder(source);
+        if (!(binder instanceof MissingBinder)) {
+            bind(binder, source, operation);
+        }
+    }
+
+    private static void bind(Object source, int operation) {
+        bind(getBinder(source), source, operation);
+    }
+
+    private static void bind(LeashBinder<Object> binder, Object source, int operation) {
+        long start = startMetrics();
+        if (operation == RESTORE) {
+            binder.restore(source);
+        } else if (operation == RETAIN) {
+            binder.retain(source);
+        } else {
+            binder.clear(source);
+        }
+
+        finishMetrics(source, operation, start);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void restoreWithState(Object source, Bundle savedInstanceState) {
+        LeashBinder<Object> binder = getBinder(source);
+        long start = startMetrics();
+        if (binder instanceof PersistingBinder) {
+            ((PersistingBinder<Object>) binder).restore(source, savedInstanceState);
+        } else {
+            binder.restore(source);
+        }
+
+        finishMetrics(source, RESTORE, start);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void retainWithState(Object source, Bundle outState) {
+        LeashBinder<Object> binder = getBinder(source);
+        long start = startMetrics();
+        if (binder instanceof PersistingBinder) {
+            ((PersistingBinder<Object>) binder).retain(source, outState);
+        } else {
+            binder.retain(source);
+        }
+
+        finishMetrics(source, RETAIN, start);
+    }
+
+    /**
+     * @return the start time of the operation, or 0 if no metrics listener is installed
+     */
+    private static long startMetrics() {
+        if (LeashMetrics.listener == null) {
+            return 0L;
+        }
+
+        // drop the fields counted by calls to the generated code that bypassed this class
+        LeashMetrics.takeRestoredFields();
+        return System.nanoTime();
+    }
+
+    private static void finishMetrics(Object source, int operation, long start) {
+        if (HolderSnapshots.recordTimes) {
+            if (operation == RESTORE) {
+                HolderSnapshots.restored(source.getClass());
+            } else if (operation == RETAIN) {
+                HolderSnapshots.retained(source.getClass());
+            }
+        }
+
+        MetricsListener listener = LeashMetrics.listener;
+        if (listener == null || start == 0L) {
+            return;
+        }
+
+        long duration = System.nanoTime() - start;
+        if (operation == RESTORE) {
+            listener.onRestore(source.getClass(), duration, LeashMetrics.takeRestoredFields());
+        } else if (operation == RETAIN) {
+            listener.onRetain(source.getClass(), duration);
+        } else {
+            listener.onClear(source.getClass(), duration);
+        }
+    }
+
+    private static LeashBinder<Object> getBinder(Object source) {
+        Class<?> sourceClass = source.getClass();
+        LeashBinder<Object> binder = BINDERS.get(sourceClass);
+        if (binder != null) {
+            return binder;
+        }
+
+        synchronized (INDEXES) {
+            binder = BINDERS.get(sourceClass);
+            if (binder == null) {
+                binder = createBinder(sourceClass);
+                BINDERS.put(sourceClass, binder);
+            }
+
+            return binder;
+        }
+    }
+
+    /**
+     * Creates the binder for the given class or, if the class has no retained fields
+     * itself, for its closest superclass with retained fields.
+     */
+    @SuppressWarnings("unchecked")
+    private static LeashBinder<Object> createBinder(Class<?> sourceClass) {
+        ClassNotFoundException notFound = null;
+        for (Class<?> hostClass = sourceClass; hostClass != null; hostClass = hostClass.getSuperclass()) {
+            String hostClassName = hostClass.getName();
+            if (hostClassName.startsWith("android.") || hostClassName.startsWith("androidx.") || hostClassName.startsWith("java.")) {
+                break;
+            }
+
+            for (LeashIndex index : INDEXES) {
+                LeashBinder<?> binder = index.getBinder(hostClass);
+                if (binder != null) {
+                    return (LeashBinder<Object>) binder;
+                }
+            }
+
+            try {
+                Class<?> binderClass = Class.forName(hostClassName + SUFFIX + BINDER_SUFFIX);
+                return (LeashBinder<Object>) binderClass.newInstance();
+            } catch (ClassNotFoundException e) {
+                if (notFound == null) {
+                    notFound = e;
+                }
+            } catch (InstantiationException e) {
+                return new MissingBinder(sourceClass, e);
+            } catch (IllegalAccessException e) {
+                return new MissingBinder(sourceClass, e);
+            }
+        }
+
+        return new MissingBinder(sourceClass, notFound);
+    }
+
+    /**
+     * Binder for classes without a generated Leash class, fails on every call.
+     */
+    private static final class MissingBinder implements LeashBinder<Object> {
+
+        private final Class<?> sourceClass;
+        private final Exception cause;
+
+        MissingBinder(Class<?> sourceClass, Exception cause) {
+            this.sourceClass = sourceClass;
+            this.cause = cause;
+        }
+
+        @Override
+        public void restore(Object source) {
+            fail();
+        }
+
+        @Override
+        public void retain(Object source) {
+            fail();
+        }
+
+        @Override
+        public void clear(Object source) {
+            fail();
+        }
+
+        private void fail() {
+            throw new RuntimeException("Failed to access Leash for " + sourceClass.getName(), cause);
         }
     }
 }
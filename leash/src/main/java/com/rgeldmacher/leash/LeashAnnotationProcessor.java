@@ -15,46 +15,206 @@
 */
 package com.rgeldmacher.leash;
 
+import com.squareup.javapoet.AnnotationSpec;
 import com.squareup.javapoet.ClassName;
 import com.squareup.javapoet.FieldSpec;
 import com.squareup.javapoet.JavaFile;
 import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
 import com.squareup.javapoet.TypeName;
 import com.squareup.javapoet.TypeSpec;
+import com.squareup.javapoet.WildcardTypeName;
 
 import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.Filer;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.MirroredTypeException;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
 import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
 import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
 
 /**
  * Annotation processor for the Retain annotation.
  *
  * @author rgeldmacher
  */
-@SupportedAnnotationTypes("com.rgeldmacher.leash.Retain")
+@SupportedAnnotationTypes({"com.rgeldmacher.leash.Retain", "com.rgeldmacher.leash.OnRetainedResult"})
+@SupportedOptions({
+        LeashAnnotationProcessor.OPTION_INDEX,
+        LeashAnnotationProcessor.OPTION_HOLDER,
+        LeashAnnotationProcessor.OPTION_STORE,
+        LeashAnnotationProcessor.OPTION_BUDGET,
+        LeashAnnotationProcessor.OPTION_TRACE,
+        LeashAnnotationProcessor.OPTION_REPORT,
+        LeashAnnotationProcessor.OPTION_MAX_FIELDS,
+        LeashAnnotationProcessor.OPTION_DENY})
 public class LeashAnnotationProcessor extends AbstractProcessor {
 
+    /**
+     * Processor option for the fully qualified name of the {@link LeashIndex} to generate.
+     */
+    static final String OPTION_INDEX = "leash.index";
+
+    /**
+     * Processor option for the holder of the retained data, either {@code fragment}
+     * for a retained Fragment per class (default), {@code shared} for one
+     * {@link RetainedHolder} per Activity or {@code compact} for a shared holder that
+     * stores the data of every class in {@link RetainedSlots} instead of a generated class.
+     */
+    static final String OPTION_HOLDER = "leash.holder";
+
+    /**
+     * Processor option for the {@link RetainStore} of the shared holders, either {@code fragment},
+     * {@code nonconfig} or {@code memory}. Implies {@code leash.holder=shared}. Without
+     * this option the store is selected at runtime with {@link Leash#setRetainStore(RetainStore)}.
+     */
+    static final String OPTION_STORE = "leash.store";
+
+    /**
+     * Processor option to account the retained objects against the retain budget,
+     * see {@link Leash#setRetainBudget(long, Sizer)}. Either {@code true} or {@code false} (default).
+     */
+    static final String OPTION_BUDGET = "leash.budget";
+
+    /**
+     * Processor option to wrap the generated retain, restore, clear and holder lookup methods
+     * in {@code android.os.Trace} sections named after the host class, so they show up in
+     * system traces. Either {@code true} or {@code false} (default). Requires API 18.
+     */
+    static final String OPTION_TRACE = "leash.trace";
+
+    /**
+     * Processor option for the name of a JSON report of all retained fields, written to the
+     * generated sources. Lists every host class with its retained fields, their types and
+     * estimated shallow sizes.
+     */
+    static final String OPTION_REPORT = "leash.report";
+
+    /**
+     * Processor option for the maximum number of fields a class may retain, including the
+     * retained fields of its superclasses, also of those compiled in other modules or libraries.
+     * A class with more retained fields fails the build.
+     */
+    static final String OPTION_MAX_FIELDS = "leash.maxFields";
+
+    /**
+     * Processor option for a comma separated list of fully qualified names of types that must
+     * not be retained, e.g. {@code android.graphics.Bitmap,java.util.Map}. Fields of these
+     * types or their subtypes, also as type arguments, fail the build.
+     */
+    static final String OPTION_DENY = "leash.deny";
+
+    /**
+     * Options that tell Gradle whether the processor is isolating or aggregating, see
+     * {@code META-INF/gradle/incremental.annotation.processors}. The processor is isolating
+     * unless it generates a {@link LeashIndex}, which depends on every annotated class.
+     */
+    private static final String GRADLE_ISOLATING = "org.gradle.annotation.processing.isolating";
+    private static final String GRADLE_AGGREGATING = "org.gradle.annotation.processing.aggregating";
+
+    /**
+     * Orders the annotated classes, so that the generated code doesn't depend on the order
+     * in which the compiler passes the source files.
+     */
+    private static final Comparator<TypeElement> BY_QUALIFIED_NAME = new Comparator<TypeElement>() {
+        @Override
+        public int compare(TypeElement lhs, TypeElement rhs) {
+            return lhs.getQualifiedName().toString().compareTo(rhs.getQualifiedName().toString());
+        }
+    };
+
+    /**
+     * Types that reference an Activity, retaining them leaks the Activity on every
+     * configuration change. The support library, AndroidX and RecyclerView are optional.
+     */
+    private static final List<String> LEAKING_TYPES = Arrays.asList(
+            "android.content.Context",
+            "android.view.View",
+            "android.graphics.drawable.Drawable",
+            "android.app.Fragment",
+            "android.support.v4.app.Fragment",
+            "androidx.fragment.app.Fragment",
+            "android.widget.Adapter",
+            "android.support.v7.widget.RecyclerView.Adapter",
+            "androidx.recyclerview.widget.RecyclerView.Adapter");
+
+    private static final int REFERENCE_SIZE = 4;
+
+    private static final ClassName BUNDLE = ClassName.get("android.os", "Bundle");
+    private static final ClassName TRACE = ClassName.get("android.os", "Trace");
+    private static final ClassName VIEW_MODEL = ClassName.get("androidx.lifecycle", "ViewModel");
+    private static final ClassName VIEW_MODEL_PROVIDER = ClassName.get("androidx.lifecycle", "ViewModelProvider");
+    private static final ClassName VIEW_MODEL_STORE_OWNER = ClassName.get("androidx.lifecycle", "ViewModelStoreOwner");
+
     private Filer filer;
     private Types types;
     private Elements elements;
+    private String indexClassName;
+    private boolean indexWritten;
+    private boolean sharedHolder;
+    private boolean compactHolder;
+    private String storeField;
+    private boolean budget;
+    private boolean trace;
+    private String reportName;
+    private int maxFields;
+    private List<String> deniedTypes;
+    private Map<TypeElement, Set<Element>> roundFields;
+
+    /**
+     * The {@literal @}{@link OnRetainedResult} methods of this round by class and field.
+     */
+    private Map<TypeElement, Map<Element, ExecutableElement>> roundResultMethods;
+
+    /**
+     * The erased types of the framework and library classes by name, null if the class
+     * is not on the classpath. Type mirrors are only valid within a round.
+     */
+    private final Map<String, TypeMirror> erasedTypes = new HashMap<>();
+
+    /**
+     * Whether a host class is a subtype of a framework or library class, by host and class name.
+     */
+    private final Map<Element, Map<String, Boolean>> subtypes = new HashMap<>();
+
+    /**
+     * The entries of the report by host class, collected over all rounds.
+     */
+    private final Map<String, String> reportEntries = new TreeMap<>();
+    private final List<Element> reportElements = new ArrayList<>();
 
     @Override
     public synchronized void init(ProcessingEnvironment processingEnv) {
@@ -62,6 +222,67 @@ public class LeashAnnotationProcessor extends AbstractProcessor {
         filer = processingEnv.getFiler();
         types = processingEnv.getTypeUtils();
         elements = processingEnv.getElementUtils();
+        indexClassName = processingEnv.getOptions().get(OPTION_INDEX);
+
+        String holder = processingEnv.getOptions().get(OPTION_HOLDER);
+        compactHolder = "compact".equals(holder);
+        sharedHolder = compactHolder || "shared".equals(holder);
+        if (holder != null && !sharedHolder && !"fragment".equals(holder)) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    String.format("Unknown value '%s' for option %s, expected 'fragment', 'shared' or 'compact'", holder, OPTION_HOLDER));
+        }
+
+        String store = processingEnv.getOptions().get(OPTION_STORE);
+        if (store != null) {
+            if ("fragment".equals(store)) {
+                storeField = "FRAGMENT";
+            } else if ("nonconfig".equals(store)) {
+                storeField = "NON_CONFIGURATION_INSTANCE";
+            } else if ("memory".equals(store)) {
+                storeField = "MEMORY";
+            } else {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        String.format("Unknown value '%s' for option %s, expected 'fragment', 'nonconfig' or 'memory'", store, OPTION_STORE));
+            }
+
+            if ("fragment".equals(holder)) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        String.format("Option %s requires %s=shared", OPTION_STORE, OPTION_HOLDER));
+            }
+
+            sharedHolder = true;
+        }
+
+        budget = Boolean.parseBoolean(processingEnv.getOptions().get(OPTION_BUDGET));
+        trace = Boolean.parseBoolean(processingEnv.getOptions().get(OPTION_TRACE));
+        reportName = processingEnv.getOptions().get(OPTION_REPORT);
+
+        String maxFieldsOption = processingEnv.getOptions().get(OPTION_MAX_FIELDS);
+        if (maxFieldsOption != null) {
+            try {
+                maxFields = Integer.parseInt(maxFieldsOption.trim());
+            } catch (NumberFormatException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        String.format("Invalid value '%s' for option %s, expected a number", maxFieldsOption, OPTION_MAX_FIELDS));
+            }
+        }
+
+        deniedTypes = new ArrayList<>();
+        String denyOption = processingEnv.getOptions().get(OPTION_DENY);
+        if (denyOption != null) {
+            for (String deniedType : denyOption.split(",")) {
+                if (!deniedType.trim().isEmpty()) {
+                    deniedTypes.add(deniedType.trim());
+                }
+            }
+        }
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        Set<String> options = new HashSet<>(super.getSupportedOptions());
+        options.add(indexClassName != null || reportName != null ? GRADLE_AGGREGATING : GRADLE_ISOLATING);
+        return options;
     }
 
     @Override
@@ -71,22 +292,63 @@ public class LeashAnnotationProcessor extends AbstractProcessor {
 
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        erasedTypes.clear();
+        subtypes.clear();
+
         Set<? extends Element> elements = roundEnv.getElementsAnnotatedWith(Retain.class);
         Map<TypeElement, Set<Element>> fieldsByType = getFieldsByType(elements);
+        roundFields = fieldsByType;
+        roundResultMethods = getResultMethods(roundEnv.getElementsAnnotatedWith(OnRetainedResult.class), fieldsByType);
 
         for (Map.Entry<TypeElement, Set<Element>> entry : fieldsByType.entrySet()) {
+            if (maxFields > 0) {
+                int retainedFields = countRetainedFields(entry.getKey());
+                if (retainedFields > maxFields) {
+                    error(entry.getKey(), "%s retains %d fields, more than the %d allowed by option %s",
+                            entry.getKey().getSimpleName(), retainedFields, maxFields, OPTION_MAX_FIELDS);
+                }
+            }
+
+            if (reportName != null) {
+                reportEntries.put(entry.getKey().getQualifiedName().toString(), createReportEntry(entry.getKey(), entry.getValue()));
+                reportElements.add(entry.getKey());
+            }
+
             try {
-                writeJavaFile(entry.getKey(), entry.getValue());
+                writeJavaFile(entry.getKey(), entry.getValue(), getSuperclassLeash(entry.getKey(), fieldsByType.keySet()));
             } catch (IOException e) {
                 error(entry.getKey(), "Could not create leash support class", e);
             }
         }
 
+        if (indexClassName != null && !fieldsByType.isEmpty()) {
+            TypeElement firstType = fieldsByType.keySet().iterator().next();
+            if (indexWritten) {
+                error(firstType, "Leash index %s has already been written in a previous round", indexClassName);
+            } else {
+                try {
+                    writeIndexFile(fieldsByType.keySet());
+                    indexWritten = true;
+                } catch (IOException e) {
+                    error(firstType, "Could not create leash index %s", indexClassName);
+                }
+            }
+        }
+
+        if (reportName != null && roundEnv.processingOver() && !reportEntries.isEmpty()) {
+            try {
+                writeReportFile();
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        String.format("Could not create leash report %s: %s", reportName, e.getMessage()));
+            }
+        }
+
         return true;
     }
 
     private Map<TypeElement, Set<Element>> getFieldsByType(Set<? extends Element> elements) {
-        Map<TypeElement, Set<Element>> fieldsByType = new HashMap<>(100);
+        Map<TypeElement, Set<Element>> fieldsByType = new TreeMap<>(BY_QUALIFIED_NAME);
         for (Element element : elements) {
             if (!typeIsActivityOrFragment(element.getEnclosingElement())) {
                 error(element, "The @Retain annotation can only be applied to fields of an Activity or Fragment");
@@ -96,6 +358,34 @@ public class LeashAnnotationProcessor extends AbstractProcessor {
                     element.getModifiers().contains(Modifier.PRIVATE)) {
                 error(element, "Field must not be private, protected, static or final");
                 continue;
+            } else if (!element.getAnnotation(Retain.class).allowLeak() && getLeakingType(element.asType()) != null) {
+                error(element, "Retaining %s leaks the Activity on every configuration change, set @Retain(allowLeak = true) to retain it anyway",
+                        getLeakingType(element.asType()));
+                continue;
+            } else if (findType(element.asType(), deniedTypes, false) != null) {
+                error(element, "Retaining %s is denied by option %s", findType(element.asType(), deniedTypes, false), OPTION_DENY);
+                continue;
+            } else if (getPolicy(element) != Retain.Policy.STRONG && typeIsPrimitive(element.asType())) {
+                error(element, "Primitive fields can't be retained with policy %s", getPolicy(element));
+                continue;
+            } else if (getPolicy(element) == Retain.Policy.SPILL && getSpillCodec(element) == null && getSpillCodecConstant(element.asType()) == null) {
+                error(element, "Only primitive arrays and ByteBuffers can be spilled without a codec");
+                continue;
+            } else if (getPolicy(element) != Retain.Policy.SPILL && getSpillCodec(element) != null) {
+                error(element, "A codec can only be used with policy %s", Retain.Policy.SPILL);
+                continue;
+            } else if (getSpillCodec(element) != null && !types.isAssignable(getSpillCodec(element), getErasedType(SpillCodec.class.getCanonicalName()))) {
+                error(element, "The codec %s must implement %s", getSpillCodec(element), SpillCodec.class.getSimpleName());
+                continue;
+            } else if (getSpillCodec(element) != null && !hasPublicNoArgConstructor(getSpillCodec(element))) {
+                error(element, "The codec %s needs a public no-argument constructor", getSpillCodec(element));
+                continue;
+            } else if (getSpillCodec(element) != null && !codecAccepts(getSpillCodec(element), element.asType())) {
+                error(element, "The codec %s can't spill %s", getSpillCodec(element), element.asType());
+                continue;
+            } else if (element.getAnnotation(Retain.class).persist() && getBundleType(element.asType()) == null) {
+                error(element, "Only primitives, Strings, primitive arrays, String arrays, Parcelables and Serializables can be persisted");
+                continue;
             }
 
             Set<Element> fields = fieldsByType.get(element.getEnclosingElement());
@@ -107,78 +397,662 @@ public class LeashAnnotationProcessor extends AbstractProcessor {
             fields.add(element);
         }
 
+        for (Map.Entry<TypeElement, Set<Element>> entry : fieldsByType.entrySet()) {
+            // keep the declaration order, the slots of the compact holder depend on it
+            Set<Element> fields = new LinkedHashSet<>(entry.getValue().size());
+            for (Element member : entry.getKey().getEnclosedElements()) {
+                if (entry.getValue().contains(member)) {
+                    fields.add(member);
+                }
+            }
+
+            entry.setValue(fields);
+        }
+
         return fieldsByType;
     }
 
-    private void writeJavaFile(TypeElement classWithAnnotations, Set<Element> annotatedFields) throws IOException {
-        TypeSpec retainedFragmentSpec = createRetainedFragmentSpec(classWithAnnotations, annotatedFields);
-        ClassName retainedFragmentType = ClassName.bestGuess(retainedFragmentSpec.name);
+    private Map<TypeElement, Map<Element, ExecutableElement>> getResultMethods(Set<? extends Element> methods, Map<TypeElement, Set<Element>> fieldsByType) {
+        Map<TypeElement, Map<Element, ExecutableElement>> resultMethods = new HashMap<>();
+        for (Element method : methods) {
+            TypeElement type = (TypeElement) method.getEnclosingElement();
+            String fieldName = method.getAnnotation(OnRetainedResult.class).value();
+            Element field = null;
+            if (fieldsByType.containsKey(type)) {
+                for (Element retainedField : fieldsByType.get(type)) {
+                    if (retainedField.getSimpleName().contentEquals(fieldName)) {
+                        field = retainedField;
+                    }
+                }
+            }
+
+            List<? extends Element> parameters = ((ExecutableElement) method).getParameters();
+            if (field == null) {
+                error(method, "No field %s annotated with @Retain in %s", fieldName, type.getSimpleName());
+                continue;
+            } else if (!isAssignable(field.asType(), Future.class.getName())) {
+                error(method, "Field %s must be a Future to deliver its result", fieldName);
+                continue;
+            } else if (method.getModifiers().contains(Modifier.PRIVATE) ||
+                    method.getModifiers().contains(Modifier.STATIC) ||
+                    parameters.size() != 1 ||
+                    !types.isAssignable(field.asType(), parameters.get(0).asType())) {
+                error(method, "Method must not be private or static and take the Future of field %s as its only parameter", fieldName);
+                continue;
+            }
+
+            Map<Element, ExecutableElement> methodsByField = resultMethods.get(type);
+            if (methodsByField == null) {
+                methodsByField = new HashMap<>();
+                resultMethods.put(type, methodsByField);
+            }
+
+            if (methodsByField.containsKey(field)) {
+                error(method, "Field %s already has an @OnRetainedResult method", fieldName);
+                continue;
+            }
+
+            methodsByField.put(field, (ExecutableElement) method);
+        }
+
+        return resultMethods;
+    }
+
+    /**
+     * Finds the Leash class of the closest superclass with retained fields, so that
+     * the generated code of a subclass can delegate to it.
+     */
+    private ClassName getSuperclassLeash(TypeElement type, Set<TypeElement> classesWithAnnotations) {
+        TypeElement superType = getSuperclassWithLeash(type, classesWithAnnotations);
+        return superType != null ? getLeashClass(superType) : null;
+    }
+
+    private TypeElement getSuperclassWithLeash(TypeElement type, Set<TypeElement> classesWithAnnotations) {
+        TypeMirror superclass = type.getSuperclass();
+        while (superclass.getKind() == TypeKind.DECLARED) {
+            TypeElement superType = (TypeElement) types.asElement(superclass);
+            if (isFrameworkType(superType)) {
+                return null;
+            }
+
+            if (classesWithAnnotations.contains(superType) || !getRetainedFields(superType).isEmpty() ||
+                    elements.getTypeElement(getLeashClass(superType).toString()) != null) {
+                return superType;
+            }
+
+            superclass = superType.getSuperclass();
+        }
+
+        return null;
+    }
+
+    /**
+     * @return true if the class or one of its superclasses has fields that are persisted
+     * to the saved instance state
+     */
+    private boolean persists(TypeElement type) {
+        Set<Element> fields = getRetainedFields(type);
+        if (!fields.isEmpty()) {
+            for (Element field : fields) {
+                if (field.getAnnotation(Retain.class).persist()) {
+                    return true;
+                }
+            }
+        } else {
+            // generated in an earlier compilation, look for the generated method instead
+            TypeElement leashType = elements.getTypeElement(getLeashClass(type).toString());
+            if (leashType != null) {
+                for (Element member : leashType.getEnclosedElements()) {
+                    if (member.getSimpleName().contentEquals("writeBundle")) {
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        return superclassPersists(type);
+    }
+
+    private boolean superclassPersists(TypeElement type) {
+        TypeElement superType = getSuperclassWithLeash(type, roundFields.keySet());
+        return superType != null && persists(superType);
+    }
+
+    /**
+     * @return the annotated fields of the class, also if the class is not part of this round,
+     * e.g. because only a subclass has changed in an incremental build
+     */
+    private Set<Element> getRetainedFields(TypeElement type) {
+        Set<Element> fields = roundFields.get(type);
+        if (fields == null) {
+            // read from the class file, e.g. a superclass from a library
+            fields = new LinkedHashSet<>();
+            for (Element member : type.getEnclosedElements()) {
+                if (member.getKind() == ElementKind.FIELD && member.getAnnotation(Retain.class) != null) {
+                    fields.add(member);
+                }
+            }
+        }
+
+        return fields;
+    }
+
+    /**
+     * @return the number of retained fields of the class and its superclasses, the fields of
+     * superclasses compiled before the annotation was kept in class files are not known
+     */
+    private int countRetainedFields(TypeElement type) {
+        int count = 0;
+        for (TypeElement t = type; t != null; t = getSuperclassWithLeash(t, roundFields.keySet())) {
+            count += getRetainedFields(t).size();
+        }
 
-        MethodSpec getRetainedFragmentMethodSpec = createGetRetainedFragmentMethodSpec(classWithAnnotations, retainedFragmentType);
+        return count;
+    }
 
-        MethodSpec restoreMethodSpec = createRestoreMethodSpec(classWithAnnotations, annotatedFields, retainedFragmentType, getRetainedFragmentMethodSpec);
-        MethodSpec retainMethodSpec = createRetainMethodSpec(classWithAnnotations, annotatedFields, retainedFragmentType, getRetainedFragmentMethodSpec);
-        MethodSpec clearMethodSpec = createClearMethodSpec(classWithAnnotations, annotatedFields, retainedFragmentType, getRetainedFragmentMethodSpec);
+    /**
+     * @return the JSON object describing the retained fields of the class
+     */
+    private String createReportEntry(TypeElement classWithAnnotations, Set<Element> annotatedFields) {
+        String holder;
+        if (useViewModel(classWithAnnotations)) {
+            holder = "viewmodel";
+        } else if (useSlots(classWithAnnotations)) {
+            holder = "compact";
+        } else {
+            holder = sharedHolder ? "shared" : "fragment";
+        }
+
+        TypeElement superType = getSuperclassWithLeash(classWithAnnotations, roundFields.keySet());
+        StringBuilder fields = new StringBuilder();
+        int shallowSize = 0;
+        for (Element field : annotatedFields) {
+            int fieldSize = getShallowSize(field.asType());
+            shallowSize += fieldSize;
+            fields.append(fields.length() > 0 ? ",\n" : "")
+                    .append("        {\"name\": ").append(toJson(field.getSimpleName().toString()))
+                    .append(", \"type\": ").append(toJson(field.asType().toString()))
+                    .append(", \"policy\": ").append(toJson(getPolicy(field).name()))
+                    .append(", \"persist\": ").append(field.getAnnotation(Retain.class).persist())
+                    .append(", \"shallowSize\": ").append(fieldSize)
+                    .append("}");
+        }
+
+        return "    {\n"
+                + "      \"host\": " + toJson(classWithAnnotations.getQualifiedName().toString()) + ",\n"
+                + (superType != null ? "      \"superclass\": " + toJson(superType.getQualifiedName().toString()) + ",\n" : "")
+                + "      \"holder\": " + toJson(holder) + ",\n"
+                + "      \"retainedFields\": " + countRetainedFields(classWithAnnotations) + ",\n"
+                + "      \"shallowSize\": " + shallowSize + ",\n"
+                + "      \"fields\": [\n" + fields + "\n      ]\n"
+                + "    }";
+    }
+
+    private void writeReportFile() throws IOException {
+        StringBuilder report = new StringBuilder("{\n  \"hosts\": [\n");
+        int i = 0;
+        for (String entry : reportEntries.values()) {
+            report.append(i++ > 0 ? ",\n" : "").append(entry);
+        }
+
+        report.append("\n  ]\n}\n");
+        FileObject file = filer.createResource(StandardLocation.SOURCE_OUTPUT, "", reportName,
+                reportElements.toArray(new Element[reportElements.size()]));
+        try (Writer writer = file.openWriter()) {
+            writer.write(report.toString());
+        }
+    }
+
+    /**
+     * @return the estimated number of bytes the field takes in the holder, the objects
+     * referenced by the field are not known at compile time
+     */
+    private int getShallowSize(TypeMirror type) {
+        switch (type.getKind()) {
+            case LONG:
+            case DOUBLE:
+                return 8;
+            case INT:
+            case FLOAT:
+                return 4;
+            case SHORT:
+            case CHAR:
+                return 2;
+            case BYTE:
+            case BOOLEAN:
+                return 1;
+            default:
+                return REFERENCE_SIZE;
+        }
+    }
+
+    private static String toJson(String value) {
+        StringBuilder json = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+
+        return json.append('"').toString();
+    }
+
+    private void writeJavaFile(TypeElement classWithAnnotations, Set<Element> annotatedFields, ClassName superclassLeash) throws IOException {
+        TypeSpec retainedDataSpec;
+        ClassName retainedDataType;
+        MethodSpec getRetainedDataMethodSpec;
+        if (useViewModel(classWithAnnotations)) {
+            retainedDataSpec = createRetainedViewModelSpec(classWithAnnotations, annotatedFields);
+            retainedDataType = ClassName.bestGuess(retainedDataSpec.name);
+            getRetainedDataMethodSpec = createGetRetainedViewModelMethodSpec(retainedDataType);
+        } else if (compactHolder) {
+            retainedDataSpec = null;
+            retainedDataType = ClassName.get(RetainedSlots.class);
+            getRetainedDataMethodSpec = createGetRetainedSlotsMethodSpec(classWithAnnotations, annotatedFields);
+        } else if (sharedHolder) {
+            retainedDataSpec = createRetainedDataSpec(classWithAnnotations, annotatedFields);
+            retainedDataType = ClassName.bestGuess(retainedDataSpec.name);
+            getRetainedDataMethodSpec = createGetRetainedDataMethodSpec(classWithAnnotations, retainedDataType);
+        } else {
+            retainedDataSpec = createRetainedFragmentSpec(classWithAnnotations, annotatedFields);
+            retainedDataType = ClassName.bestGuess(retainedDataSpec.name);
+            getRetainedDataMethodSpec = createGetRetainedFragmentMethodSpec(classWithAnnotations, retainedDataType);
+        }
+
+        MethodSpec restoreMethodSpec = createRestoreMethodSpec(classWithAnnotations, annotatedFields, superclassLeash, retainedDataType, getRetainedDataMethodSpec);
+        MethodSpec retainMethodSpec = createRetainMethodSpec(classWithAnnotations, annotatedFields, superclassLeash, retainedDataType, getRetainedDataMethodSpec);
+        MethodSpec clearMethodSpec = createClearMethodSpec(classWithAnnotations, annotatedFields, superclassLeash, retainedDataType, getRetainedDataMethodSpec);
+        if (trace) {
+            restoreMethodSpec = addTraceSection(restoreMethodSpec, classWithAnnotations);
+            retainMethodSpec = addTraceSection(retainMethodSpec, classWithAnnotations);
+            clearMethodSpec = addTraceSection(clearMethodSpec, classWithAnnotations);
+            getRetainedDataMethodSpec = addTraceSection(getRetainedDataMethodSpec, classWithAnnotations);
+        }
 
         MethodSpec ctor = MethodSpec.constructorBuilder()
                 .addModifiers(Modifier.PRIVATE)
                 .build();
 
-        TypeSpec leash = TypeSpec.classBuilder(classWithAnnotations.getSimpleName() + Leash.SUFFIX)
+        TypeSpec binderSpec = createBinderSpec(classWithAnnotations);
+
+        TypeSpec.Builder leashBuilder = TypeSpec.classBuilder(getLeashClass(classWithAnnotations).simpleName())
                 .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
-                .addMethod(ctor)
+                .addOriginatingElement(classWithAnnotations);
+        if (!sharedHolder && !useViewModel(classWithAnnotations)) {
+            TypeName holderCacheType = ParameterizedTypeName.get(ClassName.get(HolderCache.class), retainedDataType);
+            leashBuilder.addField(FieldSpec.builder(holderCacheType, "HOLDER_CACHE", Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                    .initializer("new $T<>()", HolderCache.class)
+                    .build());
+        }
+
+        for (Element field : annotatedFields) {
+            ExecutableElement resultMethod = getResultMethod(classWithAnnotations, field);
+            if (resultMethod != null) {
+                leashBuilder.addField(createResultReceiverFieldSpec(classWithAnnotations, field, resultMethod));
+            }
+        }
+
+        leashBuilder.addMethod(ctor)
                 .addMethod(restoreMethodSpec)
                 .addMethod(retainMethodSpec)
-                .addMethod(clearMethodSpec)
-                .addMethod(getRetainedFragmentMethodSpec)
-                .addType(retainedFragmentSpec)
-                .build();
+                .addMethod(clearMethodSpec);
+        if (persists(classWithAnnotations)) {
+            addBundleMethodSpecs(leashBuilder, classWithAnnotations, annotatedFields);
+        }
+
+        leashBuilder.addMethod(getRetainedDataMethodSpec)
+                .addType(binderSpec);
+        if (retainedDataSpec != null) {
+            leashBuilder.addType(retainedDataSpec);
+        }
+
+        TypeSpec leash = leashBuilder.build();
 
         JavaFile.builder(ClassName.get(classWithAnnotations).packageName(), leash)
                 .build().writeTo(filer);
     }
 
+    private void writeIndexFile(Set<TypeElement> classesWithAnnotations) throws IOException {
+        ClassName indexType = ClassName.bestGuess(indexClassName);
+        TypeName classType = ParameterizedTypeName.get(ClassName.get(Class.class), WildcardTypeName.subtypeOf(Object.class));
+        TypeName binderType = ParameterizedTypeName.get(ClassName.get(LeashBinder.class), WildcardTypeName.subtypeOf(Object.class));
+        TypeName mapType = ParameterizedTypeName.get(ClassName.get(Map.class), classType, ClassName.get(Integer.class));
+
+        MethodSpec.Builder ctorBuilder = MethodSpec.constructorBuilder()
+                .addModifiers(Modifier.PUBLIC);
+        MethodSpec.Builder getBinderBuilder = MethodSpec.methodBuilder("getBinder")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(classType, "hostClass")
+                .returns(binderType)
+                .addStatement("$T host = hosts.get(hostClass)", Integer.class)
+                .beginControlFlow("if (host == null)")
+                .addStatement("return null")
+                .endControlFlow()
+                .beginControlFlow("switch (host)");
+
+        TypeSpec.Builder indexBuilder = TypeSpec.classBuilder(indexType.simpleName());
+        int host = 0;
+        for (TypeElement classWithAnnotations : classesWithAnnotations) {
+            indexBuilder.addOriginatingElement(classWithAnnotations);
+            if (!isPublic(classWithAnnotations)) {
+                // the index can not reference the class, its binder will be created via reflection
+                continue;
+            }
+
+            ctorBuilder.addStatement("hosts.put($T.class, $L)", ClassName.get(classWithAnnotations), host);
+            getBinderBuilder.addCode("case $L:\n$>", host)
+                    .addStatement("return new $T()", getBinderClass(classWithAnnotations))
+                    .addCode("$<");
+            host++;
+        }
+
+        getBinderBuilder.addCode("default:\n$>")
+                .addStatement("return null")
+                .addCode("$<")
+                .endControlFlow();
+
+        TypeSpec index = indexBuilder
+                .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+                .addSuperinterface(LeashIndex.class)
+                .addField(FieldSpec.builder(mapType, "hosts", Modifier.PRIVATE, Modifier.FINAL)
+                        .initializer("new $T<>($L)", HashMap.class, Math.max(host * 2, 1))
+                        .build())
+                .addMethod(ctorBuilder.build())
+                .addMethod(getBinderBuilder.build())
+                .build();
+
+        JavaFile.builder(indexType.packageName(), index)
+                .build().writeTo(filer);
+    }
+
+    private TypeSpec createBinderSpec(TypeElement classWithAnnotations) {
+        ClassName leashType = getLeashClass(classWithAnnotations);
+        TypeName hostType = TypeName.get(classWithAnnotations.asType());
+
+        boolean persists = persists(classWithAnnotations);
+        TypeSpec.Builder builder = TypeSpec.classBuilder(getBinderClass(classWithAnnotations).simpleName())
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                .addSuperinterface(ParameterizedTypeName.get(ClassName.get(persists ? PersistingBinder.class : LeashBinder.class), hostType));
+
+        for (String methodName : new String[]{"restore", "retain", "clear"}) {
+            builder.addMethod(MethodSpec.methodBuilder(methodName)
+                    .addAnnotation(Override.class)
+                    .addModifiers(Modifier.PUBLIC)
+                    .addParameter(hostType, "source")
+                    .addStatement("$T.$L(source)", leashType, methodName)
+                    .build());
+        }
+
+        if (persists) {
+            builder.addMethod(MethodSpec.methodBuilder("restore")
+                    .addAnnotation(Override.class)
+                    .addModifiers(Modifier.PUBLIC)
+                    .addParameter(hostType, "source")
+                    .addParameter(BUNDLE, "savedInstanceState")
+                    .addStatement("$T.restore(source, savedInstanceState)", leashType)
+                    .build());
+            builder.addMethod(MethodSpec.methodBuilder("retain")
+                    .addAnnotation(Override.class)
+                    .addModifiers(Modifier.PUBLIC)
+                    .addParameter(hostType, "source")
+                    .addParameter(BUNDLE, "outState")
+                    .addStatement("$T.retain(source, outState)", leashType)
+                    .build());
+        }
+
+        return builder.build();
+    }
+
+    private void addBundleMethodSpecs(TypeSpec.Builder leashBuilder, TypeElement classWithAnnotations, Set<Element> annotatedFields) {
+        TypeName hostType = TypeName.get(classWithAnnotations.asType());
+        String parameterName = typeIsFragment(classWithAnnotations) ? "fragment" : "activity";
+        ClassName superclassLeash = superclassPersists(classWithAnnotations) ? getSuperclassLeash(classWithAnnotations, roundFields.keySet()) : null;
+        String keyPrefix = classWithAnnotations.getQualifiedName() + ".";
+
+        MethodSpec readBundle = createReadBundleMethodSpec(hostType, parameterName, annotatedFields, superclassLeash, keyPrefix);
+        MethodSpec writeBundle = createWriteBundleMethodSpec(hostType, parameterName, annotatedFields, superclassLeash, keyPrefix);
+
+        leashBuilder.addMethod(MethodSpec.methodBuilder("restore")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .addParameter(hostType, parameterName)
+                .addParameter(BUNDLE, "savedInstanceState")
+                .addStatement("$N($L, savedInstanceState)", readBundle, parameterName)
+                .addStatement("restore($L)", parameterName)
+                .build());
+        leashBuilder.addMethod(MethodSpec.methodBuilder("retain")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .addParameter(hostType, parameterName)
+                .addParameter(BUNDLE, "outState")
+                .addStatement("retain($L)", parameterName)
+                .addStatement("$N($L, outState)", writeBundle, parameterName)
+                .build());
+        leashBuilder.addMethod(readBundle);
+        leashBuilder.addMethod(writeBundle);
+    }
+
+    private MethodSpec createReadBundleMethodSpec(TypeName hostType, String parameterName, Set<Element> annotatedFields, ClassName superclassLeash, String keyPrefix) {
+        MethodSpec.Builder builder = MethodSpec.methodBuilder("readBundle")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .addParameter(hostType, parameterName)
+                .addParameter(BUNDLE, "savedInstanceState");
+        if (superclassLeash != null) {
+            builder.addStatement("$T.readBundle($L, savedInstanceState)", superclassLeash, parameterName);
+        }
+
+        List<Element> persistedFields = getPersistedFields(annotatedFields);
+        if (!persistedFields.isEmpty()) {
+            builder.beginControlFlow("if (savedInstanceState != null)");
+            for (Element field : persistedFields) {
+                String name = field.getSimpleName().toString();
+                String bundleType = getBundleType(field.asType());
+                if (typeIsPrimitive(field.asType())) {
+                    builder.addStatement("$L.$L = savedInstanceState.get$L($S, $L.$L)", parameterName, name, bundleType, keyPrefix + name, parameterName, name);
+                } else {
+                    builder.beginControlFlow("if (savedInstanceState.containsKey($S))", keyPrefix + name);
+                    if ("Serializable".equals(bundleType)) {
+                        builder.addStatement("$L.$L = ($T) savedInstanceState.getSerializable($S)", parameterName, name, TypeName.get(field.asType()), keyPrefix + name);
+                    } else {
+                        builder.addStatement("$L.$L = savedInstanceState.get$L($S)", parameterName, name, bundleType, keyPrefix + name);
+                    }
+
+                    builder.endControlFlow();
+                }
+            }
+
+            builder.endControlFlow();
+        }
+
+        return builder.build();
+    }
+
+    private MethodSpec createWriteBundleMethodSpec(TypeName hostType, String parameterName, Set<Element> annotatedFields, ClassName superclassLeash, String keyPrefix) {
+        MethodSpec.Builder builder = MethodSpec.methodBuilder("writeBundle")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .addParameter(hostType, parameterName)
+                .addParameter(BUNDLE, "outState");
+        if (superclassLeash != null) {
+            builder.addStatement("$T.writeBundle($L, outState)", superclassLeash, parameterName);
+        }
+
+        List<Element> persistedFields = getPersistedFields(annotatedFields);
+        if (!persistedFields.isEmpty()) {
+            builder.beginControlFlow("if (outState != null)");
+            boolean guarded = false;
+            for (Element field : persistedFields) {
+                String name = field.getSimpleName().toString();
+                String bundleType = getBundleType(field.asType());
+                if (typeIsPrimitive(field.asType())) {
+                    builder.addStatement("outState.put$L($S, $L.$L)", bundleType, keyPrefix + name, parameterName, name);
+                } else {
+                    if (!guarded) {
+                        builder.addStatement("$T guard = $T.start()", PersistGuard.class, PersistGuard.class);
+                        guarded = true;
+                    }
+
+                    builder.beginControlFlow("if (guard.fits($L.$L))", parameterName, name)
+                            .addStatement("outState.put$L($S, $L.$L)", bundleType, keyPrefix + name, parameterName, name)
+                            .endControlFlow();
+                }
+            }
+
+            builder.endControlFlow();
+        }
+
+        return builder.build();
+    }
+
+    private List<Element> getPersistedFields(Set<Element> annotatedFields) {
+        List<Element> persistedFields = new ArrayList<>();
+        for (Element field : annotatedFields) {
+            if (field.getAnnotation(Retain.class).persist()) {
+                persistedFields.add(field);
+            }
+        }
+
+        return persistedFields;
+    }
+
+    /**
+     * @return the suffix of the Bundle methods for the given type, e.g. {@code Int} for
+     * {@code putInt}, or null if the type can't be put into a Bundle
+     */
+    private String getBundleType(TypeMirror type) {
+        if (typeIsPrimitive(type)) {
+            return getPrimitiveBundleType(type.getKind());
+        } else if (type.getKind() == TypeKind.ARRAY) {
+            TypeMirror componentType = ((ArrayType) type).getComponentType();
+            if (typeIsPrimitive(componentType)) {
+                return getPrimitiveBundleType(componentType.getKind()) + "Array";
+            } else if (TypeName.get(componentType).equals(ClassName.get(String.class))) {
+                return "StringArray";
+            }
+        } else if (type.getKind() == TypeKind.DECLARED) {
+            if (TypeName.get(type).equals(ClassName.get(String.class))) {
+                return "String";
+            } else if (isAssignable(type, "android.os.Parcelable")) {
+                return "Parcelable";
+            } else if (isAssignable(type, "java.io.Serializable")) {
+                return "Serializable";
+            }
+        }
+
+        return null;
+    }
+
+    private String getPrimitiveBundleType(TypeKind kind) {
+        String name = kind.name();
+        return name.charAt(0) + name.substring(1).toLowerCase(Locale.US);
+    }
+
     private TypeSpec createRetainedFragmentSpec(TypeElement classWithAnnotations, Set<Element> annotatedFields) {
         MethodSpec ctor = MethodSpec.constructorBuilder()
                 .addModifiers(Modifier.PUBLIC)
                 .addCode("setRetainInstance(true);")
                 .build();
 
-        ArrayList<FieldSpec> fieldSpecs = new ArrayList<>(annotatedFields.size());
+        return TypeSpec.classBuilder(classWithAnnotations.getSimpleName() + "RetainedDataFragment")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .superclass(getFragmentClass(classWithAnnotations))
+                .addFields(createRetainedFieldSpecs(annotatedFields))
+                .addMethod(ctor)
+                .build();
+    }
+
+    private TypeSpec createRetainedDataSpec(TypeElement classWithAnnotations, Set<Element> annotatedFields) {
+        return TypeSpec.classBuilder(classWithAnnotations.getSimpleName() + "RetainedData")
+                .addModifiers(Modifier.STATIC)
+                .addFields(createRetainedFieldSpecs(annotatedFields))
+                .build();
+    }
+
+    private TypeSpec createRetainedViewModelSpec(TypeElement classWithAnnotations, Set<Element> annotatedFields) {
+        // public, the ViewModelProvider creates the instance via reflection
+        return TypeSpec.classBuilder(classWithAnnotations.getSimpleName() + "RetainedData")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .superclass(VIEW_MODEL)
+                .addFields(createRetainedFieldSpecs(annotatedFields))
+                .build();
+    }
+
+    private List<FieldSpec> createRetainedFieldSpecs(Set<Element> annotatedFields) {
+        ArrayList<FieldSpec> fieldSpecs = new ArrayList<>(annotatedFields.size() + 1);
         for (Element field : annotatedFields) {
-            FieldSpec fieldSpec = FieldSpec.builder(TypeName.get(field.asType()), field.getSimpleName().toString())
+            TypeName fieldType = TypeName.get(field.asType());
+            if (isReferenced(field)) {
+                fieldType = ParameterizedTypeName.get(ClassName.get(Reference.class), fieldType);
+            }
+
+            FieldSpec fieldSpec = FieldSpec.builder(fieldType, field.getSimpleName().toString())
                     .build();
             fieldSpecs.add(fieldSpec);
         }
 
         FieldSpec hasBeenRetained = FieldSpec.builder(TypeName.BOOLEAN, "hasBeenRetained").build();
         fieldSpecs.add(hasBeenRetained);
-
-        return TypeSpec.classBuilder(classWithAnnotations.getSimpleName() + "RetainedDataFragment")
-                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
-                .superclass(getFragmentClass(classWithAnnotations))
-                .addFields(fieldSpecs)
-                .addMethod(ctor)
-                .build();
+        return fieldSpecs;
     }
 
     private MethodSpec createGetRetainedFragmentMethodSpec(TypeElement classWithAnnotations, ClassName retainedFragmentType) {
+        boolean keyed = typeIsFragment(classWithAnnotations);
         MethodSpec.Builder builder = MethodSpec.methodBuilder("getRetainedFragment")
                 .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
                 .addParameter(getActivityClass(classWithAnnotations), "activity")
-                .returns(retainedFragmentType)
-                .beginControlFlow("if (activity != null)");
+                .returns(retainedFragmentType);
+        if (keyed) {
+            builder.addParameter(String.class, "hostKey");
+        }
+
+        if (keyed) {
+            // no tag or slot for an unknown Fragment instance
+            builder.beginControlFlow("if (activity != null && hostKey != null)");
+        } else {
+            builder.beginControlFlow("if (activity != null)");
+        }
 
         addGetFragmentManagerSnippet(builder, classWithAnnotations);
 
-        builder.beginControlFlow("if (fm != null)")
-                .addStatement("Fragment retainedFragment = fm.findFragmentByTag($S)", retainedFragmentType.simpleName())
-                .beginControlFlow("if (retainedFragment == null)")
-                .addStatement("retainedFragment = new $T()", retainedFragmentType)
-                .addStatement("fm.beginTransaction().add(retainedFragment, $S).commit()", retainedFragmentType.simpleName())
+        builder.beginControlFlow("if (fm != null)");
+        if (keyed) {
+            builder.addStatement("$T cachedFragment = HOLDER_CACHE.get(fm, hostKey)", retainedFragmentType);
+        } else {
+            builder.addStatement("$T cachedFragment = HOLDER_CACHE.get(fm)", retainedFragmentType);
+        }
+
+        ClassName hostType = ClassName.get(classWithAnnotations);
+        builder.beginControlFlow("if (cachedFragment != null)")
+                .addStatement("$T.holderLookup($T.class, true)", LeashMetrics.class, hostType)
+                .addStatement("return cachedFragment")
                 .endControlFlow()
-                .beginControlFlow("if (retainedFragment instanceof $T)", retainedFragmentType)
-                .addStatement("return ($T) retainedFragment", retainedFragmentType)
+                .addStatement("$T.holderLookup($T.class, false)", LeashMetrics.class, hostType);
+        if (keyed) {
+            builder.addStatement("String tag = $S + hostKey", retainedFragmentType.simpleName())
+                    .addStatement("Fragment retainedFragment = fm.findFragmentByTag(tag)")
+                    .beginControlFlow("if (retainedFragment == null)")
+                    .addStatement("retainedFragment = new $T()", retainedFragmentType)
+                    .addStatement("$T.add(fm, retainedFragment, tag)", HolderFragments.class)
+                    .addStatement("$T.holderCreated($T.class, true)", LeashMetrics.class, hostType)
+                    .endControlFlow()
+                    .beginControlFlow("if (retainedFragment instanceof $T)", retainedFragmentType)
+                    .addStatement("HOLDER_CACHE.put(fm, hostKey, ($T) retainedFragment)", retainedFragmentType);
+        } else {
+            builder.addStatement("Fragment retainedFragment = fm.findFragmentByTag($S)", retainedFragmentType.simpleName())
+                    .beginControlFlow("if (retainedFragment == null)")
+                    .addStatement("retainedFragment = new $T()", retainedFragmentType)
+                    .addStatement("$T.add(fm, retainedFragment, $S)", HolderFragments.class, retainedFragmentType.simpleName())
+                    .addStatement("$T.holderCreated($T.class, true)", LeashMetrics.class, hostType)
+                    .endControlFlow()
+                    .beginControlFlow("if (retainedFragment instanceof $T)", retainedFragmentType)
+                    .addStatement("HOLDER_CACHE.put(fm, ($T) retainedFragment)", retainedFragmentType);
+        }
+
+        builder.addStatement("return ($T) retainedFragment", retainedFragmentType)
                 .endControlFlow()
                 .endControlFlow()
                 .endControlFlow()
@@ -187,81 +1061,448 @@ public class LeashAnnotationProcessor extends AbstractProcessor {
         return builder.build();
     }
 
-    private MethodSpec createRetainMethodSpec(TypeElement classWithAnnotations, Set<Element> annotatedFields, ClassName retainedFragmentType, MethodSpec getRetainedFragmentMethodSpec) {
+    private MethodSpec createGetRetainedDataMethodSpec(TypeElement classWithAnnotations, ClassName retainedDataType) {
+        boolean keyed = typeIsFragment(classWithAnnotations);
+        String slotKey = classWithAnnotations.getQualifiedName().toString();
+        MethodSpec.Builder builder = MethodSpec.methodBuilder("getRetainedData")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addParameter(getActivityClass(classWithAnnotations), "activity")
+                .returns(retainedDataType);
+        if (keyed) {
+            builder.addParameter(String.class, "hostKey");
+        }
+
+        if (keyed) {
+            // no tag or slot for an unknown Fragment instance
+            builder.beginControlFlow("if (activity != null && hostKey != null)");
+        } else {
+            builder.beginControlFlow("if (activity != null)");
+        }
+        if (storeField != null) {
+            builder.addStatement("$T holder = $T.$L.get(activity, $T.class)", RetainedHolder.class, RetainedHolders.class, storeField, ClassName.get(classWithAnnotations));
+        } else {
+            builder.addStatement("$T holder = $T.get(activity, $T.class)", RetainedHolder.class, RetainedHolders.class, ClassName.get(classWithAnnotations));
+        }
+
+        builder                .beginControlFlow("if (holder != null)");
+        if (keyed) {
+            builder.addStatement("Object retainedData = holder.get($S, hostKey)", slotKey)
+                    .beginControlFlow("if (retainedData == null)")
+                    .addStatement("retainedData = new $T()", retainedDataType)
+                    .addStatement("holder.put($S, hostKey, retainedData)", slotKey);
+        } else {
+            builder.addStatement("Object retainedData = holder.get($S)", slotKey)
+                    .beginControlFlow("if (retainedData == null)")
+                    .addStatement("retainedData = new $T()", retainedDataType)
+                    .addStatement("holder.put($S, retainedData)", slotKey);
+        }
+
+        return builder.endControlFlow()
+                .beginControlFlow("if (retainedData instanceof $T)", retainedDataType)
+                .addStatement("return ($T) retainedData", retainedDataType)
+                .endControlFlow()
+                .endControlFlow()
+                .endControlFlow()
+                .addStatement("return null")
+                .build();
+    }
+
+    private MethodSpec createGetRetainedViewModelMethodSpec(ClassName retainedDataType) {
+        return MethodSpec.methodBuilder("getRetainedData")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addParameter(VIEW_MODEL_STORE_OWNER, "owner")
+                .returns(retainedDataType)
+                .beginControlFlow("if (owner != null)")
+                .addStatement("return new $T(owner.getViewModelStore(), new $T()).get($T.class)",
+                        VIEW_MODEL_PROVIDER, VIEW_MODEL_PROVIDER.nestedClass("NewInstanceFactory"), retainedDataType)
+                .endControlFlow()
+                .addStatement("return null")
+                .build();
+    }
+
+    private MethodSpec createGetRetainedSlotsMethodSpec(TypeElement classWithAnnotations, Set<Element> annotatedFields) {
+        boolean keyed = typeIsFragment(classWithAnnotations);
+        String slotKey = classWithAnnotations.getQualifiedName().toString();
+        int primCount = 0;
+        for (Element field : annotatedFields) {
+            if (typeIsPrimitive(field.asType())) {
+                primCount++;
+            }
+        }
+
+        MethodSpec.Builder builder = MethodSpec.methodBuilder("getRetainedData")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addParameter(getActivityClass(classWithAnnotations), "activity")
+                .returns(RetainedSlots.class);
+        if (keyed) {
+            builder.addParameter(String.class, "hostKey");
+        }
+
+        if (keyed) {
+            // no tag or slot for an unknown Fragment instance
+            builder.beginControlFlow("if (activity != null && hostKey != null)");
+        } else {
+            builder.beginControlFlow("if (activity != null)");
+        }
+        if (storeField != null) {
+            builder.addStatement("$T holder = $T.$L.get(activity, $T.class)", RetainedHolder.class, RetainedHolders.class, storeField, ClassName.get(classWithAnnotations));
+        } else {
+            builder.addStatement("$T holder = $T.get(activity, $T.class)", RetainedHolder.class, RetainedHolders.class, ClassName.get(classWithAnnotations));
+        }
+
+        builder.beginControlFlow("if (holder != null)");
+        if (keyed) {
+            builder.addStatement("return $T.of(holder, $S, hostKey, $L, $L)", RetainedSlots.class, slotKey, annotatedFields.size() - primCount, primCount);
+        } else {
+            builder.addStatement("return $T.of(holder, $S, $L, $L)", RetainedSlots.class, slotKey, annotatedFields.size() - primCount, primCount);
+        }
+
+        return builder.endControlFlow()
+                .endControlFlow()
+                .addStatement("return null")
+                .build();
+    }
+
+    private MethodSpec createRetainMethodSpec(TypeElement classWithAnnotations, Set<Element> annotatedFields, ClassName superclassLeash, ClassName retainedFragmentType, MethodSpec getRetainedFragmentMethodSpec) {
+        String retainedVariable = getRetainedVariable(classWithAnnotations);
         MethodSpec.Builder builder = MethodSpec.methodBuilder("retain")
                 .addModifiers(Modifier.PUBLIC, Modifier.STATIC);
 
-        String methodParam = addGetRetainedFragmentSnippet(builder, classWithAnnotations, retainedFragmentType, getRetainedFragmentMethodSpec);
+        String methodParam = addGetRetainedFragmentSnippet(builder, "retain", classWithAnnotations, superclassLeash, retainedFragmentType, getRetainedFragmentMethodSpec);
 
-        builder.beginControlFlow("if (retainedFragment != null)");
-        for (Element field : annotatedFields) {
-            builder.addStatement("retainedFragment.$L = $L.$L", field.getSimpleName().toString(), methodParam, field.getSimpleName().toString());
+        builder.beginControlFlow("if ($L != null)", retainedVariable);
+        if (useSlots(classWithAnnotations)) {
+            addRetainSlotsSnippet(builder, classWithAnnotations, annotatedFields, retainedVariable, methodParam);
+        } else {
+            for (Element field : annotatedFields) {
+                String name = field.getSimpleName().toString();
+                if (isBudgeted(field)) {
+                    builder.addStatement("$L.$L = $T.strong($L.$L, $L.$L, $L)", retainedVariable, name, RetainedReferences.class,
+                            retainedVariable, name, methodParam, name, getPriority(field));
+                } else if (getPolicy(field) == Retain.Policy.SPILL) {
+                    addSpillStatement(builder, field, retainedVariable + "." + name, getContext(classWithAnnotations, methodParam), methodParam);
+                } else if (isReferenced(field)) {
+                    builder.addStatement("$L.$L = $T.$L($L, $L.$L)", retainedVariable, name, RetainedReferences.class,
+                            getReferenceFactory(field), getContext(classWithAnnotations, methodParam), methodParam, name);
+                } else {
+                    builder.addStatement("$L.$L = $L.$L", retainedVariable, name, methodParam, name);
+                }
+            }
         }
 
-        builder.addStatement("retainedFragment.hasBeenRetained = true");
+        builder.addStatement("$L.hasBeenRetained = true", retainedVariable);
         builder.endControlFlow();
+        addAttachResultsSnippet(builder, classWithAnnotations, annotatedFields, methodParam);
 
         return builder.build();
     }
 
-    private MethodSpec createRestoreMethodSpec(TypeElement classWithAnnotations, Set<Element> annotatedFields, ClassName retainedFragmentType, MethodSpec getRetainedFragmentMethodSpec) {
+    private MethodSpec createRestoreMethodSpec(TypeElement classWithAnnotations, Set<Element> annotatedFields, ClassName superclassLeash, ClassName retainedFragmentType, MethodSpec getRetainedFragmentMethodSpec) {
+        String retainedVariable = getRetainedVariable(classWithAnnotations);
         MethodSpec.Builder builder = MethodSpec.methodBuilder("restore")
                 .addModifiers(Modifier.PUBLIC, Modifier.STATIC);
 
-        String methodParam = addGetRetainedFragmentSnippet(builder, classWithAnnotations, retainedFragmentType, getRetainedFragmentMethodSpec);
+        String methodParam = addGetRetainedFragmentSnippet(builder, "restore", classWithAnnotations, superclassLeash, retainedFragmentType, getRetainedFragmentMethodSpec);
 
-        builder.beginControlFlow("if (retainedFragment != null)")
-                .beginControlFlow("if (retainedFragment.hasBeenRetained)");
-        for (Element field : annotatedFields) {
-            builder.addStatement("$L.$L = retainedFragment.$L", methodParam, field.getSimpleName().toString(), field.getSimpleName().toString());
+        builder.beginControlFlow("if ($L != null)", retainedVariable)
+                .beginControlFlow("if ($L.hasBeenRetained)", retainedVariable);
+        if (useSlots(classWithAnnotations)) {
+            addRestoreSlotsSnippet(builder, annotatedFields, retainedVariable, methodParam);
+        } else {
+            for (Element field : annotatedFields) {
+                String name = field.getSimpleName().toString();
+                if (isReferenced(field)) {
+                    // leave the field untouched if the object has been reclaimed
+                    builder.addStatement("$T $LValue = $T.get($L.$L)", TypeName.get(field.asType()), name, RetainedReferences.class, retainedVariable, name)
+                            .beginControlFlow("if ($LValue != null)", name)
+                            .addStatement("$L.$L = $LValue", methodParam, name, name)
+                            .addStatement("$T.fieldsRestored(1)", LeashMetrics.class)
+                            .endControlFlow();
+                } else {
+                    builder.addStatement("$L.$L = $L.$L", methodParam, name, retainedVariable, name);
+                }
+            }
         }
 
+        addFieldsRestoredSnippet(builder, annotatedFields);
         builder.endControlFlow()
                 .endControlFlow();
+        addAttachResultsSnippet(builder, classWithAnnotations, annotatedFields, methodParam);
 
         return builder.build();
     }
 
-    private MethodSpec createClearMethodSpec(TypeElement classWithAnnotations, Set<Element> annotatedFields, ClassName retainedFragmentType, MethodSpec getRetainedFragmentMethodSpec) {
+    private MethodSpec createClearMethodSpec(TypeElement classWithAnnotations, Set<Element> annotatedFields, ClassName superclassLeash, ClassName retainedFragmentType, MethodSpec getRetainedFragmentMethodSpec) {
+        String retainedVariable = getRetainedVariable(classWithAnnotations);
         MethodSpec.Builder builder = MethodSpec.methodBuilder("clear")
                 .addModifiers(Modifier.PUBLIC, Modifier.STATIC);
+        if (typeIsFragment(classWithAnnotations) && !useViewModel(classWithAnnotations) && !sharedHolder) {
+            return createClearHolderFragmentMethodSpec(builder, classWithAnnotations, annotatedFields, superclassLeash, retainedFragmentType);
+        }
+
+        addGetRetainedFragmentSnippet(builder, "clear", classWithAnnotations, superclassLeash, retainedFragmentType, getRetainedFragmentMethodSpec);
+
+        builder.beginControlFlow("if ($L != null)", retainedVariable);
+        if (useSlots(classWithAnnotations)) {
+            builder.addStatement("$L.clear()", retainedVariable);
+        } else {
+            addClearFieldsSnippet(builder, annotatedFields, retainedVariable);
+        }
+
+        if (typeIsFragment(classWithAnnotations) && !useViewModel(classWithAnnotations)) {
+            addRemoveSlotSnippet(builder, classWithAnnotations);
+        }
+
+        builder.endControlFlow();
+
+        return builder.build();
+    }
+
+    /**
+     * Clears and removes the holder Fragment of a Fragment instance, the holders of removed
+     * Fragments would otherwise stay until the Activity is destroyed. Only an existing holder
+     * is looked up, clear must not add a holder Fragment, e.g. from {@code onDestroy()}.
+     */
+    private MethodSpec createClearHolderFragmentMethodSpec(MethodSpec.Builder builder, TypeElement classWithAnnotations, Set<Element> annotatedFields, ClassName superclassLeash, ClassName retainedFragmentType) {
+        String retainedVariable = getRetainedVariable(classWithAnnotations);
+        builder.addParameter(TypeName.get(classWithAnnotations.asType()), "fragment");
+        if (superclassLeash != null) {
+            builder.addStatement("$T.clear(fragment)", superclassLeash);
+        }
 
-        addGetRetainedFragmentSnippet(builder, classWithAnnotations, retainedFragmentType, getRetainedFragmentMethodSpec);
+        builder.beginControlFlow("if (fragment != null)")
+                .addStatement("$T activity = fragment.getActivity()", getActivityClass(classWithAnnotations))
+                .beginControlFlow("if (activity != null)");
+        addGetFragmentManagerSnippet(builder, classWithAnnotations);
+        builder.addStatement("String hostKey = $T.of(fragment)", HostKeys.class)
+                .addStatement("$T $L = $T.find(fm, HOLDER_CACHE, hostKey, $S + hostKey, $T.class)", retainedFragmentType, retainedVariable,
+                        HolderFragments.class, retainedFragmentType.simpleName(), retainedFragmentType)
+                .beginControlFlow("if ($L != null)", retainedVariable);
+        addClearFieldsSnippet(builder, annotatedFields, retainedVariable);
+        builder.addStatement("$T.remove(fm, HOLDER_CACHE, hostKey, $L)", HolderFragments.class, retainedVariable)
+                .endControlFlow()
+                .endControlFlow()
+                .endControlFlow();
 
-        builder.beginControlFlow("if (retainedFragment != null)")
-                .addStatement("retainedFragment.hasBeenRetained = false");
+        return builder.build();
+    }
+
+    private void addClearFieldsSnippet(MethodSpec.Builder builder, Set<Element> annotatedFields, String retainedVariable) {
+        builder.addStatement("$L.hasBeenRetained = false", retainedVariable);
         for (Element field : annotatedFields) {
             if (typeIsPrimitive(field.asType())) {
-                builder.addStatement("retainedFragment.$L = $L", field.getSimpleName().toString(), getPrimitiveDefault(field.asType()));
+                builder.addStatement("$L.$L = $L", retainedVariable, field.getSimpleName().toString(), getPrimitiveDefault(field.asType()));
             } else {
-                builder.addStatement("retainedFragment.$L = null", field.getSimpleName().toString());
+                if (isBudgeted(field)) {
+                    builder.addStatement("$T.release($L.$L)", RetainedReferences.class, retainedVariable, field.getSimpleName().toString());
+                }
+
+                builder.addStatement("$L.$L = null", retainedVariable, field.getSimpleName().toString());
             }
         }
+    }
 
-        builder.endControlFlow();
+    /**
+     * Removes the slot of a Fragment instance from the shared holder on clear.
+     */
+    private void addRemoveSlotSnippet(MethodSpec.Builder builder, TypeElement classWithAnnotations) {
+        String slotKey = classWithAnnotations.getQualifiedName().toString();
+        if (storeField != null) {
+            builder.addStatement("$T.$L.get(activity, $T.class).remove($S, hostKey)", RetainedHolders.class, storeField, ClassName.get(classWithAnnotations), slotKey);
+        } else {
+            builder.addStatement("$T.get(activity, $T.class).remove($S, hostKey)", RetainedHolders.class, ClassName.get(classWithAnnotations), slotKey);
+        }
+    }
 
-        return builder.build();
+    /**
+     * @return the method with its code wrapped in a trace section named after the method and the host class
+     */
+    private MethodSpec addTraceSection(MethodSpec method, TypeElement classWithAnnotations) {
+        return MethodSpec.methodBuilder(method.name)
+                .addAnnotations(method.annotations)
+                .addModifiers(method.modifiers)
+                .addParameters(method.parameters)
+                .returns(method.returnType)
+                .addStatement("$T.beginSection($S)", TRACE, "Leash." + method.name + "(" + classWithAnnotations.getSimpleName() + ")")
+                .beginControlFlow("try")
+                .addCode(method.code)
+                .nextControlFlow("finally")
+                .addStatement("$T.endSection()", TRACE)
+                .endControlFlow()
+                .build();
+    }
+
+    private void addRetainSlotsSnippet(MethodSpec.Builder builder, TypeElement classWithAnnotations, Set<Element> annotatedFields, String retainedVariable, String methodParam) {
+        int refIndex = 0;
+        int primIndex = 0;
+        for (Element field : annotatedFields) {
+            String name = field.getSimpleName().toString();
+            TypeKind kind = field.asType().getKind();
+            if (isBudgeted(field)) {
+                builder.addStatement("$L.refs[$L] = $T.strong(($T) $L.refs[$L], $L.$L, $L)", retainedVariable, refIndex, RetainedReferences.class,
+                        ParameterizedTypeName.get(ClassName.get(Reference.class), WildcardTypeName.subtypeOf(Object.class)),
+                        retainedVariable, refIndex, methodParam, name, getPriority(field));
+                refIndex++;
+            } else if (getPolicy(field) == Retain.Policy.SPILL) {
+                addSpillStatement(builder, field, retainedVariable + ".refs[" + refIndex++ + "]", getContext(classWithAnnotations, methodParam), methodParam);
+            } else if (isReferenced(field)) {
+                builder.addStatement("$L.refs[$L] = $T.$L($L, $L.$L)", retainedVariable, refIndex++, RetainedReferences.class,
+                        getReferenceFactory(field), getContext(classWithAnnotations, methodParam), methodParam, name);
+            } else if (!typeIsPrimitive(field.asType())) {
+                builder.addStatement("$L.refs[$L] = $L.$L", retainedVariable, refIndex++, methodParam, name);
+            } else if (kind == TypeKind.BOOLEAN) {
+                builder.addStatement("$L.prims[$L] = $L.$L ? 1L : 0L", retainedVariable, primIndex++, methodParam, name);
+            } else if (kind == TypeKind.FLOAT) {
+                builder.addStatement("$L.prims[$L] = $T.floatToRawIntBits($L.$L)", retainedVariable, primIndex++, Float.class, methodParam, name);
+            } else if (kind == TypeKind.DOUBLE) {
+                builder.addStatement("$L.prims[$L] = $T.doubleToRawLongBits($L.$L)", retainedVariable, primIndex++, Double.class, methodParam, name);
+            } else {
+                builder.addStatement("$L.prims[$L] = $L.$L", retainedVariable, primIndex++, methodParam, name);
+            }
+        }
+    }
+
+    private void addRestoreSlotsSnippet(MethodSpec.Builder builder, Set<Element> annotatedFields, String retainedVariable, String methodParam) {
+        for (Element field : annotatedFields) {
+            if (isGeneric(field.asType())) {
+                builder.addAnnotation(AnnotationSpec.builder(SuppressWarnings.class)
+                        .addMember("value", "$S", "unchecked")
+                        .build());
+                break;
+            }
+        }
+
+        int refIndex = 0;
+        int primIndex = 0;
+        for (Element field : annotatedFields) {
+            String name = field.getSimpleName().toString();
+            TypeMirror type = field.asType();
+            TypeKind kind = type.getKind();
+            if (isReferenced(field)) {
+                // leave the field untouched if the object has been reclaimed
+                builder.addStatement("$T $LValue = ($T) $T.get(($T) $L.refs[$L])", TypeName.get(type), name, TypeName.get(type),
+                        RetainedReferences.class, ParameterizedTypeName.get(ClassName.get(Reference.class), WildcardTypeName.subtypeOf(Object.class)),
+                        retainedVariable, refIndex++)
+                        .beginControlFlow("if ($LValue != null)", name)
+                        .addStatement("$L.$L = $LValue", methodParam, name, name)
+                        .addStatement("$T.fieldsRestored(1)", LeashMetrics.class)
+                        .endControlFlow();
+            } else if (!typeIsPrimitive(type)) {
+                if (TypeName.get(type).equals(TypeName.OBJECT)) {
+                    builder.addStatement("$L.$L = $L.refs[$L]", methodParam, name, retainedVariable, refIndex++);
+                } else {
+                    builder.addStatement("$L.$L = ($T) $L.refs[$L]", methodParam, name, TypeName.get(type), retainedVariable, refIndex++);
+                }
+            } else if (kind == TypeKind.BOOLEAN) {
+                builder.addStatement("$L.$L = $L.prims[$L] != 0L", methodParam, name, retainedVariable, primIndex++);
+            } else if (kind == TypeKind.FLOAT) {
+                builder.addStatement("$L.$L = $T.intBitsToFloat((int) $L.prims[$L])", methodParam, name, Float.class, retainedVariable, primIndex++);
+            } else if (kind == TypeKind.DOUBLE) {
+                builder.addStatement("$L.$L = $T.longBitsToDouble($L.prims[$L])", methodParam, name, Double.class, retainedVariable, primIndex++);
+            } else if (kind == TypeKind.LONG) {
+                builder.addStatement("$L.$L = $L.prims[$L]", methodParam, name, retainedVariable, primIndex++);
+            } else {
+                builder.addStatement("$L.$L = ($T) $L.prims[$L]", methodParam, name, TypeName.get(type), retainedVariable, primIndex++);
+            }
+        }
     }
 
-    private String addGetRetainedFragmentSnippet(MethodSpec.Builder builder, TypeElement classWithAnnotations, ClassName retainedFragmentType, MethodSpec getRetainedFragmentMethodSpec) {
-        String parameterName;
-        if (typeIsFragment(classWithAnnotations)) {
-            parameterName = "fragment";
-            builder.addParameter(TypeName.get(classWithAnnotations.asType()), parameterName);
+    /**
+     * Reports the fields that are always restored, referenced fields are reported
+     * when their object has not been reclaimed.
+     */
+    private void addFieldsRestoredSnippet(MethodSpec.Builder builder, Set<Element> annotatedFields) {
+        int restoredFields = 0;
+        for (Element field : annotatedFields) {
+            if (!isReferenced(field)) {
+                restoredFields++;
+            }
+        }
+
+        if (restoredFields > 0) {
+            builder.addStatement("$T.fieldsRestored($L)", LeashMetrics.class, restoredFields);
+        }
+    }
+
+    private String addGetRetainedFragmentSnippet(MethodSpec.Builder builder, String methodName, TypeElement classWithAnnotations, ClassName superclassLeash, ClassName retainedFragmentType, MethodSpec getRetainedFragmentMethodSpec) {
+        String retainedVariable = getRetainedVariable(classWithAnnotations);
+        String parameterName = typeIsFragment(classWithAnnotations) ? "fragment" : "activity";
+        builder.addParameter(TypeName.get(classWithAnnotations.asType()), parameterName);
+        if (superclassLeash != null) {
+            builder.addStatement("$T.$L($L)", superclassLeash, methodName, parameterName);
+        }
+
+        if (typeIsFragment(classWithAnnotations) && !useViewModel(classWithAnnotations)) {
             builder.addStatement("$T activity = null", getActivityClass(classWithAnnotations))
+                    .addStatement("String hostKey = null")
                     .beginControlFlow("if ($L != null)", parameterName)
                     .addStatement("activity = $L.getActivity()", parameterName)
+                    .addStatement("hostKey = $T.of($L)", HostKeys.class, parameterName)
                     .endControlFlow()
-                    .addStatement("$T retainedFragment = $N(activity)", retainedFragmentType, getRetainedFragmentMethodSpec);
+                    .addStatement("$T $L = $N(activity, hostKey)", retainedFragmentType, retainedVariable, getRetainedFragmentMethodSpec);
         } else {
-            parameterName = "activity";
-            builder.addParameter(TypeName.get(classWithAnnotations.asType()), parameterName);
-            builder.addStatement("$T retainedFragment = $N($L)", retainedFragmentType, getRetainedFragmentMethodSpec, parameterName);
+            builder.addStatement("$T $L = $N($L)", retainedFragmentType, retainedVariable, getRetainedFragmentMethodSpec, parameterName);
         }
 
         return parameterName;
     }
 
+    private void addAttachResultsSnippet(MethodSpec.Builder builder, TypeElement classWithAnnotations, Set<Element> annotatedFields, String methodParam) {
+        for (Element field : annotatedFields) {
+            if (getResultMethod(classWithAnnotations, field) != null) {
+                builder.addStatement("$T.attach($L, $L.$L, $L)", RetainedResults.class, methodParam, methodParam,
+                        field.getSimpleName(), getResultReceiverName(field));
+            }
+        }
+    }
+
+    private FieldSpec createResultReceiverFieldSpec(TypeElement classWithAnnotations, Element field, ExecutableElement resultMethod) {
+        TypeName hostType = TypeName.get(classWithAnnotations.asType());
+        TypeName receiverType = ParameterizedTypeName.get(ClassName.get(RetainedResultReceiver.class), hostType);
+        TypeMirror resultType = resultMethod.getParameters().get(0).asType();
+        MethodSpec.Builder onResultBuilder = MethodSpec.methodBuilder("onResult")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(hostType, "host")
+                .addParameter(ParameterizedTypeName.get(ClassName.get(Future.class), WildcardTypeName.subtypeOf(Object.class)), "result");
+        if (isGeneric(resultType)) {
+            onResultBuilder.addAnnotation(AnnotationSpec.builder(SuppressWarnings.class)
+                    .addMember("value", "$S", "unchecked")
+                    .build());
+        }
+
+        onResultBuilder.addStatement("host.$L(($T) result)", resultMethod.getSimpleName(), TypeName.get(resultType));
+        TypeSpec receiver = TypeSpec.anonymousClassBuilder("")
+                .addSuperinterface(receiverType)
+                .addMethod(onResultBuilder.build())
+                .build();
+
+        return FieldSpec.builder(receiverType, getResultReceiverName(field), Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$L", receiver)
+                .build();
+    }
+
+    private ExecutableElement getResultMethod(TypeElement classWithAnnotations, Element field) {
+        Map<Element, ExecutableElement> methodsByField = roundResultMethods.get(classWithAnnotations);
+        return methodsByField != null ? methodsByField.get(field) : null;
+    }
+
+    /**
+     * @return the name of the receiver constant, e.g. {@code LOAD_ITEMS_RESULT} for the field {@code loadItems}
+     */
+    private String getResultReceiverName(Element field) {
+        StringBuilder name = new StringBuilder();
+        for (char c : field.getSimpleName().toString().toCharArray()) {
+            if (Character.isUpperCase(c) && name.length() > 0) {
+                name.append('_');
+            }
+
+            name.append(Character.toUpperCase(c));
+        }
+
+        return name.append("_RESULT").toString();
+    }
+
     private void addGetFragmentManagerSnippet(MethodSpec.Builder builder, TypeElement classWithAnnotations) {
         if (useSupportLibrary(classWithAnnotations)) {
             builder.addStatement("$T fm = activity.getSupportFragmentManager()", ClassName.get("android.support.v4.app", "FragmentManager"));
@@ -274,6 +1515,36 @@ public class LeashAnnotationProcessor extends AbstractProcessor {
         processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, String.format(message, args), element);
     }
 
+    private String getRetainedVariable(TypeElement type) {
+        return sharedHolder || useViewModel(type) ? "retainedData" : "retainedFragment";
+    }
+
+    private ClassName getLeashClass(TypeElement type) {
+        return ClassName.get(ClassName.get(type).packageName(), type.getSimpleName() + Leash.SUFFIX);
+    }
+
+    private ClassName getBinderClass(TypeElement type) {
+        return getLeashClass(type).nestedClass(Leash.BINDER_SUFFIX.substring(1));
+    }
+
+    private boolean isFrameworkType(TypeElement type) {
+        String name = type.getQualifiedName().toString();
+        return name.startsWith("android.") || name.startsWith("androidx.") || name.startsWith("java.");
+    }
+
+    private boolean isPublic(TypeElement type) {
+        Element element = type;
+        while (element != null && element.getKind() != ElementKind.PACKAGE) {
+            if (!element.getModifiers().contains(Modifier.PUBLIC)) {
+                return false;
+            }
+
+            element = element.getEnclosingElement();
+        }
+
+        return true;
+    }
+
     private ClassName getActivityClass(TypeElement type) {
         if (useSupportLibrary(type)) {
             return ClassName.get("android.support.v4.app", "FragmentActivity");
@@ -291,21 +1562,261 @@ public class LeashAnnotationProcessor extends AbstractProcessor {
     }
 
     private boolean useSupportLibrary(TypeElement type) {
-        return types.isAssignable(type.asType(), elements.getTypeElement("android.support.v4.app.FragmentActivity").asType())
-                || types.isAssignable(type.asType(), elements.getTypeElement("android.support.v4.app.Fragment").asType());
+        return isSubtype(type, "android.support.v4.app.FragmentActivity")
+                || isSubtype(type, "android.support.v4.app.Fragment");
+    }
+
+    private boolean useSlots(TypeElement type) {
+        return compactHolder && !useViewModel(type);
+    }
+
+    private boolean useViewModel(TypeElement type) {
+        return isSubtype(type, VIEW_MODEL_STORE_OWNER.toString());
     }
 
     private boolean typeIsFragment(TypeElement type) {
-        return types.isAssignable(type.asType(), elements.getTypeElement("android.app.Fragment").asType())
-                || types.isAssignable(type.asType(), elements.getTypeElement("android.support.v4.app.Fragment").asType());
+        return isSubtype(type, "android.app.Fragment")
+                || isSubtype(type, "android.support.v4.app.Fragment")
+                || isSubtype(type, "androidx.fragment.app.Fragment");
     }
 
     private boolean typeIsActivityOrFragment(Element type) {
         return type != null &&
-                (types.isAssignable(type.asType(), elements.getTypeElement("android.app.Activity").asType())
-                        || types.isAssignable(type.asType(), elements.getTypeElement("android.app.Fragment").asType())
-                        || types.isAssignable(type.asType(), elements.getTypeElement("android.support.v4.app.FragmentActivity").asType())
-                        || types.isAssignable(type.asType(), elements.getTypeElement("android.support.v4.app.Fragment").asType()));
+                (isSubtype(type, "android.app.Activity")
+                        || isSubtype(type, "android.app.Fragment")
+                        || isSubtype(type, "android.support.v4.app.FragmentActivity")
+                        || isSubtype(type, "android.support.v4.app.Fragment")
+                        || isSubtype(type, "androidx.fragment.app.Fragment"));
+    }
+
+    /**
+     * @return a description of the type, or of one of its type arguments, that references
+     * an Activity, or null if the type doesn't
+     */
+    private String getLeakingType(TypeMirror type) {
+        return findType(type, LEAKING_TYPES, true);
+    }
+
+    /**
+     * @param type         the type of a retained field
+     * @param classNames   the names of the classes to look for
+     * @param innerClasses true to also look for non-static inner classes of an Activity or Fragment
+     * @return a description of the type, or of one of its type arguments, that is a subtype of
+     * one of the classes, or null if there is none
+     */
+    private String findType(TypeMirror type, List<String> classNames, boolean innerClasses) {
+        if (type.getKind() == TypeKind.ARRAY) {
+            return findType(((ArrayType) type).getComponentType(), classNames, innerClasses);
+        } else if (type.getKind() == TypeKind.WILDCARD) {
+            TypeMirror bound = ((WildcardType) type).getExtendsBound();
+            return bound != null ? findType(bound, classNames, innerClasses) : null;
+        } else if (type.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+
+        TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+        for (String className : classNames) {
+            if (isSubtype(element, className)) {
+                return String.format("%s (%s)", element.getSimpleName(), className);
+            }
+        }
+
+        TypeElement outerType = innerClasses ? getOuterType(element) : null;
+        if (outerType != null && typeIsActivityOrFragment(outerType)) {
+            return String.format("%s (non-static inner class of %s)", element.getSimpleName(), outerType.getSimpleName());
+        }
+
+        for (TypeMirror typeArgument : ((DeclaredType) type).getTypeArguments()) {
+            String foundType = findType(typeArgument, classNames, innerClasses);
+            if (foundType != null) {
+                return foundType;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the class whose instance is referenced by instances of an inner or local
+     * class, or null for top level and static nested classes
+     */
+    private TypeElement getOuterType(TypeElement type) {
+        if (!type.getNestingKind().isNested() || type.getModifiers().contains(Modifier.STATIC)
+                || type.getKind() != ElementKind.CLASS) {
+            return null;
+        }
+
+        Element enclosing = type.getEnclosingElement();
+        while (enclosing != null && !(enclosing instanceof TypeElement)) {
+            // a local class in a static method has no outer instance
+            if (enclosing.getModifiers().contains(Modifier.STATIC)) {
+                return null;
+            }
+
+            enclosing = enclosing.getEnclosingElement();
+        }
+
+        return (TypeElement) enclosing;
+    }
+
+    private boolean isSubtype(Element type, String className) {
+        Map<String, Boolean> supertypes = subtypes.get(type);
+        if (supertypes == null) {
+            supertypes = new HashMap<>(16);
+            subtypes.put(type, supertypes);
+        }
+
+        Boolean subtype = supertypes.get(className);
+        if (subtype == null) {
+            subtype = isAssignable(type.asType(), className);
+            supertypes.put(className, subtype);
+        }
+
+        return subtype;
+    }
+
+    private boolean isAssignable(TypeMirror type, String className) {
+        TypeMirror erasedType = getErasedType(className);
+        return erasedType != null && types.isAssignable(type, erasedType);
+    }
+
+    private TypeMirror getErasedType(String className) {
+        if (erasedTypes.containsKey(className)) {
+            return erasedTypes.get(className);
+        }
+
+        // the support library and AndroidX are optional
+        TypeElement typeElement = elements.getTypeElement(className);
+        TypeMirror erasedType = typeElement != null ? types.erasure(typeElement.asType()) : null;
+        erasedTypes.put(className, erasedType);
+        return erasedType;
+    }
+
+    private Retain.Policy getPolicy(Element field) {
+        return field.getAnnotation(Retain.class).policy();
+    }
+
+    private boolean isReferenced(Element field) {
+        return getPolicy(field) != Retain.Policy.STRONG || isBudgeted(field);
+    }
+
+    private boolean isBudgeted(Element field) {
+        return budget && getPolicy(field) == Retain.Policy.STRONG && !typeIsPrimitive(field.asType());
+    }
+
+    private int getPriority(Element field) {
+        return field.getAnnotation(Retain.class).priority();
+    }
+
+    private String getReferenceFactory(Element field) {
+        return getPolicy(field) == Retain.Policy.SOFT ? "soft" : "weak";
+    }
+
+    private void addSpillStatement(MethodSpec.Builder builder, Element field, String target, String context, String methodParam) {
+        String name = field.getSimpleName().toString();
+        TypeMirror codec = getSpillCodec(field);
+        if (codec != null) {
+            builder.addStatement("$L = $T.spill($L, $L.$L, new $T())", target, RetainedReferences.class, context, methodParam, name,
+                    types.erasure(codec));
+        } else {
+            builder.addStatement("$L = $T.spill($L, $L.$L, $T.$L)", target, RetainedReferences.class, context, methodParam, name,
+                    SpillCodecs.class, getSpillCodecConstant(field.asType()));
+        }
+    }
+
+    private TypeMirror getSpillCodec(Element field) {
+        TypeMirror codec;
+        try {
+            // the class is not loaded during annotation processing
+            field.getAnnotation(Retain.class).codec();
+            return null;
+        } catch (MirroredTypeException e) {
+            codec = e.getTypeMirror();
+        }
+
+        // void.class selects the built-in codec of the field type
+        return codec.getKind() == TypeKind.VOID ? null : codec;
+    }
+
+    /**
+     * The generated code instantiates the codec, so it must be a concrete top level or
+     * static nested class.
+     */
+    private boolean hasPublicNoArgConstructor(TypeMirror codec) {
+        Element element = types.asElement(codec);
+        if (element == null || element.getKind() != ElementKind.CLASS || element.getModifiers().contains(Modifier.ABSTRACT)
+                || (element.getEnclosingElement().getKind() != ElementKind.PACKAGE && !element.getModifiers().contains(Modifier.STATIC))) {
+            return false;
+        }
+
+        for (Element member : element.getEnclosedElements()) {
+            if (member.getKind() == ElementKind.CONSTRUCTOR && member.getModifiers().contains(Modifier.PUBLIC)
+                    && ((ExecutableElement) member).getParameters().isEmpty()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return true if the codec is a SpillCodec of the field type or one of its supertypes,
+     * type arguments are erased as the generated code creates the codec as a raw type
+     */
+    private boolean codecAccepts(TypeMirror codec, TypeMirror fieldType) {
+        TypeMirror codecType = getSpillCodecTypeArgument(codec);
+        return codecType == null || types.isAssignable(types.erasure(fieldType), types.erasure(codecType));
+    }
+
+    /**
+     * @return the type argument of the SpillCodec the codec implements, or null if it is raw
+     */
+    private TypeMirror getSpillCodecTypeArgument(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+
+        DeclaredType declaredType = (DeclaredType) type;
+        if (types.isSameType(types.erasure(type), getErasedType(SpillCodec.class.getCanonicalName()))) {
+            return declaredType.getTypeArguments().isEmpty() ? null : declaredType.getTypeArguments().get(0);
+        }
+
+        for (TypeMirror supertype : types.directSupertypes(type)) {
+            if (types.isAssignable(supertype, getErasedType(SpillCodec.class.getCanonicalName()))) {
+                return getSpillCodecTypeArgument(supertype);
+            }
+        }
+
+        return null;
+    }
+
+    private String getSpillCodecConstant(TypeMirror type) {
+        if (type.getKind() == TypeKind.ARRAY) {
+            TypeKind kind = ((ArrayType) type).getComponentType().getKind();
+            if (kind != TypeKind.BOOLEAN && typeIsPrimitive(((ArrayType) type).getComponentType())) {
+                return kind.name() + "_ARRAY";
+            }
+        } else if (types.isSameType(type, getErasedType(ByteBuffer.class.getCanonicalName()))) {
+            return "BYTE_BUFFER";
+        }
+
+        return null;
+    }
+
+    private String getContext(TypeElement classWithAnnotations, String methodParam) {
+        return typeIsFragment(classWithAnnotations) ? methodParam + ".getActivity()" : methodParam;
+    }
+
+    private boolean isGeneric(TypeMirror type) {
+        if (type.getKind() == TypeKind.TYPEVAR) {
+            return true;
+        } else if (type.getKind() == TypeKind.ARRAY) {
+            return isGeneric(((ArrayType) type).getComponentType());
+        } else if (type.getKind() == TypeKind.DECLARED) {
+            return !((DeclaredType) type).getTypeArguments().isEmpty();
+        }
+
+        return false;
     }
 
     private boolean typeIsPrimitive(TypeMirror type) {
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+/**
+ * Binds the annotated fields of a class to their retained values. An implementation is
+ * generated for every class with fields annotated with {@literal @}{@link Retain}.
+ * <p/>
+ * {@link Leash} creates one binder per class and calls it directly on every
+ * retain, restore and clear.
+ *
+ * @param <T> the Activity or Fragment containing the annotated fields
+ * @author rgeldmacher
+ */
+public interface LeashBinder<T> {
+
+    /**
+     * @param source the Activity or Fragment containing the annotated fields
+     * @see Leash#restore(android.app.Activity)
+     */
+    void restore(T source);
+
+    /**
+     * @param source the Activity or Fragment containing the annotated fields
+     * @see Leash#retain(android.app.Activity)
+     */
+    void retain(T source);
+
+    /**
+     * @param source the Activity or Fragment containing the annotated fields
+     * @see Leash#clear(android.app.Activity)
+     */
+    void clear(T source);
+}
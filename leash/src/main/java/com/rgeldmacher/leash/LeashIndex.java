@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+/**
+ * Index of the Leash classes generated for a module. Set the annotation processor option
+ * {@code leash.index} to the fully qualified name of the index class to generate and install
+ * the index on application start:
+ * <p/>
+ * <pre><code>
+ * Leash.addIndex(new MyLeashIndex());
+ * </code></pre>
+ * <p/>
+ * Leash creates the binders of indexed classes directly and only falls back
+ * to reflection for classes that are not contained in any installed index.
+ *
+ * @author rgeldmacher
+ */
+public interface LeashIndex {
+
+    /**
+     * @param hostClass the class containing the annotated fields
+     * @return a new binder for the given class or null if the class is not contained in this index
+     */
+    LeashBinder<?> getBinder(Class<?> hostClass);
+}
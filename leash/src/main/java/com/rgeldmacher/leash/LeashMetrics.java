@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+/**
+ * Reports to the installed {@link MetricsListener}. Without a listener every method
+ * returns after a single field read, so the metrics can stay in release builds.
+ * <p/>
+ * This class is used by the generated code and is not thread safe, it must only
+ * be used on the main thread.
+ *
+ * @author rgeldmacher
+ */
+public final class LeashMetrics {
+
+    static MetricsListener listener;
+
+    private static int restoredFields;
+
+    private LeashMetrics() {
+        // prevent instantiation
+    }
+
+    /**
+     * @param count the number of fields that have been restored
+     */
+    public static void fieldsRestored(int count) {
+        if (listener != null) {
+            restoredFields += count;
+        }
+    }
+
+    /**
+     * @param host the class of the Activity or Fragment whose fields are bound
+     * @param hit  true if the holder has been found in the cache
+     */
+    public static void holderLookup(Class<?> host, boolean hit) {
+        MetricsListener listener = LeashMetrics.listener;
+        if (listener != null) {
+            listener.onHolderLookup(host, hit);
+        }
+    }
+
+    /**
+     * @param host      the class of the Activity or Fragment whose fields are bound
+     * @param committed true if a FragmentTransaction has been committed to add the holder
+     */
+    public static void holderCreated(Class<?> host, boolean committed) {
+        MetricsListener listener = LeashMetrics.listener;
+        if (listener != null) {
+            listener.onHolderCreated(host, committed);
+        }
+    }
+
+    /**
+     * @return the number of fields restored since the last call
+     */
+    static int takeRestoredFields() {
+        int count = restoredFields;
+        restoredFields = 0;
+        return count;
+    }
+}
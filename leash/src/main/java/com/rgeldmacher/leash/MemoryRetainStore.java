@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.app.Activity;
+import android.support.v4.app.FragmentActivity;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the holders in memory, one per Activity class, for as long as the process lives.
+ * The store calls no Android APIs, so the generated code can run on a plain JVM, e.g. in
+ * unit tests and benchmarks.
+ * <p/>
+ * All instances of an Activity class share one holder and holders are never released,
+ * call {@link Leash#clear} to drop the retained objects.
+ *
+ * @author rgeldmacher
+ */
+public final class MemoryRetainStore implements RetainStore {
+
+    private final Map<Class<?>, RetainedHolder> holders = new HashMap<>();
+
+    @Override
+    public RetainedHolder get(Activity activity, Class<?> host) {
+        return getHolder(activity, host);
+    }
+
+    @Override
+    public RetainedHolder get(FragmentActivity activity, Class<?> host) {
+        return getHolder(activity, host);
+    }
+
+    private RetainedHolder getHolder(Activity activity, Class<?> host) {
+        RetainedHolder holder = holders.get(activity.getClass());
+        LeashMetrics.holderLookup(host, holder != null);
+        if (holder == null) {
+            holder = new RetainedHolder();
+            holders.put(activity.getClass(), holder);
+            LeashMetrics.holderCreated(host, false);
+        }
+
+        return holder;
+    }
+
+    Collection<RetainedHolder> getHolders() {
+        return holders.values();
+    }
+}
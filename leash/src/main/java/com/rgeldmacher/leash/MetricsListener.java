@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+/**
+ * Receives the metrics of Leash, e.g. to feed them into a performance dashboard.
+ * Install it with {@link Leash#setMetricsListener(MetricsListener)}.
+ * <p/>
+ * All methods are called on the main thread, while Leash is retaining or restoring,
+ * so implementations should only record the values and return quickly.
+ *
+ * @author rgeldmacher
+ */
+public interface MetricsListener {
+
+    /**
+     * Called after the fields of a host have been restored.
+     *
+     * @param host           the class of the Activity or Fragment
+     * @param durationNanos  the time spent in restore, including superclasses
+     * @param restoredFields the number of fields that have been restored
+     */
+    void onRestore(Class<?> host, long durationNanos, int restoredFields);
+
+    /**
+     * Called after the fields of a host have been retained.
+     *
+     * @param host          the class of the Activity or Fragment
+     * @param durationNanos the time spent in retain, including superclasses
+     */
+    void onRetain(Class<?> host, long durationNanos);
+
+    /**
+     * Called after the retained objects of a host have been cleared.
+     *
+     * @param host          the class of the Activity or Fragment
+     * @param durationNanos the time spent in clear, including superclasses
+     */
+    void onClear(Class<?> host, long durationNanos);
+
+    /**
+     * Called when a holder of retained objects has been looked up.
+     *
+     * @param host the class of the Activity or Fragment whose fields are bound, also when
+     *             it shares the holder of its Activity
+     * @param hit  true if the holder has been found in the cache, false if the
+     *             FragmentManager or the non-configuration instance had to be searched
+     */
+    void onHolderLookup(Class<?> host, boolean hit);
+
+    /**
+     * Called when a new holder of retained objects has been created.
+     *
+     * @param host      the class of the Activity or Fragment whose fields are bound, also
+     *                  when it shares the holder of its Activity
+     * @param committed true if a FragmentTransaction has been committed to add the holder
+     */
+    void onHolderCreated(Class<?> host, boolean committed);
+}
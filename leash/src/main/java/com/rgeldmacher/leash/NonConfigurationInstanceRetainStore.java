@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.app.Activity;
+import android.support.v4.app.FragmentActivity;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Passes the holder of an Activity to its next instance as the non-configuration instance.
+ * This store needs no Fragment and no FragmentTransaction, but the Activity has to hand
+ * the holder over itself:
+ * <pre><code>
+ * public Object onRetainNonConfigurationInstance() {
+ *     return Leash.onRetainNonConfigurationInstance(this);
+ * }
+ * </code></pre>
+ * A FragmentActivity returns it from {@code onRetainCustomNonConfigurationInstance()} instead,
+ * as it keeps its own state in the non-configuration instance. Framework Fragments of a
+ * FragmentActivity find the holder there as well.
+ * Activities that use the non-configuration instance for their own data can't use this store.
+ *
+ * @author rgeldmacher
+ */
+public final class NonConfigurationInstanceRetainStore implements RetainStore {
+
+    private final Map<Activity, RetainedHolder> holders = new WeakHashMap<>();
+
+    @Override
+    public RetainedHolder get(Activity activity, Class<?> host) {
+        if (activity instanceof FragmentActivity) {
+            // e.g. a framework Fragment in a FragmentActivity
+            return get((FragmentActivity) activity, host);
+        }
+
+        RetainedHolder holder = holders.get(activity);
+        LeashMetrics.holderLookup(host, holder != null);
+        if (holder == null) {
+            Object last = activity.getLastNonConfigurationInstance();
+            if (last instanceof RetainedHolder) {
+                holder = (RetainedHolder) last;
+            } else {
+                holder = new RetainedHolder();
+                LeashMetrics.holderCreated(host, false);
+            }
+
+            holders.put(activity, holder);
+        }
+
+        return holder;
+    }
+
+    @Override
+    public RetainedHolder get(FragmentActivity activity, Class<?> host) {
+        RetainedHolder holder = holders.get(activity);
+        LeashMetrics.holderLookup(host, holder != null);
+        if (holder == null) {
+            Object last = activity.getLastCustomNonConfigurationInstance();
+            if (last instanceof RetainedHolder) {
+                holder = (RetainedHolder) last;
+            } else {
+                holder = new RetainedHolder();
+                LeashMetrics.holderCreated(host, false);
+            }
+
+            holders.put(activity, holder);
+        }
+
+        return holder;
+    }
+
+    /**
+     * @param activity the Activity that is about to be recreated
+     * @return the holder to return as the non-configuration instance, or null if the
+     * Activity has no holder
+     */
+    public Object getNonConfigurationInstance(Activity activity) {
+        return holders.get(activity);
+    }
+
+    Collection<RetainedHolder> getHolders() {
+        return holders.values();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.graphics.Bitmap;
+
+import java.lang.ref.Reference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Approximates the shallow and retained sizes of objects for {@link Leash#snapshot()}.
+ * <p/>
+ * The retained size is the sum of the shallow sizes of all objects reachable from a root,
+ * each object counted once. The walk follows the fields and array elements via reflection,
+ * but not the referents of soft and weak references, and stops after
+ * {@value #MAX_OBJECTS} objects. Objects whose fields can't be accessed are sized shallowly.
+ * The pixels of Bitmaps are added to their shallow size.
+ *
+ * @author rgeldmacher
+ */
+final class ObjectSizes {
+
+    static final int MAX_OBJECTS = 10000;
+
+    private static final int OBJECT_HEADER_SIZE = 8;
+    private static final int ARRAY_HEADER_SIZE = 12;
+    private static final int REFERENCE_SIZE = 4;
+    private static final int ALIGNMENT = 8;
+
+    private final Map<Object, Boolean> visited = new IdentityHashMap<>();
+    private final Map<Class<?>, Layout> layouts = new HashMap<>();
+    private boolean truncated;
+
+    /**
+     * @param object the object, may be null
+     * @return the approximate size of the object itself, without the objects it references
+     */
+    long shallowSize(Object object) {
+        if (object == null || object instanceof Class) {
+            return 0L;
+        }
+
+        Class<?> type = object.getClass();
+        long size;
+        if (type.isArray()) {
+            Class<?> componentType = type.getComponentType();
+            int elementSize = componentType.isPrimitive() ? RetainBudget.getElementSize(componentType) : REFERENCE_SIZE;
+            size = align(ARRAY_HEADER_SIZE + (long) elementSize * Array.getLength(object));
+        } else {
+            size = getLayout(type).size;
+        }
+
+        if (object instanceof Bitmap) {
+            size += ((Bitmap) object).getByteCount();
+        }
+
+        return size;
+    }
+
+    /**
+     * Sums the shallow sizes of the objects reachable from the root that have not been
+     * visited by an earlier call, so calls on the same instance count shared objects once.
+     *
+     * @param root the object to start from, may be null
+     * @return the approximate retained size
+     */
+    long retainedSize(Object root) {
+        long size = 0L;
+        Deque<Object> pending = new ArrayDeque<>();
+        push(pending, root);
+        while (!pending.isEmpty()) {
+            Object object = pending.pop();
+            size += shallowSize(object);
+
+            Class<?> type = object.getClass();
+            if (type.isArray()) {
+                if (!type.getComponentType().isPrimitive()) {
+                    for (Object element : (Object[]) object) {
+                        push(pending, element);
+                    }
+                }
+            } else {
+                for (Field field : getLayout(type).references) {
+                    try {
+                        push(pending, field.get(object));
+                    } catch (IllegalAccessException e) {
+                        // not followed, the object is sized shallowly
+                    }
+                }
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @return true if a walk has been stopped after {@value #MAX_OBJECTS} objects
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    private void push(Deque<Object> pending, Object object) {
+        if (object == null || object instanceof Class || visited.containsKey(object)) {
+            return;
+        }
+
+        if (visited.size() >= MAX_OBJECTS) {
+            truncated = true;
+            return;
+        }
+
+        visited.put(object, Boolean.TRUE);
+        pending.push(object);
+    }
+
+    private Layout getLayout(Class<?> type) {
+        Layout layout = layouts.get(type);
+        if (layout == null) {
+            layout = new Layout(type);
+            layouts.put(type, layout);
+        }
+
+        return layout;
+    }
+
+    private static long align(long size) {
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * The size of the instances of a class and their reference fields that can be followed.
+     */
+    private static final class Layout {
+
+        final long size;
+        final List<Field> references = new ArrayList<>();
+
+        Layout(Class<?> type) {
+            long fieldsSize = 0L;
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+
+                    Class<?> fieldType = field.getType();
+                    if (fieldType.isPrimitive()) {
+                        fieldsSize += RetainBudget.getElementSize(fieldType);
+                    } else {
+                        fieldsSize += REFERENCE_SIZE;
+                        // the referents of soft and weak references are not retained
+                        if (c != Reference.class && setAccessible(field)) {
+                            references.add(field);
+                        }
+                    }
+                }
+            }
+
+            size = align(OBJECT_HEADER_SIZE + fieldsSize);
+        }
+
+        private static boolean setAccessible(Field field) {
+            try {
+                field.setAccessible(true);
+                return true;
+            } catch (RuntimeException e) {
+                // e.g. a field of a module that is not open
+                return false;
+            }
+        }
+    }
+}
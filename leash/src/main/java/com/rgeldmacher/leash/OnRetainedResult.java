@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation to receive the result of a {@link java.util.concurrent.Future} that is retained
+ * in a field annotated with {@literal @}{@link Retain}. The method is called on the main
+ * thread with the completed Future, so the work is started only once and its result reaches
+ * the current instance of the Activity or Fragment:
+ * <p/>
+ * <pre><code>
+ * {@literal @}Retain
+ * Future&lt;List&lt;Foo&gt;&gt; load;
+ *
+ * {@literal @}OnRetainedResult("load")
+ * void onLoaded(Future&lt;List&lt;Foo&gt;&gt; load) {
+ *     // load.get() returns without blocking
+ * }
+ * </code></pre>
+ * <p/>
+ * The result is delivered on {@linkplain Leash#restore(android.app.Activity) restore} and
+ * {@linkplain Leash#retain(android.app.Activity) retain} if the Future has completed,
+ * otherwise as soon as it completes if it is a {@link RetainedTask}. A result that
+ * completes while the Activity is being recreated is delivered to the new instance.
+ * Every result is delivered once.
+ *
+ * @author rgeldmacher
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.SOURCE)
+public @interface OnRetainedResult {
+
+    /**
+     * @return the name of the retained field holding the Future
+     */
+    String value();
+}
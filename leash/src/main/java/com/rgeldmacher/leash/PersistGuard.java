@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps the objects persisted to a saved instance state within a size limit, so that the
+ * persisted fields of a single class can't cause a {@code TransactionTooLargeException}.
+ * Objects that don't fit are not persisted and are left untouched on restore. Primitives
+ * are always persisted.
+ * <p/>
+ * Parcelable and Serializable objects are parceled to measure them. Only the sizes of boxed
+ * primitives and enum constants can't change, they are measured once and remembered. Any
+ * other object, e.g. a list, may have grown since it was last persisted and is measured
+ * every time.
+ * <p/>
+ * This class is used by the generated code, you should not need to use it directly.
+ *
+ * @author rgeldmacher
+ * @see Leash#setPersistLimit(int)
+ */
+public final class PersistGuard {
+
+    private static final int DEFAULT_LIMIT = 64 * 1024;
+
+    private static final Sizer PARCEL_SIZER = new Sizer() {
+        @Override
+        public long sizeOf(Object object) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                if (object instanceof Parcelable) {
+                    parcel.writeParcelable((Parcelable) object, 0);
+                } else {
+                    parcel.writeSerializable((Serializable) object);
+                }
+
+                return parcel.dataSize();
+            } finally {
+                parcel.recycle();
+            }
+        }
+    };
+
+    /**
+     * The parceled sizes of boxed primitives by class and of enum constants.
+     */
+    private static final Map<Object, Integer> FIXED_SIZES = new WeakHashMap<>();
+
+    private static int limit = DEFAULT_LIMIT;
+
+    private static Sizer parceledSizer = PARCEL_SIZER;
+
+    private int size;
+
+    private PersistGuard() {
+    }
+
+    /**
+     * @return a guard for one saved instance state
+     */
+    public static PersistGuard start() {
+        return new PersistGuard();
+    }
+
+    static void setLimit(int limit) {
+        PersistGuard.limit = limit;
+    }
+
+    static void setParceledSizer(Sizer sizer) {
+        parceledSizer = sizer != null ? sizer : PARCEL_SIZER;
+        synchronized (FIXED_SIZES) {
+            FIXED_SIZES.clear();
+        }
+    }
+
+    /**
+     * @param value the object to persist
+     * @return true if the object fits into the remaining limit and should be persisted
+     */
+    public boolean fits(Object value) {
+        int valueSize = sizeOf(value);
+        if (size + valueSize > limit) {
+            return false;
+        }
+
+        size += valueSize;
+        return true;
+    }
+
+    private static int sizeOf(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return 2 * ((String) value).length();
+        } else if (value instanceof String[]) {
+            int size = 0;
+            for (String string : (String[]) value) {
+                size += sizeOf(string);
+            }
+
+            return size;
+        } else if (value instanceof boolean[]) {
+            return ((boolean[]) value).length;
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        } else if (value instanceof char[]) {
+            return 2 * ((char[]) value).length;
+        } else if (value instanceof short[]) {
+            return 2 * ((short[]) value).length;
+        } else if (value instanceof int[]) {
+            return 4 * ((int[]) value).length;
+        } else if (value instanceof float[]) {
+            return 4 * ((float[]) value).length;
+        } else if (value instanceof long[]) {
+            return 8 * ((long[]) value).length;
+        } else if (value instanceof double[]) {
+            return 8 * ((double[]) value).length;
+        }
+
+        Object fixedSizeKey = getFixedSizeKey(value);
+        if (fixedSizeKey == null) {
+            return parceledSizeOf(value);
+        }
+
+        synchronized (FIXED_SIZES) {
+            Integer size = FIXED_SIZES.get(fixedSizeKey);
+            if (size == null) {
+                size = parceledSizeOf(value);
+                FIXED_SIZES.put(fixedSizeKey, size);
+            }
+
+            return size;
+        }
+    }
+
+    /**
+     * @return the key of the remembered size, or null if the size of the value may change
+     */
+    private static Object getFixedSizeKey(Object value) {
+        if (value instanceof Enum) {
+            // the name of the constant is parceled
+            return value;
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Boolean
+                || value instanceof Double || value instanceof Float || value instanceof Character
+                || value instanceof Short || value instanceof Byte) {
+            return value.getClass();
+        }
+
+        return null;
+    }
+
+    private static int parceledSizeOf(Object value) {
+        long size = parceledSizer.sizeOf(value);
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+}
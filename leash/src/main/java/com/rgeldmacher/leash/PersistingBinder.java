@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.os.Bundle;
+
+/**
+ * A {@link LeashBinder} of a class with fields annotated with {@code @Retain(persist = true)},
+ * which are additionally saved to and restored from the saved instance state.
+ *
+ * @param <T> the type of the class containing the annotated fields
+ * @author rgeldmacher
+ */
+public interface PersistingBinder<T> extends LeashBinder<T> {
+
+    void restore(T source, Bundle savedInstanceState);
+
+    void retain(T source, Bundle outState);
+}
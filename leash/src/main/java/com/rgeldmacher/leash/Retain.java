@@ -22,10 +22,91 @@ import java.lang.annotation.Target;
 
 /**
  * Annotation to retain the annotated field across Android configuration changes.
+ * <p/>
+ * By default the retained object is held strongly until it is cleared. Set the
+ * {@linkplain #policy() policy} to let the system reclaim large objects under memory pressure:
+ * <p/>
+ * <pre><code>
+ * {@literal @}Retain(policy = Retain.Policy.SOFT)
+ * Bitmap preview;
+ * </code></pre>
+ * <p/>
+ * If the object has been reclaimed the field is left untouched on restore, so the
+ * Activity or Fragment has to recreate it.
+ * <p/>
+ * The annotation is kept in the class files, so that the annotation processor also sees the
+ * retained fields of superclasses from libraries. It is not available at runtime.
  *
  * @author rgeldmacher
  */
 @Target(ElementType.FIELD)
-@Retention(RetentionPolicy.SOURCE)
+@Retention(RetentionPolicy.CLASS)
 public @interface Retain {
+
+    /**
+     * @return how the retained object is referenced, only reference fields support
+     * policies other than {@link Policy#STRONG}
+     */
+    Policy policy() default Policy.STRONG;
+
+    /**
+     * @return the priority of the retained object when the retain budget is exceeded,
+     * objects with a lower priority are evicted first
+     * @see Leash#setRetainBudget(long, Sizer)
+     */
+    int priority() default 0;
+
+    /**
+     * @return true to also save the object to the saved instance state, so that it
+     * survives process death. Only primitives, Strings, primitive arrays, String arrays,
+     * Parcelables and Serializables can be persisted.
+     * @see Leash#retain(android.app.Activity, android.os.Bundle)
+     */
+    boolean persist() default false;
+
+    /**
+     * @return the codec that writes the object to a memory-mapped file when it is retained with
+     * {@link Policy#SPILL}. Primitive arrays and {@link java.nio.ByteBuffer}s don't need a codec.
+     * The codec must implement {@link SpillCodec} and needs a public no-argument constructor,
+     * the default {@code void.class} selects the built-in codec of the field type.
+     * @see SpillCodecs
+     */
+    Class<?> codec() default void.class;
+
+    /**
+     * @return true to retain a Context, View, Drawable, Fragment, adapter or instance of a
+     * non-static inner class of an Activity or Fragment. These reference the Activity and
+     * leak it on every configuration change, so the annotation processor rejects them
+     * unless this is set, e.g. for the application Context.
+     */
+    boolean allowLeak() default false;
+
+    /**
+     * How a retained object is referenced between retain and restore.
+     */
+    enum Policy {
+
+        /**
+         * The object is held until it is cleared.
+         */
+        STRONG,
+
+        /**
+         * The object is held by a soft reference, which is dropped when the
+         * system reports critical memory pressure.
+         */
+        SOFT,
+
+        /**
+         * The object is held by a weak reference, which is dropped when the
+         * system reports low memory.
+         */
+        WEAK,
+
+        /**
+         * The object is held until the system reports critical memory pressure, then it is
+         * moved to a memory-mapped file in the cache directory and read back on restore.
+         */
+        SPILL
+    }
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.graphics.Bitmap;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * Process-wide budget for the objects retained with the annotation processor option
+ * {@code leash.budget}. When the retained objects exceed the budget, the objects with the
+ * lowest {@linkplain Retain#priority() priority} are evicted first and among them the least
+ * recently restored ones. Evicted objects are not restored.
+ * <p/>
+ * The budget only references the retained objects weakly, through their references. Objects
+ * of holders that have been discarded without a call to clear are released with the holder
+ * and leave the budget as soon as their references have been collected.
+ * <p/>
+ * This class is not thread safe, it must only be used on the main thread.
+ *
+ * @author rgeldmacher
+ */
+final class RetainBudget {
+
+    private static final int OBJECT_SIZE = 16;
+    private static final int REFERENCE_SIZE = 4;
+
+    /**
+     * Entries grouped by priority. Each group is in access order, so the least recently
+     * restored entry comes first.
+     */
+    private static final TreeMap<Integer, LinkedHashMap<Entry, Boolean>> ENTRIES = new TreeMap<>();
+    private static final Map<Reference<?>, Entry> ENTRIES_BY_REFERENCE = new WeakHashMap<>();
+    private static final ReferenceQueue<Reference<?>> COLLECTED = new ReferenceQueue<>();
+
+    private static long maxBytes;
+    private static long totalBytes;
+    private static Sizer sizer;
+
+    private RetainBudget() {
+        // prevent instantiation
+    }
+
+    static void set(long maxBytes, Sizer sizer) {
+        RetainBudget.maxBytes = maxBytes;
+        RetainBudget.sizer = sizer;
+        if (maxBytes <= 0) {
+            for (Entry entry : ENTRIES_BY_REFERENCE.values()) {
+                entry.clear();
+            }
+
+            ENTRIES.clear();
+            ENTRIES_BY_REFERENCE.clear();
+            totalBytes = 0;
+        } else {
+            evict();
+        }
+    }
+
+    static boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    static void add(Reference<?> reference, Object referent, int priority) {
+        expungeCollected();
+        LinkedHashMap<Entry, Boolean> entries = ENTRIES.get(priority);
+        if (entries == null) {
+            entries = new LinkedHashMap<>(16, 0.75f, true);
+            ENTRIES.put(priority, entries);
+        }
+
+        Entry entry = new Entry(reference, priority, sizeOf(referent));
+        entries.put(entry, Boolean.TRUE);
+        ENTRIES_BY_REFERENCE.put(reference, entry);
+        totalBytes += entry.size;
+        evict();
+    }
+
+    static void touch(Reference<?> reference) {
+        Entry entry = ENTRIES_BY_REFERENCE.get(reference);
+        if (entry != null) {
+            // moves the entry to the end of the access order
+            ENTRIES.get(entry.priority).get(entry);
+        }
+    }
+
+    static void remove(Reference<?> reference) {
+        Entry entry = ENTRIES_BY_REFERENCE.remove(reference);
+        if (entry != null) {
+            // a cleared entry is not enqueued, so it is not removed twice
+            entry.clear();
+            removeEntry(entry);
+        }
+    }
+
+    static long getTotalBytes() {
+        expungeCollected();
+        return totalBytes;
+    }
+
+    private static void evict() {
+        expungeCollected();
+        while (totalBytes > maxBytes && !ENTRIES.isEmpty()) {
+            Map.Entry<Integer, LinkedHashMap<Entry, Boolean>> lowestPriority = ENTRIES.firstEntry();
+            Iterator<Entry> iterator = lowestPriority.getValue().keySet().iterator();
+            Entry eldest = iterator.next();
+            iterator.remove();
+            if (lowestPriority.getValue().isEmpty()) {
+                ENTRIES.remove(lowestPriority.getKey());
+            }
+
+            totalBytes -= eldest.size;
+            Reference<?> reference = eldest.get();
+            eldest.clear();
+            if (reference != null) {
+                ENTRIES_BY_REFERENCE.remove(reference);
+                reference.clear();
+            }
+        }
+    }
+
+    /**
+     * Releases the entries whose references have been collected together with their holder.
+     */
+    private static void expungeCollected() {
+        for (Object collected = COLLECTED.poll(); collected != null; collected = COLLECTED.poll()) {
+            removeEntry((Entry) collected);
+        }
+    }
+
+    private static void removeEntry(Entry entry) {
+        LinkedHashMap<Entry, Boolean> entries = ENTRIES.get(entry.priority);
+        if (entries != null && entries.remove(entry) != null) {
+            totalBytes -= entry.size;
+            if (entries.isEmpty()) {
+                ENTRIES.remove(entry.priority);
+            }
+        }
+    }
+
+    private static long sizeOf(Object object) {
+        if (sizer != null) {
+            long size = sizer.sizeOf(object);
+            if (size >= 0) {
+                return size;
+            }
+        }
+
+        return estimateSize(object);
+    }
+
+    /**
+     * Shallow estimate, the elements of arrays and collections are not sized.
+     */
+    static long estimateSize(Object object) {
+        if (object instanceof String) {
+            return OBJECT_SIZE * 2 + 2L * ((String) object).length();
+        } else if (object instanceof Bitmap) {
+            return OBJECT_SIZE + ((Bitmap) object).getByteCount();
+        } else if (object instanceof Collection) {
+            return OBJECT_SIZE * 2 + (long) OBJECT_SIZE * ((Collection<?>) object).size();
+        } else if (object instanceof Map) {
+            return OBJECT_SIZE * 2 + (long) OBJECT_SIZE * 2 * ((Map<?, ?>) object).size();
+        } else if (object.getClass().isArray()) {
+            return OBJECT_SIZE + (long) getElementSize(object.getClass().getComponentType()) * Array.getLength(object);
+        }
+
+        return OBJECT_SIZE;
+    }
+
+    static int getElementSize(Class<?> componentType) {
+        if (componentType == long.class || componentType == double.class) {
+            return 8;
+        } else if (componentType == int.class || componentType == float.class) {
+            return 4;
+        } else if (componentType == short.class || componentType == char.class) {
+            return 2;
+        } else if (componentType == byte.class || componentType == boolean.class) {
+            return 1;
+        }
+
+        return REFERENCE_SIZE;
+    }
+
+    /**
+     * Weakly references a retained reference, so that the budget doesn't keep the holder's
+     * objects alive.
+     */
+    private static final class Entry extends WeakReference<Reference<?>> {
+
+        final int priority;
+        final long size;
+
+        Entry(Reference<?> reference, int priority, long size) {
+            super(reference, COLLECTED);
+            this.priority = priority;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.app.Activity;
+import android.support.v4.app.FragmentActivity;
+
+/**
+ * Stores the shared {@link RetainedHolder} of an Activity across configuration changes.
+ * <p/>
+ * Implementations are called on the main thread only. Select the store with
+ * {@link Leash#setRetainStore(RetainStore)} or the annotation processor option
+ * {@code leash.store}.
+ *
+ * @author rgeldmacher
+ * @see FragmentRetainStore
+ * @see NonConfigurationInstanceRetainStore
+ * @see MemoryRetainStore
+ */
+public interface RetainStore {
+
+    /**
+     * @param activity the Activity
+     * @param host     the Activity or Fragment class that looks up the holder, reported to the
+     *                 {@linkplain Leash#setMetricsListener(MetricsListener) metrics listener}
+     * @return the holder of the Activity or null if the store can't hold data for the Activity
+     */
+    RetainedHolder get(Activity activity, Class<?> host);
+
+    /**
+     * @param activity the FragmentActivity
+     * @param host     the Activity or Fragment class that looks up the holder, reported to the
+     *                 {@linkplain Leash#setMetricsListener(MetricsListener) metrics listener}
+     * @return the holder of the Activity or null if the store can't hold data for the Activity
+     */
+    RetainedHolder get(FragmentActivity activity, Class<?> host);
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds the retained data of all classes with annotated fields of one Activity. Every class
+ * stores its data in a slot identified by the class name and, for Fragments, the
+ * {@linkplain HostKeys key} of the Fragment instance, so an Activity and all of its Fragments
+ * share a single holder.
+ * <p/>
+ * This class is used by the code generated with the annotation processor option
+ * {@code leash.holder=shared}, you should not need to use it directly.
+ *
+ * @author rgeldmacher
+ */
+public final class RetainedHolder {
+
+    private static final String DEFAULT_KEY = "";
+
+    private final Map<String, Map<String, Object>> slots = new HashMap<>();
+
+    /**
+     * @param className the name of the class containing the annotated fields
+     * @return the data stored in the slot or null if the slot is empty
+     */
+    public Object get(String className) {
+        return get(className, DEFAULT_KEY);
+    }
+
+    /**
+     * @param className the name of the class containing the annotated fields
+     * @param hostKey   the key of the Fragment instance
+     * @return the data stored in the slot or null if the slot is empty
+     */
+    public Object get(String className, String hostKey) {
+        Map<String, Object> slotsOfClass = slots.get(className);
+        return slotsOfClass != null ? slotsOfClass.get(hostKey) : null;
+    }
+
+    /**
+     * @param className the name of the class containing the annotated fields
+     * @param data      the data to store in the slot
+     */
+    public void put(String className, Object data) {
+        put(className, DEFAULT_KEY, data);
+    }
+
+    /**
+     * @param className the name of the class containing the annotated fields
+     * @param hostKey   the key of the Fragment instance
+     * @param data      the data to store in the slot
+     */
+    public void put(String className, String hostKey, Object data) {
+        Map<String, Object> slotsOfClass = slots.get(className);
+        if (slotsOfClass == null) {
+            slotsOfClass = new HashMap<>();
+            slots.put(className, slotsOfClass);
+        }
+
+        slotsOfClass.put(hostKey, data);
+    }
+
+    /**
+     * @param className the name of the class containing the annotated fields
+     */
+    public void remove(String className) {
+        remove(className, DEFAULT_KEY);
+    }
+
+    /**
+     * @param className the name of the class containing the annotated fields
+     * @param hostKey   the key of the Fragment instance
+     */
+    public void remove(String className, String hostKey) {
+        Map<String, Object> slotsOfClass = slots.get(className);
+        if (slotsOfClass != null) {
+            slotsOfClass.remove(hostKey);
+            if (slotsOfClass.isEmpty()) {
+                slots.remove(className);
+            }
+        }
+    }
+
+    /**
+     * @return the slots by class name and host key
+     */
+    Map<String, Map<String, Object>> getSlots() {
+        return slots;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.app.Activity;
+import android.support.v4.app.FragmentActivity;
+
+/**
+ * Looks up the shared {@link RetainedHolder} of an Activity in the selected {@link RetainStore}.
+ * <p/>
+ * This class is used by the code generated with the annotation processor option
+ * {@code leash.holder=shared}, you should not need to use it directly.
+ *
+ * @author rgeldmacher
+ */
+public final class RetainedHolders {
+
+    /**
+     * The default store, see {@link FragmentRetainStore}.
+     */
+    public static final FragmentRetainStore FRAGMENT = new FragmentRetainStore();
+
+    /**
+     * The store used with {@link Leash#onRetainNonConfigurationInstance(Activity)}.
+     */
+    public static final NonConfigurationInstanceRetainStore NON_CONFIGURATION_INSTANCE = new NonConfigurationInstanceRetainStore();
+
+    /**
+     * The in-memory store, see {@link MemoryRetainStore}.
+     */
+    public static final MemoryRetainStore MEMORY = new MemoryRetainStore();
+
+    private static RetainStore store = FRAGMENT;
+
+    private RetainedHolders() {
+        // prevent instantiation
+    }
+
+    /**
+     * @param activity the Activity
+     * @param host     the Activity or Fragment class that looks up the holder
+     * @return the holder of the Activity or null if the store can't hold data for the Activity
+     */
+    public static RetainedHolder get(Activity activity, Class<?> host) {
+        return store.get(activity, host);
+    }
+
+    /**
+     * @param activity the FragmentActivity
+     * @param host     the Activity or Fragment class that looks up the holder
+     * @return the holder of the Activity or null if the store can't hold data for the Activity
+     */
+    public static RetainedHolder get(FragmentActivity activity, Class<?> host) {
+        return store.get(activity, host);
+    }
+
+    static void setStore(RetainStore store) {
+        RetainedHolders.store = store;
+    }
+}
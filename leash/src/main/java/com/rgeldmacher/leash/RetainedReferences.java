@@ -0,0 +1,286 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the references of fields retained with the policy {@link Retain.Policy#SOFT}
+ * or {@link Retain.Policy#WEAK}. The references are registered to be dropped when the
+ * system reports memory pressure via {@link ComponentCallbacks2#onTrimMemory(int)}:
+ * <ul>
+ * <li>weak references on {@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_LOW} in the foreground
+ * and on {@link ComponentCallbacks2#TRIM_MEMORY_MODERATE} in the background</li>
+ * <li>soft and weak references on {@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_CRITICAL} in
+ * the foreground and on {@link ComponentCallbacks2#TRIM_MEMORY_COMPLETE} in the background</li>
+ * </ul>
+ * The other levels, e.g. {@link ComponentCallbacks2#TRIM_MEMORY_UI_HIDDEN} when the app is
+ * merely sent to the background, drop nothing. The callbacks are registered with the
+ * application context when the first reference is created.
+ * <p/>
+ * References of fields retained with the policy {@link Retain.Policy#SPILL} are not dropped,
+ * their objects are {@linkplain #spill(Context, Object, SpillCodec) spilled} to a memory-mapped
+ * file on the levels that drop soft references. The files are written on a background thread.
+ * <p/>
+ * Fields of a class generated with the annotation processor option {@code leash.budget} are
+ * held by {@linkplain #strong(Reference, Object, int) strong references} that are accounted
+ * against the {@linkplain Leash#setRetainBudget(long, Sizer) retain budget}.
+ * <p/>
+ * This class is used by the generated code and is not thread safe, it must only
+ * be used on the main thread.
+ *
+ * @author rgeldmacher
+ */
+public final class RetainedReferences {
+
+    private static final Map<Reference<?>, Retain.Policy> REFERENCES = new WeakHashMap<>();
+
+    private static boolean callbacksRegistered;
+    private static Executor spillExecutor;
+
+    private RetainedReferences() {
+        // prevent instantiation
+    }
+
+    /**
+     * @param context  a context of the application
+     * @param referent the object to retain
+     * @return a soft reference to the object or null if the object is null
+     */
+    public static <T> Reference<T> soft(Context context, T referent) {
+        if (referent == null) {
+            return null;
+        }
+
+        Reference<T> reference = new SoftReference<>(referent);
+        register(context, reference, Retain.Policy.SOFT);
+        return reference;
+    }
+
+    /**
+     * @param context  a context of the application
+     * @param referent the object to retain
+     * @return a weak reference to the object or null if the object is null
+     */
+    public static <T> Reference<T> weak(Context context, T referent) {
+        if (referent == null) {
+            return null;
+        }
+
+        Reference<T> reference = new WeakReference<>(referent);
+        register(context, reference, Retain.Policy.WEAK);
+        return reference;
+    }
+
+    /**
+     * @param context  a context of the application
+     * @param referent the object to retain
+     * @param codec    the codec that writes the object to the memory-mapped file
+     * @return a reference that holds the object on the heap until it is spilled, or null
+     * if the object is null
+     */
+    public static <T> Reference<T> spill(Context context, T referent, SpillCodec<? super T> codec) {
+        if (referent == null) {
+            return null;
+        }
+
+        Reference<T> reference = new SpillReference<>(referent, codec, context != null ? context.getCacheDir() : null);
+        register(context, reference, Retain.Policy.SPILL);
+        return reference;
+    }
+
+    /**
+     * @param previous the reference that is replaced, may be null
+     * @param referent the object to retain
+     * @param priority the {@linkplain Retain#priority() priority} of the field
+     * @return a reference that holds the object until it is evicted from the retain
+     * budget, or null if the object is null
+     */
+    public static <T> Reference<T> strong(Reference<?> previous, T referent, int priority) {
+        release(previous);
+        if (referent == null) {
+            return null;
+        }
+
+        Reference<T> reference = new StrongReference<>(referent);
+        if (RetainBudget.isEnabled()) {
+            RetainBudget.add(reference, referent, priority);
+        }
+
+        return reference;
+    }
+
+    /**
+     * @param reference the reference, may be null
+     * @return the referenced object or null if it has been reclaimed or evicted
+     */
+    public static <T> T get(Reference<T> reference) {
+        if (reference instanceof StrongReference) {
+            RetainBudget.touch(reference);
+        }
+
+        return reference != null ? reference.get() : null;
+    }
+
+    /**
+     * Removes a reference that is no longer used from the retain budget.
+     *
+     * @param reference the reference, may be null
+     */
+    public static void release(Reference<?> reference) {
+        if (reference instanceof StrongReference) {
+            RetainBudget.remove(reference);
+        }
+    }
+
+    static void trim(int level) {
+        boolean dropWeak = dropsWeakReferences(level);
+        boolean dropSoft = dropsSoftReferences(level);
+        if (!dropWeak) {
+            return;
+        }
+
+        final List<SpillReference<?>> spills = new ArrayList<>();
+        // copy the keys, clearing a reference must not modify the map while iterating
+        for (Reference<?> reference : new ArrayList<>(REFERENCES.keySet())) {
+            Retain.Policy policy = REFERENCES.get(reference);
+            if (policy == Retain.Policy.WEAK || (dropSoft && policy == Retain.Policy.SOFT)) {
+                reference.clear();
+                REFERENCES.remove(reference);
+            } else if (dropSoft && policy == Retain.Policy.SPILL) {
+                spills.add((SpillReference<?>) reference);
+            }
+        }
+
+        if (!spills.isEmpty()) {
+            // writing the files must not block the main thread
+            getSpillExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (SpillReference<?> spill : spills) {
+                        // an object that can't be spilled stays on the heap rather than being lost
+                        spill.spill();
+                    }
+                }
+            });
+        }
+    }
+
+    static void setSpillExecutor(Executor executor) {
+        spillExecutor = executor;
+    }
+
+    private static Executor getSpillExecutor() {
+        if (spillExecutor == null) {
+            spillExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "leash-spill");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+
+        return spillExecutor;
+    }
+
+    /**
+     * The levels are not ordered by pressure, the background levels are all higher than the
+     * foreground ones, so they are mapped one by one.
+     */
+    private static boolean dropsWeakReferences(int level) {
+        switch (level) {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+            case ComponentCallbacks2.TRIM_MEMORY_MODERATE:
+                return true;
+            default:
+                return dropsSoftReferences(level);
+        }
+    }
+
+    private static boolean dropsSoftReferences(int level) {
+        switch (level) {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+            case ComponentCallbacks2.TRIM_MEMORY_COMPLETE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void register(Context context, Reference<?> reference, Retain.Policy policy) {
+        REFERENCES.put(reference, policy);
+        if (!callbacksRegistered && context != null) {
+            Context applicationContext = context.getApplicationContext();
+            if (applicationContext != null) {
+                applicationContext.registerComponentCallbacks(new TrimMemoryCallbacks());
+                callbacksRegistered = true;
+            }
+        }
+    }
+
+    /**
+     * Holds its referent strongly until it is cleared.
+     */
+    private static final class StrongReference<T> extends WeakReference<T> {
+
+        private T referent;
+
+        StrongReference(T referent) {
+            super(referent);
+            this.referent = referent;
+        }
+
+        @Override
+        public void clear() {
+            referent = null;
+            super.clear();
+        }
+    }
+
+    private static final class TrimMemoryCallbacks implements ComponentCallbacks2 {
+
+        @Override
+        public void onTrimMemory(int level) {
+            trim(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            trim(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+            // retained objects are not affected by configuration changes
+        }
+    }
+}
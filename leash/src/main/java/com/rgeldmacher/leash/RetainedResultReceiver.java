@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import java.util.concurrent.Future;
+
+/**
+ * Calls the {@literal @}{@link OnRetainedResult} method of an Activity or Fragment. An
+ * implementation is generated for every annotated method.
+ *
+ * @param <T> the Activity or Fragment containing the annotated method
+ * @author rgeldmacher
+ */
+public interface RetainedResultReceiver<T> {
+
+    /**
+     * @param host   the Activity or Fragment containing the annotated method
+     * @param result the completed Future
+     */
+    void onResult(T host, Future<?> result);
+}
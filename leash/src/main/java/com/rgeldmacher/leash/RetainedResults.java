@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * Delivers the results of retained Futures to the {@literal @}{@link OnRetainedResult} methods
+ * of the Activity or Fragment that currently holds them.
+ * <p/>
+ * The generated code attaches the host to the Futures of its fields on retain and restore. The
+ * host is only weakly referenced, so a Future that runs while the Activity is recreated
+ * doesn't leak it. A result is delivered once, to the latest host that is neither finishing
+ * nor changing its configuration, nor a Fragment that is being removed, otherwise it is kept
+ * until the next host is attached. AndroidX Fragments are supported by reflection.
+ * <p/>
+ * This class is used by the generated code and is not thread safe, except for
+ * {@link #onDone(Future)} it must only be used on the main thread.
+ *
+ * @author rgeldmacher
+ */
+public final class RetainedResults {
+
+    private static final Map<Future<?>, Delivery> DELIVERIES = new WeakHashMap<>();
+
+    private static final String ANDROIDX_FRAGMENT = "androidx.fragment.app.Fragment";
+
+    private static Executor mainThread;
+
+    private static Class<?> androidxFragmentClass;
+    private static Method androidxIsAddedMethod;
+    private static Method androidxIsRemovingMethod;
+    private static Method androidxGetActivityMethod;
+    private static boolean androidxFragmentClassResolved;
+
+    private RetainedResults() {
+        // prevent instantiation
+    }
+
+    /**
+     * @param host     the Activity or Fragment retaining the Future
+     * @param future   the retained Future, may be null
+     * @param receiver calls the annotated method of the host
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> void attach(T host, Future<?> future, RetainedResultReceiver<? super T> receiver) {
+        if (host == null || future == null) {
+            return;
+        }
+
+        Delivery delivery = DELIVERIES.get(future);
+        if (delivery == null) {
+            delivery = new Delivery();
+            DELIVERIES.put(future, delivery);
+        } else if (delivery.delivered) {
+            return;
+        }
+
+        delivery.host = new WeakReference<Object>(host);
+        delivery.receiver = (RetainedResultReceiver<Object>) receiver;
+        if (future.isDone()) {
+            deliver(future, delivery);
+        }
+    }
+
+    /**
+     * Called on the thread that completed the Future, delivers its result on the main thread.
+     *
+     * @param future the completed Future
+     */
+    static void onDone(final Future<?> future) {
+        getMainThread().execute(new Runnable() {
+            @Override
+            public void run() {
+                Delivery delivery = DELIVERIES.get(future);
+                if (delivery != null && !delivery.delivered) {
+                    deliver(future, delivery);
+                }
+            }
+        });
+    }
+
+    static synchronized void setMainThread(Executor executor) {
+        mainThread = executor;
+    }
+
+    private static synchronized Executor getMainThread() {
+        if (mainThread == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            mainThread = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+
+        return mainThread;
+    }
+
+    private static void deliver(Future<?> future, Delivery delivery) {
+        Object host = delivery.host.get();
+        if (host != null && isAttached(host)) {
+            delivery.delivered = true;
+            delivery.host = null;
+            delivery.receiver.onResult(host, future);
+        }
+    }
+
+    /**
+     * @return false if the host is going away, the result is then kept for the next instance
+     */
+    private static boolean isAttached(Object host) {
+        if (host instanceof Activity) {
+            Activity activity = (Activity) host;
+            return !activity.isFinishing() && !activity.isChangingConfigurations();
+        } else if (host instanceof Fragment) {
+            Fragment fragment = (Fragment) host;
+            return fragment.isAdded() && !fragment.isRemoving() && isAttached(fragment.getActivity());
+        } else if (host instanceof android.support.v4.app.Fragment) {
+            android.support.v4.app.Fragment fragment = (android.support.v4.app.Fragment) host;
+            return fragment.isAdded() && !fragment.isRemoving() && isAttached(fragment.getActivity());
+        } else if (isAndroidxFragment(host)) {
+            return (Boolean) invoke(androidxIsAddedMethod, host)
+                    && !(Boolean) invoke(androidxIsRemovingMethod, host)
+                    && isAttached(invoke(androidxGetActivityMethod, host));
+        }
+
+        return true;
+    }
+
+    /**
+     * AndroidX is optional, its Fragment class is looked up once by name.
+     */
+    private static boolean isAndroidxFragment(Object host) {
+        if (!androidxFragmentClassResolved) {
+            try {
+                Class<?> fragmentClass = Class.forName(ANDROIDX_FRAGMENT);
+                androidxIsAddedMethod = fragmentClass.getMethod("isAdded");
+                androidxIsRemovingMethod = fragmentClass.getMethod("isRemoving");
+                androidxGetActivityMethod = fragmentClass.getMethod("getActivity");
+                androidxFragmentClass = fragmentClass;
+            } catch (ClassNotFoundException e) {
+                // AndroidX is not used
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException("Unsupported version of " + ANDROIDX_FRAGMENT, e);
+            }
+
+            androidxFragmentClassResolved = true;
+        }
+
+        return androidxFragmentClass != null && androidxFragmentClass.isInstance(host);
+    }
+
+    private static Object invoke(Method method, Object host) {
+        try {
+            return method.invoke(host);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Failed to call " + method.getName() + " on " + host, e);
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException("Failed to call " + method.getName() + " on " + host, e);
+        }
+    }
+
+    /**
+     * The latest host of a Future, the Future itself is the key and must not be referenced.
+     */
+    private static final class Delivery {
+
+        WeakReference<Object> host;
+        RetainedResultReceiver<Object> receiver;
+        boolean delivered;
+    }
+}
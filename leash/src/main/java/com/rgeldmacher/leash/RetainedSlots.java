@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import java.lang.ref.Reference;
+import java.util.Arrays;
+
+/**
+ * Holds the retained data of one class in two arrays, one for references and one for
+ * primitives, instead of a generated class with one field per annotated field. The slot
+ * of every annotated field is assigned at compile time. Primitives are stored as their
+ * {@code long} value, {@code float} and {@code double} as their raw bits.
+ * <p/>
+ * This class is used by the code generated with the annotation processor option
+ * {@code leash.holder=compact}, you should not need to use it directly.
+ *
+ * @author rgeldmacher
+ */
+public final class RetainedSlots {
+
+    public final Object[] refs;
+    public final long[] prims;
+    public boolean hasBeenRetained;
+
+    public RetainedSlots(int refCount, int primCount) {
+        refs = new Object[refCount];
+        prims = new long[primCount];
+    }
+
+    /**
+     * @param holder    the holder of the Activity
+     * @param className the name of the class containing the annotated fields
+     * @param refCount  the number of annotated reference fields
+     * @param primCount the number of annotated primitive fields
+     * @return the slots of the class, never null
+     */
+    public static RetainedSlots of(RetainedHolder holder, String className, int refCount, int primCount) {
+        Object slots = holder.get(className);
+        if (!(slots instanceof RetainedSlots)) {
+            slots = new RetainedSlots(refCount, primCount);
+            holder.put(className, slots);
+        }
+
+        return (RetainedSlots) slots;
+    }
+
+    /**
+     * @param holder    the holder of the Activity
+     * @param className the name of the class containing the annotated fields
+     * @param hostKey   the key of the Fragment instance
+     * @param refCount  the number of annotated reference fields
+     * @param primCount the number of annotated primitive fields
+     * @return the slots of the Fragment instance, never null
+     */
+    public static RetainedSlots of(RetainedHolder holder, String className, String hostKey, int refCount, int primCount) {
+        Object slots = holder.get(className, hostKey);
+        if (!(slots instanceof RetainedSlots)) {
+            slots = new RetainedSlots(refCount, primCount);
+            holder.put(className, hostKey, slots);
+        }
+
+        return (RetainedSlots) slots;
+    }
+
+    /**
+     * Removes all references and resets all primitives.
+     */
+    public void clear() {
+        hasBeenRetained = false;
+        for (Object ref : refs) {
+            if (ref instanceof Reference) {
+                RetainedReferences.release((Reference<?>) ref);
+            }
+        }
+
+        Arrays.fill(refs, null);
+        Arrays.fill(prims, 0L);
+    }
+}
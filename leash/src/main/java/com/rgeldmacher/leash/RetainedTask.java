@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A {@link FutureTask} that delivers its result to the {@literal @}{@link OnRetainedResult}
+ * method of the Activity or Fragment retaining it as soon as it completes. Other Futures are
+ * only delivered on the next retain or restore after they have completed.
+ * <p/>
+ * <pre><code>
+ * load = new RetainedTask&lt;&gt;(new Callable&lt;List&lt;Foo&gt;&gt;() { ... });
+ * executor.execute(load);
+ * Leash.retain(this);
+ * </code></pre>
+ *
+ * @param <V> the type of the result
+ * @author rgeldmacher
+ */
+public class RetainedTask<V> extends FutureTask<V> {
+
+    /**
+     * @param callable the work to run
+     */
+    public RetainedTask(Callable<V> callable) {
+        super(callable);
+    }
+
+    /**
+     * @param runnable the work to run
+     * @param result   the result to deliver on completion
+     */
+    public RetainedTask(Runnable runnable, V result) {
+        super(runnable, result);
+    }
+
+    @Override
+    protected void done() {
+        RetainedResults.onDone(this);
+    }
+}
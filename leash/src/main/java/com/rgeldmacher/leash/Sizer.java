@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+/**
+ * Estimates the number of bytes a retained object keeps in memory, see
+ * {@link Leash#setRetainBudget(long, Sizer)}.
+ *
+ * @author rgeldmacher
+ */
+public interface Sizer {
+
+    /**
+     * @param object the retained object, never null
+     * @return the size of the object in bytes or a negative value to use the
+     * built-in estimate for arrays, Strings, Bitmaps and Collections
+     */
+    long sizeOf(Object object);
+}
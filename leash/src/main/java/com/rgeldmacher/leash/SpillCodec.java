@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a retained object to and reads it from a memory-mapped file, so that a field
+ * retained with {@link Retain.Policy#SPILL} can leave the Java heap under memory pressure.
+ * <p/>
+ * Implementations need a public no-argument constructor, see {@link Retain#codec()}.
+ *
+ * @param <T> the type of the retained object
+ * @author rgeldmacher
+ * @see SpillCodecs
+ */
+public interface SpillCodec<T> {
+
+    /**
+     * @param value the object to spill
+     * @return the number of bytes {@link #encode(Object, ByteBuffer)} writes
+     */
+    int sizeOf(T value);
+
+    /**
+     * @param value  the object to spill
+     * @param buffer the buffer to write the object to, positioned at 0
+     */
+    void encode(T value, ByteBuffer buffer);
+
+    /**
+     * @param buffer the buffer written by {@link #encode(Object, ByteBuffer)}, positioned at 0
+     * @return the object read from the buffer
+     */
+    T decode(ByteBuffer buffer);
+}
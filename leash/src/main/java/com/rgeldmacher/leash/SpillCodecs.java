@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The codecs of the types that can be retained with {@link Retain.Policy#SPILL} without
+ * a {@linkplain Retain#codec() codec}. Arrays are copied back to the heap when they are
+ * restored, a {@link ByteBuffer} is restored as a read-only view of the mapped file
+ * without copying.
+ * <p/>
+ * This class is used by the generated code, you should not need to use it directly.
+ *
+ * @author rgeldmacher
+ */
+public final class SpillCodecs {
+
+    public static final SpillCodec<byte[]> BYTE_ARRAY = new SpillCodec<byte[]>() {
+        @Override
+        public int sizeOf(byte[] value) {
+            return value.length;
+        }
+
+        @Override
+        public void encode(byte[] value, ByteBuffer buffer) {
+            buffer.put(value);
+        }
+
+        @Override
+        public byte[] decode(ByteBuffer buffer) {
+            byte[] value = new byte[buffer.remaining()];
+            buffer.get(value);
+            return value;
+        }
+    };
+
+    public static final SpillCodec<short[]> SHORT_ARRAY = new SpillCodec<short[]>() {
+        @Override
+        public int sizeOf(short[] value) {
+            return 2 * value.length;
+        }
+
+        @Override
+        public void encode(short[] value, ByteBuffer buffer) {
+            buffer.asShortBuffer().put(value);
+        }
+
+        @Override
+        public short[] decode(ByteBuffer buffer) {
+            short[] value = new short[buffer.remaining() / 2];
+            buffer.asShortBuffer().get(value);
+            return value;
+        }
+    };
+
+    public static final SpillCodec<char[]> CHAR_ARRAY = new SpillCodec<char[]>() {
+        @Override
+        public int sizeOf(char[] value) {
+            return 2 * value.length;
+        }
+
+        @Override
+        public void encode(char[] value, ByteBuffer buffer) {
+            buffer.asCharBuffer().put(value);
+        }
+
+        @Override
+        public char[] decode(ByteBuffer buffer) {
+            char[] value = new char[buffer.remaining() / 2];
+            buffer.asCharBuffer().get(value);
+            return value;
+        }
+    };
+
+    public static final SpillCodec<int[]> INT_ARRAY = new SpillCodec<int[]>() {
+        @Override
+        public int sizeOf(int[] value) {
+            return 4 * value.length;
+        }
+
+        @Override
+        public void encode(int[] value, ByteBuffer buffer) {
+            buffer.asIntBuffer().put(value);
+        }
+
+        @Override
+        public int[] decode(ByteBuffer buffer) {
+            int[] value = new int[buffer.remaining() / 4];
+            buffer.asIntBuffer().get(value);
+            return value;
+        }
+    };
+
+    public static final SpillCodec<long[]> LONG_ARRAY = new SpillCodec<long[]>() {
+        @Override
+        public int sizeOf(long[] value) {
+            return 8 * value.length;
+        }
+
+        @Override
+        public void encode(long[] value, ByteBuffer buffer) {
+            buffer.asLongBuffer().put(value);
+        }
+
+        @Override
+        public long[] decode(ByteBuffer buffer) {
+            long[] value = new long[buffer.remaining() / 8];
+            buffer.asLongBuffer().get(value);
+            return value;
+        }
+    };
+
+    public static final SpillCodec<float[]> FLOAT_ARRAY = new SpillCodec<float[]>() {
+        @Override
+        public int sizeOf(float[] value) {
+            return 4 * value.length;
+        }
+
+        @Override
+        public void encode(float[] value, ByteBuffer buffer) {
+            buffer.asFloatBuffer().put(value);
+        }
+
+        @Override
+        public float[] decode(ByteBuffer buffer) {
+            float[] value = new float[buffer.remaining() / 4];
+            buffer.asFloatBuffer().get(value);
+            return value;
+        }
+    };
+
+    public static final SpillCodec<double[]> DOUBLE_ARRAY = new SpillCodec<double[]>() {
+        @Override
+        public int sizeOf(double[] value) {
+            return 8 * value.length;
+        }
+
+        @Override
+        public void encode(double[] value, ByteBuffer buffer) {
+            buffer.asDoubleBuffer().put(value);
+        }
+
+        @Override
+        public double[] decode(ByteBuffer buffer) {
+            double[] value = new double[buffer.remaining() / 8];
+            buffer.asDoubleBuffer().get(value);
+            return value;
+        }
+    };
+
+    public static final SpillCodec<ByteBuffer> BYTE_BUFFER = new SpillCodec<ByteBuffer>() {
+        @Override
+        public int sizeOf(ByteBuffer value) {
+            return value.remaining();
+        }
+
+        @Override
+        public void encode(ByteBuffer value, ByteBuffer buffer) {
+            buffer.put(value.duplicate());
+        }
+
+        @Override
+        public ByteBuffer decode(ByteBuffer buffer) {
+            return buffer.asReadOnlyBuffer();
+        }
+    };
+
+    private SpillCodecs() {
+        // prevent instantiation
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Holds its referent strongly until it is spilled to a memory-mapped file in the cache
+ * directory. The file is deleted as soon as it is mapped, the mapping stays valid until
+ * the reference is garbage collected. A spilled referent is read back on the next
+ * {@link #get()}.
+ * <p/>
+ * The referent is spilled on a background thread, so the methods are synchronized. The
+ * file is written without holding the lock, so that {@link #get()} never waits for it.
+ * The referent is only dropped from the heap if it hasn't been read or cleared meanwhile,
+ * otherwise it may have been modified after it has been encoded and the file is discarded.
+ *
+ * @author rgeldmacher
+ */
+final class SpillReference<T> extends WeakReference<T> {
+
+    private static final String SPILL_DIR = "leash-spill";
+
+    private final SpillCodec<? super T> codec;
+    private final File cacheDir;
+    private T referent;
+    private MappedByteBuffer spilled;
+    private int reads;
+
+    SpillReference(T referent, SpillCodec<? super T> codec, File cacheDir) {
+        super(referent);
+        this.referent = referent;
+        this.codec = codec;
+        this.cacheDir = cacheDir;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized T get() {
+        if (referent == null && spilled != null) {
+            ByteBuffer buffer = spilled.duplicate();
+            buffer.position(0);
+            referent = (T) codec.decode(buffer);
+            spilled = null;
+        }
+
+        reads++;
+        return referent;
+    }
+
+    /**
+     * @return the referent if it is on the heap, without reading back a spilled referent
+     */
+    synchronized T peek() {
+        return referent;
+    }
+
+    @Override
+    public synchronized void clear() {
+        referent = null;
+        spilled = null;
+        super.clear();
+    }
+
+    /**
+     * Moves the referent from the heap to a memory-mapped file.
+     *
+     * @return false if the referent could not be spilled or has been read while spilling
+     */
+    boolean spill() {
+        T value;
+        int readsBefore;
+        synchronized (this) {
+            value = referent;
+            readsBefore = reads;
+        }
+
+        if (value == null) {
+            return true;
+        } else if (cacheDir == null) {
+            return false;
+        }
+
+        MappedByteBuffer buffer = write(value);
+        if (buffer == null) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (referent != value || reads != readsBefore) {
+                return false;
+            }
+
+            spilled = buffer;
+            referent = null;
+            return true;
+        }
+    }
+
+    /**
+     * @return the mapped file containing the encoded value or null if it could not be written
+     */
+    private MappedByteBuffer write(T value) {
+        try {
+            File dir = new File(cacheDir, SPILL_DIR);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                return null;
+            }
+
+            File file = File.createTempFile("spill", null, dir);
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                int size = codec.sizeOf(value);
+                MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                codec.encode(value, buffer);
+                buffer.limit(size);
+                return buffer;
+            } finally {
+                randomAccessFile.close();
+                // the mapping stays valid without the file
+                file.delete();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
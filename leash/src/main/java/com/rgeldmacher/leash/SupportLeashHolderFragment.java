@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.support.v4.app.Fragment;
+
+/**
+ * Headless support library Fragment that is retained across configuration changes and
+ * holds the {@link RetainedHolder} of a FragmentActivity.
+ *
+ * @author rgeldmacher
+ */
+public class SupportLeashHolderFragment extends Fragment {
+
+    final RetainedHolder holder = new RetainedHolder();
+
+    public SupportLeashHolderFragment() {
+        setRetainInstance(true);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author rgeldmacher
+ */
+public class HolderFragmentsTest {
+
+    private static final String KEY = "/#7f01:0";
+    private static final String TAG = "HolderFragment" + KEY;
+
+    private final HolderCache<HolderFragment> cache = new HolderCache<>();
+    private final HolderCache<FrameworkHolderFragment> frameworkCache = new HolderCache<>();
+
+    private android.support.v4.app.FragmentManager fragmentManager;
+    private android.support.v4.app.FragmentTransaction transaction;
+    private android.app.FragmentManager frameworkFragmentManager;
+    private android.app.FragmentTransaction frameworkTransaction;
+
+    @Before
+    public void setup() {
+        transaction = mock(android.support.v4.app.FragmentTransaction.class);
+        when(transaction.remove(any(android.support.v4.app.Fragment.class))).thenReturn(transaction);
+        fragmentManager = mock(android.support.v4.app.FragmentManager.class);
+        when(fragmentManager.beginTransaction()).thenReturn(transaction);
+
+        frameworkTransaction = mock(android.app.FragmentTransaction.class);
+        when(frameworkTransaction.remove(any(android.app.Fragment.class))).thenReturn(frameworkTransaction);
+        frameworkFragmentManager = mock(android.app.FragmentManager.class);
+        when(frameworkFragmentManager.beginTransaction()).thenReturn(frameworkTransaction);
+    }
+
+    @Test
+    public void testMissingHolderIsNotCreated() {
+        assertNull(HolderFragments.find(fragmentManager, cache, KEY, TAG, HolderFragment.class));
+        assertNull(HolderFragments.find(null, cache, KEY, TAG, HolderFragment.class));
+
+        verify(fragmentManager, never()).beginTransaction();
+    }
+
+    @Test
+    public void testHolderIsFoundByTag() {
+        HolderFragment holder = new HolderFragment();
+        when(fragmentManager.findFragmentByTag(TAG)).thenReturn(holder);
+
+        assertSame(holder, HolderFragments.find(fragmentManager, cache, KEY, TAG, HolderFragment.class));
+    }
+
+    @Test
+    public void testPendingHolderIsFoundInCache() {
+        HolderFragment holder = new HolderFragment();
+        cache.put(fragmentManager, KEY, holder);
+
+        assertSame(holder, HolderFragments.find(fragmentManager, cache, KEY, TAG, HolderFragment.class));
+    }
+
+    @Test
+    public void testRemoveAfterStateSavedAllowsStateLoss() {
+        HolderFragment holder = new HolderFragment();
+        cache.put(fragmentManager, KEY, holder);
+
+        HolderFragments.remove(fragmentManager, cache, KEY, holder);
+
+        assertNull(cache.get(fragmentManager, KEY));
+        verify(transaction).remove(holder);
+        verify(transaction).commitAllowingStateLoss();
+        verify(transaction, never()).commit();
+    }
+
+    @Test
+    public void testRemoveFromDestroyedFragmentManager() {
+        HolderFragment holder = new HolderFragment();
+        cache.put(fragmentManager, KEY, holder);
+        when(fragmentManager.isDestroyed()).thenReturn(true);
+
+        HolderFragments.remove(fragmentManager, cache, KEY, holder);
+
+        assertNull(cache.get(fragmentManager, KEY));
+        verify(fragmentManager, never()).beginTransaction();
+    }
+
+    @Test
+    public void testRemoveFromFrameworkFragmentManager() {
+        FrameworkHolderFragment holder = new FrameworkHolderFragment();
+
+        HolderFragments.remove(frameworkFragmentManager, frameworkCache, KEY, holder);
+
+        verify(frameworkTransaction).remove(holder);
+        verify(frameworkTransaction).commitAllowingStateLoss();
+        verify(frameworkTransaction, never()).commit();
+    }
+
+    @Test
+    public void testRemoveFromDestroyedFrameworkFragmentManager() {
+        when(frameworkFragmentManager.isDestroyed()).thenReturn(true);
+
+        HolderFragments.remove(frameworkFragmentManager, frameworkCache, KEY, new FrameworkHolderFragment());
+
+        verify(frameworkFragmentManager, never()).beginTransaction();
+    }
+
+    public static class HolderFragment extends android.support.v4.app.Fragment {
+    }
+
+    public static class FrameworkHolderFragment extends android.app.Fragment {
+    }
+}
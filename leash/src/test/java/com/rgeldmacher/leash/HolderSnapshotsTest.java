@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.app.Activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * @author rgeldmacher
+ */
+public class HolderSnapshotsTest {
+
+    private static final LeashIndex INDEX = new LeashIndex() {
+        @Override
+        public LeashBinder<?> getBinder(Class<?> hostClass) {
+            return SnapshotActivity.class.isAssignableFrom(hostClass) ? new NoOpBinder() : null;
+        }
+    };
+
+    private final HolderCache<SnapshotActivityLeash.SnapshotActivityRetainedDataFragment> cache = new HolderCache<>();
+    private final Object fragmentManager = new Object();
+
+    @Before
+    public void setup() {
+        Leash.addIndex(INDEX);
+        Leash.setSnapshotTimesEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        Leash.setSnapshotTimesEnabled(false);
+        Leash.removeIndex(INDEX);
+    }
+
+    @Test
+    public void testSnapshotOfRetainedFragment() {
+        SnapshotActivityLeash.SnapshotActivityRetainedDataFragment data = new SnapshotActivityLeash.SnapshotActivityRetainedDataFragment();
+        data.count = 42;
+        data.names = new ArrayList<>(Arrays.asList("a", "b"));
+        data.values = new SoftReference<>(new long[100]);
+        data.node = new Node();
+        data.node.payload = new byte[100];
+        cache.put(fragmentManager, "fragment", data);
+
+        Leash.retain(mock(SnapshotActivity.class));
+
+        HolderSnapshot snapshot = getSnapshot("fragment");
+        assertEquals(5, snapshot.getFields().size());
+        assertTrue(snapshot.getMillisSinceRetain() >= 0);
+        assertEquals(-1, snapshot.getMillisSinceRestore());
+        assertFalse(snapshot.isTruncated());
+
+        HolderSnapshot.FieldSnapshot count = getField(snapshot, "count");
+        assertEquals("int", count.getType());
+        assertEquals(4, count.getShallowSize());
+
+        HolderSnapshot.FieldSnapshot names = getField(snapshot, "names");
+        assertEquals("java.util.List<java.lang.String>", names.getType());
+        assertEquals("java.util.ArrayList", names.getValueType());
+
+        HolderSnapshot.FieldSnapshot node = getField(snapshot, "node");
+        assertEquals(16, node.getShallowSize());
+        assertEquals(16 + 112, node.getRetainedSize());
+
+        HolderSnapshot.FieldSnapshot values = getField(snapshot, "values");
+        assertEquals("long[]", values.getValueType());
+        assertEquals(816, values.getShallowSize());
+        assertEquals(816, values.getRetainedSize());
+
+        assertTrue(snapshot.getRetainedSize() >= snapshot.getShallowSize() + node.getRetainedSize() + values.getRetainedSize());
+    }
+
+    @Test
+    public void testTimesAreNotRecordedByDefault() {
+        SnapshotActivityLeash.SnapshotActivityRetainedDataFragment data = new SnapshotActivityLeash.SnapshotActivityRetainedDataFragment();
+        cache.put(fragmentManager, "untimed", data);
+
+        Leash.setSnapshotTimesEnabled(false);
+        Leash.restore(mock(SnapshotActivity.class));
+
+        assertEquals(-1, getSnapshot("untimed").getMillisSinceRestore());
+    }
+
+    @Test
+    public void testSharedObjectsAreCountedOnce() {
+        SnapshotActivityLeash.SnapshotActivityRetainedDataFragment data = new SnapshotActivityLeash.SnapshotActivityRetainedDataFragment();
+        Node first = new Node();
+        first.next = new Node();
+        first.next.next = first;
+        first.next.payload = new byte[1000];
+        data.names = Arrays.asList("a");
+        data.node = first;
+        data.other = first.next;
+        cache.put(fragmentManager, "shared", data);
+
+        HolderSnapshot snapshot = getSnapshot("shared");
+        HolderSnapshot.FieldSnapshot node = getField(snapshot, "node");
+        HolderSnapshot.FieldSnapshot other = getField(snapshot, "other");
+        assertEquals(node.getRetainedSize(), other.getRetainedSize());
+        assertTrue(node.getRetainedSize() > 1000);
+        assertTrue(snapshot.getRetainedSize() < snapshot.getShallowSize() + node.getRetainedSize() + other.getRetainedSize());
+    }
+
+    @Test
+    public void testWalkIsBounded() {
+        Node head = new Node();
+        for (int i = 0; i < ObjectSizes.MAX_OBJECTS * 2; i++) {
+            Node node = new Node();
+            node.next = head;
+            head = node;
+        }
+
+        ObjectSizes sizes = new ObjectSizes();
+        long retainedSize = sizes.retainedSize(head);
+        assertTrue(sizes.isTruncated());
+        assertEquals(ObjectSizes.MAX_OBJECTS * sizes.shallowSize(head), retainedSize);
+    }
+
+    @Test
+    public void testDump() {
+        SnapshotActivityLeash.SnapshotActivityRetainedDataFragment data = new SnapshotActivityLeash.SnapshotActivityRetainedDataFragment();
+        data.names = Arrays.asList("a");
+        cache.put(fragmentManager, "dump", data);
+
+        StringWriter out = new StringWriter();
+        Leash.dump(new PrintWriter(out));
+        assertTrue(out.toString().contains(SnapshotActivity.class.getName() + " [dump]: "));
+        assertTrue(out.toString().contains("names: java.util.List<java.lang.String> = java.util.Arrays$ArrayList"));
+    }
+
+    private static HolderSnapshot getSnapshot(String hostKey) {
+        for (HolderSnapshot snapshot : Leash.snapshot()) {
+            if (snapshot.getHostClass().equals(SnapshotActivity.class.getName()) && hostKey.equals(snapshot.getHostKey())) {
+                return snapshot;
+            }
+        }
+
+        throw new AssertionError("No snapshot with key " + hostKey);
+    }
+
+    private static HolderSnapshot.FieldSnapshot getField(HolderSnapshot snapshot, String name) {
+        for (HolderSnapshot.FieldSnapshot field : snapshot.getFields()) {
+            if (field.getName().equals(name)) {
+                assertNotNull(field.getType());
+                return field;
+            }
+        }
+
+        throw new AssertionError("No field " + name);
+    }
+
+    public static class SnapshotActivity extends Activity {
+    }
+
+    /**
+     * Stands in for a generated Leash class.
+     */
+    public static class SnapshotActivityLeash {
+
+        public static class SnapshotActivityRetainedDataFragment {
+
+            int count;
+            List<String> names;
+            Reference<long[]> values;
+            Node node;
+            Node other;
+            boolean hasBeenRetained;
+        }
+    }
+
+    private static final class Node {
+
+        Node next;
+        byte[] payload;
+    }
+
+    private static final class NoOpBinder implements LeashBinder<SnapshotActivity> {
+
+        @Override
+        public void restore(SnapshotActivity source) {
+        }
+
+        @Override
+        public void retain(SnapshotActivity source) {
+        }
+
+        @Override
+        public void clear(SnapshotActivity source) {
+        }
+    }
+}
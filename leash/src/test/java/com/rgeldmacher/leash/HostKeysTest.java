@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author rgeldmacher
+ */
+public class HostKeysTest {
+
+    private FragmentManager fragmentManager;
+    private List<Fragment> fragments;
+
+    @Before
+    public void setup() {
+        fragments = new ArrayList<>();
+        fragmentManager = mock(FragmentManager.class);
+        when(fragmentManager.getFragments()).thenReturn(fragments);
+    }
+
+    @Test
+    public void testTaggedFragmentsHaveDistinctKeys() {
+        Fragment first = addFragment("first", 0);
+        Fragment second = addFragment("second", 0);
+
+        assertEquals("/first", HostKeys.of(first));
+        assertEquals("/second", HostKeys.of(second));
+    }
+
+    @Test
+    public void testUntaggedFragmentsInSameContainerHaveDistinctKeys() {
+        Fragment first = addFragment(null, 0x7f01);
+        Fragment second = addFragment(null, 0x7f01);
+
+        assertNotEquals(HostKeys.of(first), HostKeys.of(second));
+    }
+
+    @Test
+    public void testCollidingKeysAreNotShared() {
+        Fragment first = addFragment("same", 0);
+        Fragment second = addFragment("same", 0);
+
+        assertEquals("/same", HostKeys.of(first));
+        assertNotEquals("/same", HostKeys.of(second));
+        assertEquals(HostKeys.of(second), HostKeys.of(second));
+    }
+
+    @Test
+    public void testUntaggedFrameworkFragmentsInSameContainerHaveDistinctKeys() {
+        android.app.FragmentManager frameworkFragmentManager = mock(android.app.FragmentManager.class);
+        android.app.Fragment first = addFrameworkFragment(frameworkFragmentManager, 0x7f01);
+        android.app.Fragment second = addFrameworkFragment(frameworkFragmentManager, 0x7f01);
+        android.app.Fragment third = addFrameworkFragment(frameworkFragmentManager, 0x7f01);
+
+        String firstKey = HostKeys.of(first);
+        String secondKey = HostKeys.of(second);
+        String thirdKey = HostKeys.of(third);
+        assertNotEquals(firstKey, secondKey);
+        assertNotEquals(firstKey, thirdKey);
+        assertNotEquals(secondKey, thirdKey);
+    }
+
+    @Test
+    public void testKeyOfRemovedFragmentCanBeReused() {
+        Fragment first = addFragment("same", 0);
+        HostKeys.of(first);
+        when(first.isAdded()).thenReturn(false);
+
+        Fragment second = addFragment("same", 0);
+        assertEquals("/same", HostKeys.of(second));
+    }
+
+    private static android.app.Fragment addFrameworkFragment(android.app.FragmentManager fragmentManager, int id) {
+        android.app.Fragment fragment = mock(android.app.Fragment.class);
+        when(fragment.getId()).thenReturn(id);
+        when(fragment.isAdded()).thenReturn(true);
+        when(fragment.getFragmentManager()).thenReturn(fragmentManager);
+        return fragment;
+    }
+
+    private Fragment addFragment(String tag, int id) {
+        Fragment fragment = mock(Fragment.class);
+        when(fragment.getTag()).thenReturn(tag);
+        when(fragment.getId()).thenReturn(id);
+        when(fragment.isAdded()).thenReturn(true);
+        when(fragment.getFragmentManager()).thenReturn(fragmentManager);
+        fragments.add(fragment);
+        return fragment;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import com.google.common.base.Joiner;
+import com.google.testing.compile.JavaFileObjects;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaFileObject;
+
+import static com.google.common.truth.Truth.ASSERT;
+import static com.google.testing.compile.JavaSourcesSubjectFactory.javaSources;
+
+/**
+ * Measures the time and memory the annotation processor needs for synthetic modules
+ * with many annotated classes. Not part of the regular tests, run it with
+ * {@code ./gradlew :leash:processorBenchmark}.
+ *
+ * @author rgeldmacher
+ */
+public class LeashAnnotationProcessorBenchmark {
+
+    @Test
+    public void benchmark1000Hosts() {
+        benchmark(1000);
+    }
+
+    @Test
+    public void benchmark5000Hosts() {
+        benchmark(5000);
+    }
+
+    @Test
+    public void benchmark10000Hosts() {
+        benchmark(10000);
+    }
+
+    private static void benchmark(int hostCount) {
+        List<JavaFileObject> sources = createSources(hostCount);
+        TimedProcessor processor = new TimedProcessor();
+
+        System.gc();
+        resetPeakHeapUsage();
+        long start = System.nanoTime();
+        ASSERT.about(javaSources()).that(sources)
+                .processedWith(processor)
+                .compilesWithoutError();
+        long compileNanos = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US, "%d hosts: processor %d ms, compilation %d ms, peak heap %d MB",
+                hostCount, processor.processNanos / 1000000, compileNanos / 1000000, getPeakHeapUsage() / (1024 * 1024)));
+    }
+
+    /**
+     * Creates Activities, Fragments and support Fragments with a few retained fields each,
+     * every tenth class extends the previous one.
+     */
+    private static List<JavaFileObject> createSources(int hostCount) {
+        String[] superclasses = {"android.app.Activity", "android.app.Fragment", "android.support.v4.app.Fragment"};
+        List<JavaFileObject> sources = new ArrayList<>(hostCount);
+        for (int i = 0; i < hostCount; i++) {
+            String superclass = i % 10 == 9 ? "Host" + (i - 1) : superclasses[i % superclasses.length];
+            sources.add(JavaFileObjects.forSourceString("bench.Host" + i, Joiner.on('\n').join(
+                    "package bench;",
+                    "import com.rgeldmacher.leash.Retain;",
+                    "public class Host" + i + " extends " + superclass + " {",
+                    "    @Retain",
+                    "    Object data" + i + ";",
+                    "    @Retain",
+                    "    String title" + i + ";",
+                    "    @Retain",
+                    "    int position" + i + ";",
+                    "}"
+            )));
+        }
+
+        return sources;
+    }
+
+    private static void resetPeakHeapUsage() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long getPeakHeapUsage() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        return peak;
+    }
+
+    /**
+     * Sums up the time spent in the processor, without parsing and compiling the sources.
+     * The supported annotation types are not inherited.
+     */
+    @SupportedAnnotationTypes("com.rgeldmacher.leash.Retain")
+    private static class TimedProcessor extends LeashAnnotationProcessor {
+
+        long processNanos;
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            long start = System.nanoTime();
+            try {
+                return super.process(annotations, roundEnv);
+            } finally {
+                processNanos += System.nanoTime() - start;
+            }
+        }
+    }
+}
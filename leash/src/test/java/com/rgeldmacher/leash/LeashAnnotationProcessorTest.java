@@ -16,15 +16,29 @@
 
 package com.rgeldmacher.leash;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.io.ByteSource;
 import com.google.testing.compile.JavaFileObjects;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.ProcessingEnvironment;
 import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
 
 import static com.google.common.truth.Truth.ASSERT;
 import static com.google.testing.compile.JavaSourceSubjectFactory.javaSource;
+import static com.google.testing.compile.JavaSourcesSubjectFactory.javaSources;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 /**
  * @author rgeldmacher
@@ -49,9 +63,16 @@ public class LeashAnnotationProcessorTest {
                         "import android.app.Activity;",
                         "import android.app.Fragment;",
                         "import android.app.FragmentManager;",
+                        "import com.rgeldmacher.leash.HolderCache;",
+                        "import com.rgeldmacher.leash.HolderFragments;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
                         "import java.lang.Object;",
+                        "import java.lang.Override;",
                         "",
                         "public final class TestLeash {",
+                        "  private static final HolderCache<TestRetainedDataFragment> HOLDER_CACHE = new HolderCache<>();",
+                        "",
                         "  private TestLeash() {",
                         "  }",
                         "",
@@ -60,6 +81,7 @@ public class LeashAnnotationProcessorTest {
                         "    if (retainedFragment != null) {",
                         "      if (retainedFragment.hasBeenRetained) {",
                         "        activity.thing = retainedFragment.thing;",
+                        "        LeashMetrics.fieldsRestored(1);",
                         "      }",
                         "    }",
                         "  }",
@@ -84,12 +106,20 @@ public class LeashAnnotationProcessorTest {
                         "    if (activity != null) {",
                         "      FragmentManager fm = activity.getFragmentManager();",
                         "      if (fm != null) {",
+                        "        TestRetainedDataFragment cachedFragment = HOLDER_CACHE.get(fm);",
+                        "        if (cachedFragment != null) {",
+                        "          LeashMetrics.holderLookup(Test.class, true);",
+                        "          return cachedFragment;",
+                        "        }",
+                        "        LeashMetrics.holderLookup(Test.class, false);",
                         "        Fragment retainedFragment = fm.findFragmentByTag(\"TestRetainedDataFragment\");",
                         "        if (retainedFragment == null) {",
                         "          retainedFragment = new TestRetainedDataFragment();",
-                        "          fm.beginTransaction().add(retainedFragment, \"TestRetainedDataFragment\").commit();",
+                        "          HolderFragments.add(fm, retainedFragment, \"TestRetainedDataFragment\");",
+                        "          LeashMetrics.holderCreated(Test.class, true);",
                         "        }",
                         "        if (retainedFragment instanceof TestRetainedDataFragment) {",
+                        "          HOLDER_CACHE.put(fm, (TestRetainedDataFragment) retainedFragment);",
                         "          return (TestRetainedDataFragment) retainedFragment;",
                         "        }",
                         "      }",
@@ -97,6 +127,23 @@ public class LeashAnnotationProcessorTest {
                         "    return null;",
                         "  }",
                         "",
+                        "  public static final class Binder implements LeashBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "  }",
+                        "",
                         "  public static class TestRetainedDataFragment extends Fragment {",
                         "    Object thing;",
                         "",
@@ -133,9 +180,16 @@ public class LeashAnnotationProcessorTest {
                         "import android.support.v4.app.Fragment;",
                         "import android.support.v4.app.FragmentActivity;",
                         "import android.support.v4.app.FragmentManager;",
+                        "import com.rgeldmacher.leash.HolderCache;",
+                        "import com.rgeldmacher.leash.HolderFragments;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
                         "import java.lang.Object;",
+                        "import java.lang.Override;",
                         "",
                         "public final class TestLeash {",
+                        "  private static final HolderCache<TestRetainedDataFragment> HOLDER_CACHE = new HolderCache<>();",
+                        "",
                         "  private TestLeash() {",
                         "  }",
                         "",
@@ -144,6 +198,7 @@ public class LeashAnnotationProcessorTest {
                         "    if (retainedFragment != null) {",
                         "      if (retainedFragment.hasBeenRetained) {",
                         "        activity.thing = retainedFragment.thing;",
+                        "        LeashMetrics.fieldsRestored(1);",
                         "      }",
                         "    }",
                         "  }",
@@ -168,12 +223,20 @@ public class LeashAnnotationProcessorTest {
                         "    if (activity != null) {",
                         "      FragmentManager fm = activity.getSupportFragmentManager();",
                         "      if (fm != null) {",
+                        "        TestRetainedDataFragment cachedFragment = HOLDER_CACHE.get(fm);",
+                        "        if (cachedFragment != null) {",
+                        "          LeashMetrics.holderLookup(Test.class, true);",
+                        "          return cachedFragment;",
+                        "        }",
+                        "        LeashMetrics.holderLookup(Test.class, false);",
                         "        Fragment retainedFragment = fm.findFragmentByTag(\"TestRetainedDataFragment\");",
                         "        if (retainedFragment == null) {",
                         "          retainedFragment = new TestRetainedDataFragment();",
-                        "          fm.beginTransaction().add(retainedFragment, \"TestRetainedDataFragment\").commit();",
+                        "          HolderFragments.add(fm, retainedFragment, \"TestRetainedDataFragment\");",
+                        "          LeashMetrics.holderCreated(Test.class, true);",
                         "        }",
                         "        if (retainedFragment instanceof TestRetainedDataFragment) {",
+                        "          HOLDER_CACHE.put(fm, (TestRetainedDataFragment) retainedFragment);",
                         "          return (TestRetainedDataFragment) retainedFragment;",
                         "        }",
                         "      }",
@@ -181,6 +244,23 @@ public class LeashAnnotationProcessorTest {
                         "    return null;",
                         "  }",
                         "",
+                        "  public static final class Binder implements LeashBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "  }",
+                        "",
                         "  public static class TestRetainedDataFragment extends Fragment {",
                         "    Object thing;",
                         "",
@@ -217,31 +297,45 @@ public class LeashAnnotationProcessorTest {
                         "import android.app.Activity;",
                         "import android.app.Fragment;",
                         "import android.app.FragmentManager;",
+                        "import com.rgeldmacher.leash.HolderCache;",
+                        "import com.rgeldmacher.leash.HolderFragments;",
+                        "import com.rgeldmacher.leash.HostKeys;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
                         "import java.lang.Object;",
+                        "import java.lang.Override;",
+                        "import java.lang.String;",
                         "",
                         "public final class TestLeash {",
+                        "  private static final HolderCache<TestRetainedDataFragment> HOLDER_CACHE = new HolderCache<>();",
+                        "",
                         "  private TestLeash() {",
                         "  }",
                         "",
                         "  public static void restore(Test fragment) {",
                         "    Activity activity = null;",
+                        "    String hostKey = null;",
                         "    if (fragment != null) {",
                         "      activity = fragment.getActivity();",
+                        "      hostKey = HostKeys.of(fragment);",
                         "    }",
-                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity, hostKey);",
                         "    if (retainedFragment != null) {",
                         "      if (retainedFragment.hasBeenRetained) {",
                         "        fragment.thing = retainedFragment.thing;",
+                        "        LeashMetrics.fieldsRestored(1);",
                         "      }",
                         "    }",
                         "  }",
                         "",
                         "  public static void retain(Test fragment) {",
                         "    Activity activity = null;",
+                        "    String hostKey = null;",
                         "    if (fragment != null) {",
                         "      activity = fragment.getActivity();",
+                        "      hostKey = HostKeys.of(fragment);",
                         "    }",
-                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity, hostKey);",
                         "    if (retainedFragment != null) {",
                         "      retainedFragment.thing = fragment.thing;",
                         "      retainedFragment.hasBeenRetained = true;",
@@ -249,27 +343,40 @@ public class LeashAnnotationProcessorTest {
                         "  }",
                         "",
                         "  public static void clear(Test fragment) {",
-                        "    Activity activity = null;",
                         "    if (fragment != null) {",
-                        "      activity = fragment.getActivity();",
-                        "    }",
-                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
-                        "    if (retainedFragment != null) {",
-                        "      retainedFragment.hasBeenRetained = false;",
-                        "      retainedFragment.thing = null;",
+                        "      Activity activity = fragment.getActivity();",
+                        "      if (activity != null) {",
+                        "        FragmentManager fm = activity.getFragmentManager();",
+                        "        String hostKey = HostKeys.of(fragment);",
+                        "        TestRetainedDataFragment retainedFragment = HolderFragments.find(fm, HOLDER_CACHE, hostKey, \"TestRetainedDataFragment\" + hostKey, TestRetainedDataFragment.class);",
+                        "        if (retainedFragment != null) {",
+                        "          retainedFragment.hasBeenRetained = false;",
+                        "          retainedFragment.thing = null;",
+                        "          HolderFragments.remove(fm, HOLDER_CACHE, hostKey, retainedFragment);",
+                        "        }",
+                        "      }",
                         "    }",
                         "  }",
                         "",
-                        "  private static TestRetainedDataFragment getRetainedFragment(Activity activity) {",
-                        "    if (activity != null) {",
+                        "  private static TestRetainedDataFragment getRetainedFragment(Activity activity, String hostKey) {",
+                        "    if (activity != null && hostKey != null) {",
                         "      FragmentManager fm = activity.getFragmentManager();",
                         "      if (fm != null) {",
-                        "        Fragment retainedFragment = fm.findFragmentByTag(\"TestRetainedDataFragment\");",
+                        "        TestRetainedDataFragment cachedFragment = HOLDER_CACHE.get(fm, hostKey);",
+                        "        if (cachedFragment != null) {",
+                        "          LeashMetrics.holderLookup(Test.class, true);",
+                        "          return cachedFragment;",
+                        "        }",
+                        "        LeashMetrics.holderLookup(Test.class, false);",
+                        "        String tag = \"TestRetainedDataFragment\" + hostKey;",
+                        "        Fragment retainedFragment = fm.findFragmentByTag(tag);",
                         "        if (retainedFragment == null) {",
                         "          retainedFragment = new TestRetainedDataFragment();",
-                        "          fm.beginTransaction().add(retainedFragment, \"TestRetainedDataFragment\").commit();",
+                        "          HolderFragments.add(fm, retainedFragment, tag);",
+                        "          LeashMetrics.holderCreated(Test.class, true);",
                         "        }",
                         "        if (retainedFragment instanceof TestRetainedDataFragment) {",
+                        "          HOLDER_CACHE.put(fm, hostKey, (TestRetainedDataFragment) retainedFragment);",
                         "          return (TestRetainedDataFragment) retainedFragment;",
                         "        }",
                         "      }",
@@ -277,6 +384,23 @@ public class LeashAnnotationProcessorTest {
                         "    return null;",
                         "  }",
                         "",
+                        "  public static final class Binder implements LeashBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "  }",
+                        "",
                         "  public static class TestRetainedDataFragment extends Fragment {",
                         "    Object thing;",
                         "",
@@ -313,31 +437,45 @@ public class LeashAnnotationProcessorTest {
                         "import android.support.v4.app.Fragment;",
                         "import android.support.v4.app.FragmentActivity;",
                         "import android.support.v4.app.FragmentManager;",
+                        "import com.rgeldmacher.leash.HolderCache;",
+                        "import com.rgeldmacher.leash.HolderFragments;",
+                        "import com.rgeldmacher.leash.HostKeys;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
                         "import java.lang.Object;",
+                        "import java.lang.Override;",
+                        "import java.lang.String;",
                         "",
                         "public final class TestLeash {",
+                        "  private static final HolderCache<TestRetainedDataFragment> HOLDER_CACHE = new HolderCache<>();",
+                        "",
                         "  private TestLeash() {",
                         "  }",
                         "",
                         "  public static void restore(Test fragment) {",
                         "    FragmentActivity activity = null;",
+                        "    String hostKey = null;",
                         "    if (fragment != null) {",
                         "      activity = fragment.getActivity();",
+                        "      hostKey = HostKeys.of(fragment);",
                         "    }",
-                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity, hostKey);",
                         "    if (retainedFragment != null) {",
                         "      if (retainedFragment.hasBeenRetained) {",
                         "        fragment.thing = retainedFragment.thing;",
+                        "        LeashMetrics.fieldsRestored(1);",
                         "      }",
                         "    }",
                         "  }",
                         "",
                         "  public static void retain(Test fragment) {",
                         "    FragmentActivity activity = null;",
+                        "    String hostKey = null;",
                         "    if (fragment != null) {",
                         "      activity = fragment.getActivity();",
+                        "      hostKey = HostKeys.of(fragment);",
                         "    }",
-                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity, hostKey);",
                         "    if (retainedFragment != null) {",
                         "      retainedFragment.thing = fragment.thing;",
                         "      retainedFragment.hasBeenRetained = true;",
@@ -345,27 +483,40 @@ public class LeashAnnotationProcessorTest {
                         "  }",
                         "",
                         "  public static void clear(Test fragment) {",
-                        "    FragmentActivity activity = null;",
                         "    if (fragment != null) {",
-                        "      activity = fragment.getActivity();",
-                        "    }",
-                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
-                        "    if (retainedFragment != null) {",
-                        "      retainedFragment.hasBeenRetained = false;",
-                        "      retainedFragment.thing = null;",
+                        "      FragmentActivity activity = fragment.getActivity();",
+                        "      if (activity != null) {",
+                        "        FragmentManager fm = activity.getSupportFragmentManager();",
+                        "        String hostKey = HostKeys.of(fragment);",
+                        "        TestRetainedDataFragment retainedFragment = HolderFragments.find(fm, HOLDER_CACHE, hostKey, \"TestRetainedDataFragment\" + hostKey, TestRetainedDataFragment.class);",
+                        "        if (retainedFragment != null) {",
+                        "          retainedFragment.hasBeenRetained = false;",
+                        "          retainedFragment.thing = null;",
+                        "          HolderFragments.remove(fm, HOLDER_CACHE, hostKey, retainedFragment);",
+                        "        }",
+                        "      }",
                         "    }",
                         "  }",
                         "",
-                        "  private static TestRetainedDataFragment getRetainedFragment(FragmentActivity activity) {",
-                        "    if (activity != null) {",
+                        "  private static TestRetainedDataFragment getRetainedFragment(FragmentActivity activity, String hostKey) {",
+                        "    if (activity != null && hostKey != null) {",
                         "      FragmentManager fm = activity.getSupportFragmentManager();",
                         "      if (fm != null) {",
-                        "        Fragment retainedFragment = fm.findFragmentByTag(\"TestRetainedDataFragment\");",
+                        "        TestRetainedDataFragment cachedFragment = HOLDER_CACHE.get(fm, hostKey);",
+                        "        if (cachedFragment != null) {",
+                        "          LeashMetrics.holderLookup(Test.class, true);",
+                        "          return cachedFragment;",
+                        "        }",
+                        "        LeashMetrics.holderLookup(Test.class, false);",
+                        "        String tag = \"TestRetainedDataFragment\" + hostKey;",
+                        "        Fragment retainedFragment = fm.findFragmentByTag(tag);",
                         "        if (retainedFragment == null) {",
                         "          retainedFragment = new TestRetainedDataFragment();",
-                        "          fm.beginTransaction().add(retainedFragment, \"TestRetainedDataFragment\").commit();",
+                        "          HolderFragments.add(fm, retainedFragment, tag);",
+                        "          LeashMetrics.holderCreated(Test.class, true);",
                         "        }",
                         "        if (retainedFragment instanceof TestRetainedDataFragment) {",
+                        "          HOLDER_CACHE.put(fm, hostKey, (TestRetainedDataFragment) retainedFragment);",
                         "          return (TestRetainedDataFragment) retainedFragment;",
                         "        }",
                         "      }",
@@ -373,6 +524,23 @@ public class LeashAnnotationProcessorTest {
                         "    return null;",
                         "  }",
                         "",
+                        "  public static final class Binder implements LeashBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "  }",
+                        "",
                         "  public static class TestRetainedDataFragment extends Fragment {",
                         "    Object thing;",
                         "",
@@ -425,8 +593,15 @@ public class LeashAnnotationProcessorTest {
                         "import android.app.Activity;",
                         "import android.app.Fragment;",
                         "import android.app.FragmentManager;",
+                        "import com.rgeldmacher.leash.HolderCache;",
+                        "import com.rgeldmacher.leash.HolderFragments;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
+                        "import java.lang.Override;",
                         "",
                         "public final class TestLeash {",
+                        "  private static final HolderCache<TestRetainedDataFragment> HOLDER_CACHE = new HolderCache<>();",
+                        "",
                         "  private TestLeash() {",
                         "  }",
                         "",
@@ -442,6 +617,7 @@ public class LeashAnnotationProcessorTest {
                         "        activity.mInt = retainedFragment.mInt;",
                         "        activity.mLong = retainedFragment.mLong;",
                         "        activity.mShort = retainedFragment.mShort;",
+                        "        LeashMetrics.fieldsRestored(8);",
                         "      }",
                         "    }",
                         "  }",
@@ -480,12 +656,20 @@ public class LeashAnnotationProcessorTest {
                         "    if (activity != null) {",
                         "      FragmentManager fm = activity.getFragmentManager();",
                         "      if (fm != null) {",
+                        "        TestRetainedDataFragment cachedFragment = HOLDER_CACHE.get(fm);",
+                        "        if (cachedFragment != null) {",
+                        "          LeashMetrics.holderLookup(Test.class, true);",
+                        "          return cachedFragment;",
+                        "        }",
+                        "        LeashMetrics.holderLookup(Test.class, false);",
                         "        Fragment retainedFragment = fm.findFragmentByTag(\"TestRetainedDataFragment\");",
                         "        if (retainedFragment == null) {",
                         "          retainedFragment = new TestRetainedDataFragment();",
-                        "          fm.beginTransaction().add(retainedFragment, \"TestRetainedDataFragment\").commit();",
+                        "          HolderFragments.add(fm, retainedFragment, \"TestRetainedDataFragment\");",
+                        "          LeashMetrics.holderCreated(Test.class, true);",
                         "        }",
                         "        if (retainedFragment instanceof TestRetainedDataFragment) {",
+                        "          HOLDER_CACHE.put(fm, (TestRetainedDataFragment) retainedFragment);",
                         "          return (TestRetainedDataFragment) retainedFragment;",
                         "        }",
                         "      }",
@@ -493,6 +677,23 @@ public class LeashAnnotationProcessorTest {
                         "    return null;",
                         "  }",
                         "",
+                        "  public static final class Binder implements LeashBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "  }",
+                        "",
                         "  public static class TestRetainedDataFragment extends Fragment {",
                         "    boolean mBool;",
                         "    byte mByte;",
@@ -502,6 +703,7 @@ public class LeashAnnotationProcessorTest {
                         "    int mInt;",
                         "    long mLong;",
                         "    short mShort;",
+                        "",
                         "    boolean hasBeenRetained;",
                         "",
                         "    public TestRetainedDataFragment() {",
@@ -518,39 +720,2157 @@ public class LeashAnnotationProcessorTest {
     }
 
     @Test
-    public void testProcessLeashSourceNoActivityOrFragment() {
+    public void testProcessIndex() {
         JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
                 "package test;",
+                "import android.app.Activity;",
                 "import com.rgeldmacher.leash.Retain;",
-                "public class Test {",
+                "public class Test extends Activity {",
                 "    @Retain",
                 "    Object thing;",
                 "}"
         ));
 
+        JavaFileObject expectedSource = JavaFileObjects.forSourceString("test/TestLeashIndex",
+                Joiner.on('\n').join(
+                        "package test;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashIndex;",
+                        "import java.lang.Class;",
+                        "import java.lang.Integer;",
+                        "import java.lang.Override;",
+                        "import java.util.HashMap;",
+                        "import java.util.Map;",
+                        "",
+                        "public final class TestLeashIndex implements LeashIndex {",
+                        "  private final Map<Class<?>, Integer> hosts = new HashMap<>(2);",
+                        "",
+                        "  public TestLeashIndex() {",
+                        "    hosts.put(Test.class, 0);",
+                        "  }",
+                        "",
+                        "  @Override",
+                        "  public LeashBinder<?> getBinder(Class<?> hostClass) {",
+                        "    Integer host = hosts.get(hostClass);",
+                        "    if (host == null) {",
+                        "      return null;",
+                        "    }",
+                        "    switch (host) {",
+                        "      case 0:",
+                        "        return new TestLeash.Binder();",
+                        "      default:",
+                        "        return null;",
+                        "    }",
+                        "  }",
+                        "}"
+                ));
+
         ASSERT.about(javaSource()).that(source)
+                .withCompilerOptions("-Aleash.index=test.TestLeashIndex")
                 .processedWith(new LeashAnnotationProcessor())
-                .failsToCompile()
-                .withErrorContaining("The @Retain annotation can only be applied to fields of an Activity or Fragment")
-                .in(source).onLine(5);
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expectedSource);
     }
 
     @Test
-    public void testProcessFieldIsPrivate() {
+    public void testProcessSubclass() {
+        JavaFileObject baseSource = JavaFileObjects.forSourceString("test.Base", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Base extends Activity {",
+                "    @Retain",
+                "    Object thing;",
+                "}"
+        ));
+
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Test extends Base {",
+                "    @Retain",
+                "    Object other;",
+                "}"
+        ));
+
+        JavaFileObject expectedSource = JavaFileObjects.forSourceString("test/TestLeash",
+                Joiner.on('\n').join(
+                        "package test;",
+                        "import android.app.Activity;",
+                        "import android.app.Fragment;",
+                        "import android.app.FragmentManager;",
+                        "import com.rgeldmacher.leash.HolderCache;",
+                        "import com.rgeldmacher.leash.HolderFragments;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
+                        "import java.lang.Object;",
+                        "import java.lang.Override;",
+                        "",
+                        "public final class TestLeash {",
+                        "  private static final HolderCache<TestRetainedDataFragment> HOLDER_CACHE = new HolderCache<>();",
+                        "",
+                        "  private TestLeash() {",
+                        "  }",
+                        "",
+                        "  public static void restore(Test activity) {",
+                        "    BaseLeash.restore(activity);",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      if (retainedFragment.hasBeenRetained) {",
+                        "        activity.other = retainedFragment.other;",
+                        "        LeashMetrics.fieldsRestored(1);",
+                        "      }",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void retain(Test activity) {",
+                        "    BaseLeash.retain(activity);",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      retainedFragment.other = activity.other;",
+                        "      retainedFragment.hasBeenRetained = true;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void clear(Test activity) {",
+                        "    BaseLeash.clear(activity);",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      retainedFragment.hasBeenRetained = false;",
+                        "      retainedFragment.other = null;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  private static TestRetainedDataFragment getRetainedFragment(Activity activity) {",
+                        "    if (activity != null) {",
+                        "      FragmentManager fm = activity.getFragmentManager();",
+                        "      if (fm != null) {",
+                        "        TestRetainedDataFragment cachedFragment = HOLDER_CACHE.get(fm);",
+                        "        if (cachedFragment != null) {",
+                        "          LeashMetrics.holderLookup(Test.class, true);",
+                        "          return cachedFragment;",
+                        "        }",
+                        "        LeashMetrics.holderLookup(Test.class, false);",
+                        "        Fragment retainedFragment = fm.findFragmentByTag(\"TestRetainedDataFragment\");",
+                        "        if (retainedFragment == null) {",
+                        "          retainedFragment = new TestRetainedDataFragment();",
+                        "          HolderFragments.add(fm, retainedFragment, \"TestRetainedDataFragment\");",
+                        "          LeashMetrics.holderCreated(Test.class, true);",
+                        "        }",
+                        "        if (retainedFragment instanceof TestRetainedDataFragment) {",
+                        "          HOLDER_CACHE.put(fm, (TestRetainedDataFragment) retainedFragment);",
+                        "          return (TestRetainedDataFragment) retainedFragment;",
+                        "        }",
+                        "      }",
+                        "    }",
+                        "    return null;",
+                        "  }",
+                        "",
+                        "  public static final class Binder implements LeashBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static class TestRetainedDataFragment extends Fragment {",
+                        "    Object other;",
+                        "",
+                        "    boolean hasBeenRetained;",
+                        "",
+                        "    public TestRetainedDataFragment() {",
+                        "      setRetainInstance(true);}",
+                        "  }",
+                        "}"
+                ));
+
+        ASSERT.about(javaSources()).that(Arrays.asList(baseSource, source))
+                .processedWith(new LeashAnnotationProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expectedSource);
+    }
+
+    @Test
+    public void testProcessSharedHolder() {
         JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
                 "package test;",
                 "import android.app.Activity;",
                 "import com.rgeldmacher.leash.Retain;",
                 "public class Test extends Activity {",
                 "    @Retain",
-                "    private Object thing;",
+                "    Object thing;",
                 "}"
         ));
 
+        JavaFileObject expectedSource = JavaFileObjects.forSourceString("test/TestLeash",
+                Joiner.on('\n').join(
+                        "package test;",
+                        "import android.app.Activity;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
+                        "import com.rgeldmacher.leash.RetainedHolder;",
+                        "import com.rgeldmacher.leash.RetainedHolders;",
+                        "import java.lang.Object;",
+                        "import java.lang.Override;",
+                        "",
+                        "public final class TestLeash {",
+                        "  private TestLeash() {",
+                        "  }",
+                        "",
+                        "  public static void restore(Test activity) {",
+                        "    TestRetainedData retainedData = getRetainedData(activity);",
+                        "    if (retainedData != null) {",
+                        "      if (retainedData.hasBeenRetained) {",
+                        "        activity.thing = retainedData.thing;",
+                        "        LeashMetrics.fieldsRestored(1);",
+                        "      }",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void retain(Test activity) {",
+                        "    TestRetainedData retainedData = getRetainedData(activity);",
+                        "    if (retainedData != null) {",
+                        "      retainedData.thing = activity.thing;",
+                        "      retainedData.hasBeenRetained = true;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void clear(Test activity) {",
+                        "    TestRetainedData retainedData = getRetainedData(activity);",
+                        "    if (retainedData != null) {",
+                        "      retainedData.hasBeenRetained = false;",
+                        "      retainedData.thing = null;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  private static TestRetainedData getRetainedData(Activity activity) {",
+                        "    if (activity != null) {",
+                        "      RetainedHolder holder = RetainedHolders.get(activity, Test.class);",
+                        "      if (holder != null) {",
+                        "        Object retainedData = holder.get(\"test.Test\");",
+                        "        if (retainedData == null) {",
+                        "          retainedData = new TestRetainedData();",
+                        "          holder.put(\"test.Test\", retainedData);",
+                        "        }",
+                        "        if (retainedData instanceof TestRetainedData) {",
+                        "          return (TestRetainedData) retainedData;",
+                        "        }",
+                        "      }",
+                        "    }",
+                        "    return null;",
+                        "  }",
+                        "",
+                        "  public static final class Binder implements LeashBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "  }",
+                        "",
+                        "  static class TestRetainedData {",
+                        "    Object thing;",
+                        "",
+                        "    boolean hasBeenRetained;",
+                        "  }",
+                        "}"
+                ));
+
         ASSERT.about(javaSource()).that(source)
+                .withCompilerOptions("-Aleash.holder=shared")
                 .processedWith(new LeashAnnotationProcessor())
-                .failsToCompile()
-                .withErrorContaining("Field must not be private, protected, static or final")
-                .in(source).onLine(6);
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expectedSource);
+    }
+
+    @Test
+    public void testProcessSharedHolderFragment() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.support.v4.app.Fragment;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Test extends Fragment {",
+                "    @Retain",
+                "    Object thing;",
+                "}"
+        ));
+
+        JavaFileObject expectedSource = JavaFileObjects.forSourceString("test/TestLeash",
+                Joiner.on('\n').join(
+                        "package test;",
+                        "import android.support.v4.app.FragmentActivity;",
+                        "import com.rgeldmacher.leash.HostKeys;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
+                        "import com.rgeldmacher.leash.RetainedHolder;",
+                        "import com.rgeldmacher.leash.RetainedHolders;",
+                        "import java.lang.Object;",
+                        "import java.lang.Override;",
+                        "import java.lang.String;",
+                        "",
+                        "public final class TestLeash {",
+                        "  private TestLeash() {",
+                        "  }",
+                        "",
+                        "  public static void restore(Test fragment) {",
+                        "    FragmentActivity activity = null;",
+                        "    String hostKey = null;",
+                        "    if (fragment != null) {",
+                        "      activity = fragment.getActivity();",
+                        "      hostKey = HostKeys.of(fragment);",
+                        "    }",
+                        "    TestRetainedData retainedData = getRetainedData(activity, hostKey);",
+                        "    if (retainedData != null) {",
+                        "      if (retainedData.hasBeenRetained) {",
+                        "        fragment.thing = retainedData.thing;",
+                        "        LeashMetrics.fieldsRestored(1);",
+                        "      }",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void retain(Test fragment) {",
+                        "    FragmentActivity activity = null;",
+                        "    String hostKey = null;",
+                        "    if (fragment != null) {",
+                        "      activity = fragment.getActivity();",
+                        "      hostKey = HostKeys.of(fragment);",
+                        "    }",
+                        "    TestRetainedData retainedData = getRetainedData(activity, hostKey);",
+                        "    if (retainedData != null) {",
+                        "      retainedData.thing = fragment.thing;",
+                        "      retainedData.hasBeenRetained = true;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void clear(Test fragment) {",
+                        "    FragmentActivity activity = null;",
+                        "    String hostKey = null;",
+                        "    if (fragment != null) {",
+                        "      activity = fragment.getActivity();",
+                        "      hostKey = HostKeys.of(fragment);",
+                        "    }",
+                        "    TestRetainedData retainedData = getRetainedData(activity, hostKey);",
+                        "    if (retainedData != null) {",
+                        "      retainedData.hasBeenRetained = false;",
+                        "      retainedData.thing = null;",
+                        "      RetainedHolders.get(activity, Test.class).remove(\"test.Test\", hostKey);",
+                        "    }",
+                        "  }",
+                        "",
+                        "  private static TestRetainedData getRetainedData(FragmentActivity activity, String hostKey) {",
+                        "    if (activity != null && hostKey != null) {",
+                        "      RetainedHolder holder = RetainedHolders.get(activity, Test.class);",
+                        "      if (holder != null) {",
+                        "        Object retainedData = holder.get(\"test.Test\", hostKey);",
+                        "        if (retainedData == null) {",
+                        "          retainedData = new TestRetainedData();",
+                        "          holder.put(\"test.Test\", hostKey, retainedData);",
+                        "        }",
+                        "        if (retainedData instanceof TestRetainedData) {",
+                        "          return (TestRetainedData) retainedData;",
+                        "        }",
+                        "      }",
+                        "    }",
+                        "    return null;",
+                        "  }",
+                        "",
+                        "  public static final class Binder implements LeashBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "  }",
+                        "",
+                        "  static class TestRetainedData {",
+                        "    Object thing;",
+                        "",
+                        "    boolean hasBeenRetained;",
+                        "  }",
+                        "}"
+                ));
+
+        ASSERT.about(javaSource()).that(source)
+                .withCompilerOptions("-Aleash.holder=shared")
+                .processedWith(new LeashAnnotationProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expectedSource);
+    }
+
+    @Test
+    public void testProcessStoreOption() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Test extends Activity {",
+                "    @Retain",
+                "    Object thing;",
+                "}"
+        ));
+
+        JavaFileObject expectedSource = JavaFileObjects.forSourceString("test/TestLeash",
+                Joiner.on('\n').join(
+                        "package test;",
+                        "import android.app.Activity;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
+                        "import com.rgeldmacher.leash.RetainedHolder;",
+                        "import com.rgeldmacher.leash.RetainedHolders;",
+                        "import java.lang.Object;",
+                        "import java.lang.Override;",
+                        "",
+                        "public final class TestLeash {",
+                        "  private TestLeash() {",
+                        "  }",
+                        "",
+                        "  public static void restore(Test activity) {",
+                        "    TestRetainedData retainedData = getRetainedData(activity);",
+                        "    if (retainedData != null) {",
+                        "      if (retainedData.hasBeenRetained) {",
+                        "        activity.thing = retainedData.thing;",
+                        "        LeashMetrics.fieldsRestored(1);",
+                        "      }",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void retain(Test activity) {",
+                        "    TestRetainedData retainedData = getRetainedData(activity);",
+                        "    if (retainedData != null) {",
+                        "      retainedData.thing = activity.thing;",
+                        "      retainedData.hasBeenRetained = true;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void clear(Test activity) {",
+                        "    TestRetainedData retainedData = getRetainedData(activity);",
+                        "    if (retainedData != null) {",
+                        "      retainedData.hasBeenRetained = false;",
+                        "      retainedData.thing = null;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  private static TestRetainedData getRetainedData(Activity activity) {",
+                        "    if (activity != null) {",
+                        "      RetainedHolder holder = RetainedHolders.NON_CONFIGURATION_INSTANCE.get(activity, Test.class);",
+                        "      if (holder != null) {",
+                        "        Object retainedData = holder.get(\"test.Test\");",
+                        "        if (retainedData == null) {",
+                        "          retainedData = new TestRetainedData();",
+                        "          holder.put(\"test.Test\", retainedData);",
+                        "        }",
+                        "        if (retainedData instanceof TestRetainedData) {",
+                        "          return (TestRetainedData) retainedData;",
+                        "        }",
+                        "      }",
+                        "    }",
+                        "    return null;",
+                        "  }",
+                        "",
+                        "  public static final class Binder implements LeashBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "  }",
+                        "",
+                        "  static class TestRetainedData {",
+                        "    Object thing;",
+                        "",
+                        "    boolean hasBeenRetained;",
+                        "  }",
+                        "}"
+                ));
+
+        ASSERT.about(javaSource()).that(source)
+                .withCompilerOptions("-Aleash.store=nonconfig")
+                .processedWith(new LeashAnnotationProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expectedSource);
+    }
+
+    @Test
+    public void testProcessAndroidXFragment() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import androidx.fragment.app.Fragment;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Test extends Fragment {",
+                "    @Retain",
+                "    Object thing;",
+                "}"
+        ));
+
+        JavaFileObject expectedSource = JavaFileObjects.forSourceString("test/TestLeash",
+                Joiner.on('\n').join(
+                        "package test;",
+                        "import androidx.lifecycle.ViewModel;",
+                        "import androidx.lifecycle.ViewModelProvider;",
+                        "import androidx.lifecycle.ViewModelStoreOwner;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
+                        "import java.lang.Object;",
+                        "import java.lang.Override;",
+                        "",
+                        "public final class TestLeash {",
+                        "  private TestLeash() {",
+                        "  }",
+                        "",
+                        "  public static void restore(Test fragment) {",
+                        "    TestRetainedData retainedData = getRetainedData(fragment);",
+                        "    if (retainedData != null) {",
+                        "      if (retainedData.hasBeenRetained) {",
+                        "        fragment.thing = retainedData.thing;",
+                        "        LeashMetrics.fieldsRestored(1);",
+                        "      }",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void retain(Test fragment) {",
+                        "    TestRetainedData retainedData = getRetainedData(fragment);",
+                        "    if (retainedData != null) {",
+                        "      retainedData.thing = fragment.thing;",
+                        "      retainedData.hasBeenRetained = true;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void clear(Test fragment) {",
+                        "    TestRetainedData retainedData = getRetainedData(fragment);",
+                        "    if (retainedData != null) {",
+                        "      retainedData.hasBeenRetained = false;",
+                        "      retainedData.thing = null;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  private static TestRetainedData getRetainedData(ViewModelStoreOwner owner) {",
+                        "    if (owner != null) {",
+                        "      return new ViewModelProvider(owner.getViewModelStore(), new ViewModelProvider.NewInstanceFactory()).get(TestRetainedData.class);",
+                        "    }",
+                        "    return null;",
+                        "  }",
+                        "",
+                        "  public static final class Binder implements LeashBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static class TestRetainedData extends ViewModel {",
+                        "    Object thing;",
+                        "",
+                        "    boolean hasBeenRetained;",
+                        "  }",
+                        "}"
+                ));
+
+        List<JavaFileObject> sources = new ArrayList<>(getAndroidXSources());
+        sources.add(source);
+        ASSERT.about(javaSources()).that(sources)
+                .processedWith(new LeashAnnotationProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expectedSource);
+    }
+
+    @Test
+    public void testProcessCompactHolder() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "import java.util.List;",
+                "public class Test extends Activity {",
+                "    @Retain",
+                "    Object thing;",
+                "    @Retain",
+                "    List<String> names;",
+                "    @Retain",
+                "    int count;",
+                "    @Retain",
+                "    boolean flag;",
+                "    @Retain",
+                "    float ratio;",
+                "    @Retain",
+                "    double amount;",
+                "    @Retain",
+                "    long time;",
+                "    @Retain",
+                "    char letter;",
+                "}"
+        ));
+
+        JavaFileObject expectedSource = JavaFileObjects.forSourceString("test/TestLeash",
+                Joiner.on('\n').join(
+                        "package test;",
+                        "import android.app.Activity;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
+                        "import com.rgeldmacher.leash.RetainedHolder;",
+                        "import com.rgeldmacher.leash.RetainedHolders;",
+                        "import com.rgeldmacher.leash.RetainedSlots;",
+                        "import java.lang.Double;",
+                        "import java.lang.Float;",
+                        "import java.lang.Override;",
+                        "import java.lang.String;",
+                        "import java.lang.SuppressWarnings;",
+                        "import java.util.List;",
+                        "",
+                        "public final class TestLeash {",
+                        "  private TestLeash() {",
+                        "  }",
+                        "",
+                        "  @SuppressWarnings(\"unchecked\")",
+                        "  public static void restore(Test activity) {",
+                        "    RetainedSlots retainedData = getRetainedData(activity);",
+                        "    if (retainedData != null) {",
+                        "      if (retainedData.hasBeenRetained) {",
+                        "        activity.thing = retainedData.refs[0];",
+                        "        activity.names = (List<String>) retainedData.refs[1];",
+                        "        activity.count = (int) retainedData.prims[0];",
+                        "        activity.flag = retainedData.prims[1] != 0L;",
+                        "        activity.ratio = Float.intBitsToFloat((int) retainedData.prims[2]);",
+                        "        activity.amount = Double.longBitsToDouble(retainedData.prims[3]);",
+                        "        activity.time = retainedData.prims[4];",
+                        "        activity.letter = (char) retainedData.prims[5];",
+                        "        LeashMetrics.fieldsRestored(8);",
+                        "      }",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void retain(Test activity) {",
+                        "    RetainedSlots retainedData = getRetainedData(activity);",
+                        "    if (retainedData != null) {",
+                        "      retainedData.refs[0] = activity.thing;",
+                        "      retainedData.refs[1] = activity.names;",
+                        "      retainedData.prims[0] = activity.count;",
+                        "      retainedData.prims[1] = activity.flag ? 1L : 0L;",
+                        "      retainedData.prims[2] = Float.floatToRawIntBits(activity.ratio);",
+                        "      retainedData.prims[3] = Double.doubleToRawLongBits(activity.amount);",
+                        "      retainedData.prims[4] = activity.time;",
+                        "      retainedData.prims[5] = activity.letter;",
+                        "      retainedData.hasBeenRetained = true;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void clear(Test activity) {",
+                        "    RetainedSlots retainedData = getRetainedData(activity);",
+                        "    if (retainedData != null) {",
+                        "      retainedData.clear();",
+                        "    }",
+                        "  }",
+                        "",
+                        "  private static RetainedSlots getRetainedData(Activity activity) {",
+                        "    if (activity != null) {",
+                        "      RetainedHolder holder = RetainedHolders.get(activity, Test.class);",
+                        "      if (holder != null) {",
+                        "        return RetainedSlots.of(holder, \"test.Test\", 2, 6);",
+                        "      }",
+                        "    }",
+                        "    return null;",
+                        "  }",
+                        "",
+                        "  public static final class Binder implements LeashBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "  }",
+                        "}"
+                ));
+
+        ASSERT.about(javaSource()).that(source)
+                .withCompilerOptions("-Aleash.holder=compact")
+                .processedWith(new LeashAnnotationProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expectedSource);
+    }
+
+    @Test
+    public void testProcessPolicy() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "import java.util.List;",
+                "public class Test extends Activity {",
+                "    @Retain(policy = Retain.Policy.SOFT)",
+                "    List<String> names;",
+                "    @Retain(policy = Retain.Policy.WEAK)",
+                "    Object thing;",
+                "}"
+        ));
+
+        JavaFileObject expectedSource = JavaFileObjects.forSourceString("test/TestLeash",
+                Joiner.on('\n').join(
+                        "package test;",
+                        "import android.app.Activity;",
+                        "import android.app.Fragment;",
+                        "import android.app.FragmentManager;",
+                        "import com.rgeldmacher.leash.HolderCache;",
+                        "import com.rgeldmacher.leash.HolderFragments;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
+                        "import com.rgeldmacher.leash.RetainedReferences;",
+                        "import java.lang.Object;",
+                        "import java.lang.Override;",
+                        "import java.lang.String;",
+                        "import java.lang.ref.Reference;",
+                        "import java.util.List;",
+                        "",
+                        "public final class TestLeash {",
+                        "  private static final HolderCache<TestRetainedDataFragment> HOLDER_CACHE = new HolderCache<>();",
+                        "",
+                        "  private TestLeash() {",
+                        "  }",
+                        "",
+                        "  public static void restore(Test activity) {",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      if (retainedFragment.hasBeenRetained) {",
+                        "        List<String> namesValue = RetainedReferences.get(retainedFragment.names);",
+                        "        if (namesValue != null) {",
+                        "          activity.names = namesValue;",
+                        "          LeashMetrics.fieldsRestored(1);",
+                        "        }",
+                        "        Object thingValue = RetainedReferences.get(retainedFragment.thing);",
+                        "        if (thingValue != null) {",
+                        "          activity.thing = thingValue;",
+                        "          LeashMetrics.fieldsRestored(1);",
+                        "        }",
+                        "      }",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void retain(Test activity) {",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      retainedFragment.names = RetainedReferences.soft(activity, activity.names);",
+                        "      retainedFragment.thing = RetainedReferences.weak(activity, activity.thing);",
+                        "      retainedFragment.hasBeenRetained = true;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void clear(Test activity) {",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      retainedFragment.hasBeenRetained = false;",
+                        "      retainedFragment.names = null;",
+                        "      retainedFragment.thing = null;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  private static TestRetainedDataFragment getRetainedFragment(Activity activity) {",
+                        "    if (activity != null) {",
+                        "      FragmentManager fm = activity.getFragmentManager();",
+                        "      if (fm != null) {",
+                        "        TestRetainedDataFragment cachedFragment = HOLDER_CACHE.get(fm);",
+                        "        if (cachedFragment != null) {",
+                        "          LeashMetrics.holderLookup(Test.class, true);",
+                        "          return cachedFragment;",
+                        "        }",
+                        "        LeashMetrics.holderLookup(Test.class, false);",
+                        "        Fragment retainedFragment = fm.findFragmentByTag(\"TestRetainedDataFragment\");",
+                        "        if (retainedFragment == null) {",
+                        "          retainedFragment = new TestRetainedDataFragment();",
+                        "          HolderFragments.add(fm, retainedFragment, \"TestRetainedDataFragment\");",
+                        "          LeashMetrics.holderCreated(Test.class, true);",
+                        "        }",
+                        "        if (retainedFragment instanceof TestRetainedDataFragment) {",
+                        "          HOLDER_CACHE.put(fm, (TestRetainedDataFragment) retainedFragment);",
+                        "          return (TestRetainedDataFragment) retainedFragment;",
+                        "        }",
+                        "      }",
+                        "    }",
+                        "    return null;",
+                        "  }",
+                        "",
+                        "  public static final class Binder implements LeashBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static class TestRetainedDataFragment extends Fragment {",
+                        "    Reference<List<String>> names;",
+                        "    Reference<Object> thing;",
+                        "",
+                        "    boolean hasBeenRetained;",
+                        "",
+                        "    public TestRetainedDataFragment() {",
+                        "      setRetainInstance(true);}",
+                        "  }",
+                        "}"
+                ));
+
+        ASSERT.about(javaSource()).that(source)
+                .processedWith(new LeashAnnotationProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expectedSource);
+    }
+
+    @Test
+    public void testProcessPolicyPrimitive() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Test extends Activity {",
+                "    @Retain(policy = Retain.Policy.SOFT)",
+                "    int count;",
+                "}"
+        ));
+
+        ASSERT.about(javaSource()).that(source)
+                .processedWith(new LeashAnnotationProcessor())
+                .failsToCompile()
+                .withErrorContaining("Primitive fields can't be retained with policy SOFT");
+    }
+
+    @Test
+    public void testProcessBudget() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Test extends Activity {",
+                "    @Retain(priority = 1)",
+                "    Object thing;",
+                "    @Retain",
+                "    int count;",
+                "}"
+        ));
+
+        JavaFileObject expectedSource = JavaFileObjects.forSourceString("test/TestLeash",
+                Joiner.on('\n').join(
+                        "package test;",
+                        "import android.app.Activity;",
+                        "import android.app.Fragment;",
+                        "import android.app.FragmentManager;",
+                        "import com.rgeldmacher.leash.HolderCache;",
+                        "import com.rgeldmacher.leash.HolderFragments;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
+                        "import com.rgeldmacher.leash.RetainedReferences;",
+                        "import java.lang.Object;",
+                        "import java.lang.Override;",
+                        "import java.lang.ref.Reference;",
+                        "",
+                        "public final class TestLeash {",
+                        "  private static final HolderCache<TestRetainedDataFragment> HOLDER_CACHE = new HolderCache<>();",
+                        "",
+                        "  private TestLeash() {",
+                        "  }",
+                        "",
+                        "  public static void restore(Test activity) {",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      if (retainedFragment.hasBeenRetained) {",
+                        "        Object thingValue = RetainedReferences.get(retainedFragment.thing);",
+                        "        if (thingValue != null) {",
+                        "          activity.thing = thingValue;",
+                        "          LeashMetrics.fieldsRestored(1);",
+                        "        }",
+                        "        activity.count = retainedFragment.count;",
+                        "        LeashMetrics.fieldsRestored(1);",
+                        "      }",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void retain(Test activity) {",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      retainedFragment.thing = RetainedReferences.strong(retainedFragment.thing, activity.thing, 1);",
+                        "      retainedFragment.count = activity.count;",
+                        "      retainedFragment.hasBeenRetained = true;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void clear(Test activity) {",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      retainedFragment.hasBeenRetained = false;",
+                        "      RetainedReferences.release(retainedFragment.thing);",
+                        "      retainedFragment.thing = null;",
+                        "      retainedFragment.count = 0;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  private static TestRetainedDataFragment getRetainedFragment(Activity activity) {",
+                        "    if (activity != null) {",
+                        "      FragmentManager fm = activity.getFragmentManager();",
+                        "      if (fm != null) {",
+                        "        TestRetainedDataFragment cachedFragment = HOLDER_CACHE.get(fm);",
+                        "        if (cachedFragment != null) {",
+                        "          LeashMetrics.holderLookup(Test.class, true);",
+                        "          return cachedFragment;",
+                        "        }",
+                        "        LeashMetrics.holderLookup(Test.class, false);",
+                        "        Fragment retainedFragment = fm.findFragmentByTag(\"TestRetainedDataFragment\");",
+                        "        if (retainedFragment == null) {",
+                        "          retainedFragment = new TestRetainedDataFragment();",
+                        "          HolderFragments.add(fm, retainedFragment, \"TestRetainedDataFragment\");",
+                        "          LeashMetrics.holderCreated(Test.class, true);",
+                        "        }",
+                        "        if (retainedFragment instanceof TestRetainedDataFragment) {",
+                        "          HOLDER_CACHE.put(fm, (TestRetainedDataFragment) retainedFragment);",
+                        "          return (TestRetainedDataFragment) retainedFragment;",
+                        "        }",
+                        "      }",
+                        "    }",
+                        "    return null;",
+                        "  }",
+                        "",
+                        "  public static final class Binder implements LeashBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static class TestRetainedDataFragment extends Fragment {",
+                        "    Reference<Object> thing;",
+                        "    int count;",
+                        "",
+                        "    boolean hasBeenRetained;",
+                        "",
+                        "    public TestRetainedDataFragment() {",
+                        "      setRetainInstance(true);}",
+                        "  }",
+                        "}"
+                ));
+
+        ASSERT.about(javaSource()).that(source)
+                .withCompilerOptions("-Aleash.budget=true")
+                .processedWith(new LeashAnnotationProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expectedSource);
+    }
+
+    @Test
+    public void testProcessPersist() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "import java.util.Date;",
+                "public class Test extends Activity {",
+                "    @Retain",
+                "    Object thing;",
+                "    @Retain(persist = true)",
+                "    int count;",
+                "    @Retain(persist = true)",
+                "    String name;",
+                "    @Retain(persist = true)",
+                "    long[] ids;",
+                "    @Retain(persist = true)",
+                "    Date date;",
+                "}"
+        ));
+
+        JavaFileObject expectedSource = JavaFileObjects.forSourceString("test/TestLeash",
+                Joiner.on('\n').join(
+                        "package test;",
+                        "import android.app.Activity;",
+                        "import android.app.Fragment;",
+                        "import android.app.FragmentManager;",
+                        "import android.os.Bundle;",
+                        "import com.rgeldmacher.leash.HolderCache;",
+                        "import com.rgeldmacher.leash.HolderFragments;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
+                        "import com.rgeldmacher.leash.PersistGuard;",
+                        "import com.rgeldmacher.leash.PersistingBinder;",
+                        "import java.lang.Object;",
+                        "import java.lang.Override;",
+                        "import java.lang.String;",
+                        "import java.util.Date;",
+                        "",
+                        "public final class TestLeash {",
+                        "  private static final HolderCache<TestRetainedDataFragment> HOLDER_CACHE = new HolderCache<>();",
+                        "",
+                        "  private TestLeash() {",
+                        "  }",
+                        "",
+                        "  public static void restore(Test activity) {",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      if (retainedFragment.hasBeenRetained) {",
+                        "        activity.thing = retainedFragment.thing;",
+                        "        activity.count = retainedFragment.count;",
+                        "        activity.name = retainedFragment.name;",
+                        "        activity.ids = retainedFragment.ids;",
+                        "        activity.date = retainedFragment.date;",
+                        "        LeashMetrics.fieldsRestored(5);",
+                        "      }",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void retain(Test activity) {",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      retainedFragment.thing = activity.thing;",
+                        "      retainedFragment.count = activity.count;",
+                        "      retainedFragment.name = activity.name;",
+                        "      retainedFragment.ids = activity.ids;",
+                        "      retainedFragment.date = activity.date;",
+                        "      retainedFragment.hasBeenRetained = true;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void clear(Test activity) {",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      retainedFragment.hasBeenRetained = false;",
+                        "      retainedFragment.thing = null;",
+                        "      retainedFragment.count = 0;",
+                        "      retainedFragment.name = null;",
+                        "      retainedFragment.ids = null;",
+                        "      retainedFragment.date = null;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void restore(Test activity, Bundle savedInstanceState) {",
+                        "    readBundle(activity, savedInstanceState);",
+                        "    restore(activity);",
+                        "  }",
+                        "",
+                        "  public static void retain(Test activity, Bundle outState) {",
+                        "    retain(activity);",
+                        "    writeBundle(activity, outState);",
+                        "  }",
+                        "",
+                        "  public static void readBundle(Test activity, Bundle savedInstanceState) {",
+                        "    if (savedInstanceState != null) {",
+                        "      activity.count = savedInstanceState.getInt(\"test.Test.count\", activity.count);",
+                        "      if (savedInstanceState.containsKey(\"test.Test.name\")) {",
+                        "        activity.name = savedInstanceState.getString(\"test.Test.name\");",
+                        "      }",
+                        "      if (savedInstanceState.containsKey(\"test.Test.ids\")) {",
+                        "        activity.ids = savedInstanceState.getLongArray(\"test.Test.ids\");",
+                        "      }",
+                        "      if (savedInstanceState.containsKey(\"test.Test.date\")) {",
+                        "        activity.date = (Date) savedInstanceState.getSerializable(\"test.Test.date\");",
+                        "      }",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void writeBundle(Test activity, Bundle outState) {",
+                        "    if (outState != null) {",
+                        "      outState.putInt(\"test.Test.count\", activity.count);",
+                        "      PersistGuard guard = PersistGuard.start();",
+                        "      if (guard.fits(activity.name)) {",
+                        "        outState.putString(\"test.Test.name\", activity.name);",
+                        "      }",
+                        "      if (guard.fits(activity.ids)) {",
+                        "        outState.putLongArray(\"test.Test.ids\", activity.ids);",
+                        "      }",
+                        "      if (guard.fits(activity.date)) {",
+                        "        outState.putSerializable(\"test.Test.date\", activity.date);",
+                        "      }",
+                        "    }",
+                        "  }",
+                        "",
+                        "  private static TestRetainedDataFragment getRetainedFragment(Activity activity) {",
+                        "    if (activity != null) {",
+                        "      FragmentManager fm = activity.getFragmentManager();",
+                        "      if (fm != null) {",
+                        "        TestRetainedDataFragment cachedFragment = HOLDER_CACHE.get(fm);",
+                        "        if (cachedFragment != null) {",
+                        "          LeashMetrics.holderLookup(Test.class, true);",
+                        "          return cachedFragment;",
+                        "        }",
+                        "        LeashMetrics.holderLookup(Test.class, false);",
+                        "        Fragment retainedFragment = fm.findFragmentByTag(\"TestRetainedDataFragment\");",
+                        "        if (retainedFragment == null) {",
+                        "          retainedFragment = new TestRetainedDataFragment();",
+                        "          HolderFragments.add(fm, retainedFragment, \"TestRetainedDataFragment\");",
+                        "          LeashMetrics.holderCreated(Test.class, true);",
+                        "        }",
+                        "        if (retainedFragment instanceof TestRetainedDataFragment) {",
+                        "          HOLDER_CACHE.put(fm, (TestRetainedDataFragment) retainedFragment);",
+                        "          return (TestRetainedDataFragment) retainedFragment;",
+                        "        }",
+                        "      }",
+                        "    }",
+                        "    return null;",
+                        "  }",
+                        "",
+                        "  public static final class Binder implements PersistingBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void restore(Test source, Bundle savedInstanceState) {",
+                        "      TestLeash.restore(source, savedInstanceState);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source, Bundle outState) {",
+                        "      TestLeash.retain(source, outState);",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static class TestRetainedDataFragment extends Fragment {",
+                        "    Object thing;",
+                        "    int count;",
+                        "    String name;",
+                        "    long[] ids;",
+                        "    Date date;",
+                        "",
+                        "    boolean hasBeenRetained;",
+                        "",
+                        "    public TestRetainedDataFragment() {",
+                        "      setRetainInstance(true);}",
+                        "  }",
+                        "}"
+                ));
+
+        ASSERT.about(javaSource()).that(source)
+                .processedWith(new LeashAnnotationProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expectedSource);
+    }
+
+    @Test
+    public void testProcessPersistUnsupportedType() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Test extends Activity {",
+                "    @Retain(persist = true)",
+                "    Object thing;",
+                "}"
+        ));
+
+        ASSERT.about(javaSource()).that(source)
+                .processedWith(new LeashAnnotationProcessor())
+                .failsToCompile()
+                .withErrorContaining("Only primitives, Strings, primitive arrays, String arrays, Parcelables and Serializables can be persisted");
+    }
+
+    @Test
+    public void testProcessSpill() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "import java.util.List;",
+                "public class Test extends Activity {",
+                "    @Retain(policy = Retain.Policy.SPILL)",
+                "    byte[] data;",
+                "    @Retain(policy = Retain.Policy.SPILL, codec = NamesCodec.class)",
+                "    List<String> names;",
+                "}"
+        ));
+
+        JavaFileObject codecSource = JavaFileObjects.forSourceString("test.NamesCodec", Joiner.on('\n').join(
+                "package test;",
+                "import com.rgeldmacher.leash.SpillCodec;",
+                "import java.nio.ByteBuffer;",
+                "import java.util.List;",
+                "public class NamesCodec implements SpillCodec<List<String>> {",
+                "    public int sizeOf(List<String> value) { return 0; }",
+                "    public void encode(List<String> value, ByteBuffer buffer) { }",
+                "    public List<String> decode(ByteBuffer buffer) { return null; }",
+                "}"
+        ));
+
+        JavaFileObject expectedSource = JavaFileObjects.forSourceString("test/TestLeash",
+                Joiner.on('\n').join(
+                        "package test;",
+                        "import android.app.Activity;",
+                        "import android.app.Fragment;",
+                        "import android.app.FragmentManager;",
+                        "import com.rgeldmacher.leash.HolderCache;",
+                        "import com.rgeldmacher.leash.HolderFragments;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
+                        "import com.rgeldmacher.leash.RetainedReferences;",
+                        "import com.rgeldmacher.leash.SpillCodecs;",
+                        "import java.lang.Override;",
+                        "import java.lang.String;",
+                        "import java.lang.ref.Reference;",
+                        "import java.util.List;",
+                        "",
+                        "public final class TestLeash {",
+                        "  private static final HolderCache<TestRetainedDataFragment> HOLDER_CACHE = new HolderCache<>();",
+                        "",
+                        "  private TestLeash() {",
+                        "  }",
+                        "",
+                        "  public static void restore(Test activity) {",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      if (retainedFragment.hasBeenRetained) {",
+                        "        byte[] dataValue = RetainedReferences.get(retainedFragment.data);",
+                        "        if (dataValue != null) {",
+                        "          activity.data = dataValue;",
+                        "          LeashMetrics.fieldsRestored(1);",
+                        "        }",
+                        "        List<String> namesValue = RetainedReferences.get(retainedFragment.names);",
+                        "        if (namesValue != null) {",
+                        "          activity.names = namesValue;",
+                        "          LeashMetrics.fieldsRestored(1);",
+                        "        }",
+                        "      }",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void retain(Test activity) {",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      retainedFragment.data = RetainedReferences.spill(activity, activity.data, SpillCodecs.BYTE_ARRAY);",
+                        "      retainedFragment.names = RetainedReferences.spill(activity, activity.names, new NamesCodec());",
+                        "      retainedFragment.hasBeenRetained = true;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void clear(Test activity) {",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      retainedFragment.hasBeenRetained = false;",
+                        "      retainedFragment.data = null;",
+                        "      retainedFragment.names = null;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  private static TestRetainedDataFragment getRetainedFragment(Activity activity) {",
+                        "    if (activity != null) {",
+                        "      FragmentManager fm = activity.getFragmentManager();",
+                        "      if (fm != null) {",
+                        "        TestRetainedDataFragment cachedFragment = HOLDER_CACHE.get(fm);",
+                        "        if (cachedFragment != null) {",
+                        "          LeashMetrics.holderLookup(Test.class, true);",
+                        "          return cachedFragment;",
+                        "        }",
+                        "        LeashMetrics.holderLookup(Test.class, false);",
+                        "        Fragment retainedFragment = fm.findFragmentByTag(\"TestRetainedDataFragment\");",
+                        "        if (retainedFragment == null) {",
+                        "          retainedFragment = new TestRetainedDataFragment();",
+                        "          HolderFragments.add(fm, retainedFragment, \"TestRetainedDataFragment\");",
+                        "          LeashMetrics.holderCreated(Test.class, true);",
+                        "        }",
+                        "        if (retainedFragment instanceof TestRetainedDataFragment) {",
+                        "          HOLDER_CACHE.put(fm, (TestRetainedDataFragment) retainedFragment);",
+                        "          return (TestRetainedDataFragment) retainedFragment;",
+                        "        }",
+                        "      }",
+                        "    }",
+                        "    return null;",
+                        "  }",
+                        "",
+                        "  public static final class Binder implements LeashBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static class TestRetainedDataFragment extends Fragment {",
+                        "    Reference<byte[]> data;",
+                        "    Reference<List<String>> names;",
+                        "",
+                        "    boolean hasBeenRetained;",
+                        "",
+                        "    public TestRetainedDataFragment() {",
+                        "      setRetainInstance(true);}",
+                        "  }",
+                        "}"
+                ));
+
+        ASSERT.about(javaSources()).that(Arrays.asList(source, codecSource))
+                .processedWith(new LeashAnnotationProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expectedSource);
+    }
+
+    @Test
+    public void testProcessSpillWithoutCodec() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "import java.util.List;",
+                "public class Test extends Activity {",
+                "    @Retain(policy = Retain.Policy.SPILL)",
+                "    List<String> names;",
+                "}"
+        ));
+
+        ASSERT.about(javaSource()).that(source)
+                .processedWith(new LeashAnnotationProcessor())
+                .failsToCompile()
+                .withErrorContaining("Only primitive arrays and ByteBuffers can be spilled without a codec");
+    }
+
+    @Test
+    public void testProcessSpillWithOtherClassAsCodec() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "import java.util.List;",
+                "public class Test extends Activity {",
+                "    @Retain(policy = Retain.Policy.SPILL, codec = String.class)",
+                "    List<String> names;",
+                "}"
+        ));
+
+        ASSERT.about(javaSource()).that(source)
+                .processedWith(new LeashAnnotationProcessor())
+                .failsToCompile()
+                .withErrorContaining("The codec java.lang.String must implement SpillCodec");
+    }
+
+    @Test
+    public void testProcessSpillWithCodecOfSupertype() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "import java.util.List;",
+                "public class Test extends Activity {",
+                "    @Retain(policy = Retain.Policy.SPILL, codec = NamesCodec.class)",
+                "    List<String> names;",
+                "}"
+        ));
+
+        JavaFileObject codecSource = JavaFileObjects.forSourceString("test.NamesCodec", Joiner.on('\n').join(
+                "package test;",
+                "import com.rgeldmacher.leash.SpillCodec;",
+                "import java.nio.ByteBuffer;",
+                "import java.util.Collection;",
+                "public class NamesCodec implements SpillCodec<Collection<String>> {",
+                "    public int sizeOf(Collection<String> value) { return 0; }",
+                "    public void encode(Collection<String> value, ByteBuffer buffer) { }",
+                "    public Collection<String> decode(ByteBuffer buffer) { return null; }",
+                "}"
+        ));
+
+        ASSERT.about(javaSources()).that(Arrays.asList(source, codecSource))
+                .processedWith(new LeashAnnotationProcessor())
+                .compilesWithoutError();
+    }
+
+    @Test
+    public void testProcessSpillWithCodecOfOtherType() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "import java.util.List;",
+                "public class Test extends Activity {",
+                "    @Retain(policy = Retain.Policy.SPILL, codec = NamesCodec.class)",
+                "    String name;",
+                "}"
+        ));
+
+        JavaFileObject codecSource = JavaFileObjects.forSourceString("test.NamesCodec", Joiner.on('\n').join(
+                "package test;",
+                "import com.rgeldmacher.leash.SpillCodec;",
+                "import java.nio.ByteBuffer;",
+                "import java.util.Collection;",
+                "public class NamesCodec implements SpillCodec<Collection<String>> {",
+                "    public int sizeOf(Collection<String> value) { return 0; }",
+                "    public void encode(Collection<String> value, ByteBuffer buffer) { }",
+                "    public Collection<String> decode(ByteBuffer buffer) { return null; }",
+                "}"
+        ));
+
+        ASSERT.about(javaSources()).that(Arrays.asList(source, codecSource))
+                .processedWith(new LeashAnnotationProcessor())
+                .failsToCompile()
+                .withErrorContaining("The codec test.NamesCodec can't spill java.lang.String");
+    }
+
+    @Test
+    public void testProcessSpillWithCodecWithoutPublicConstructor() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "import java.util.List;",
+                "public class Test extends Activity {",
+                "    @Retain(policy = Retain.Policy.SPILL, codec = NamesCodec.class)",
+                "    List<String> names;",
+                "}"
+        ));
+
+        JavaFileObject codecSource = JavaFileObjects.forSourceString("test.NamesCodec", Joiner.on('\n').join(
+                "package test;",
+                "import com.rgeldmacher.leash.SpillCodec;",
+                "import java.nio.ByteBuffer;",
+                "import java.util.Collection;",
+                "public class NamesCodec implements SpillCodec<Collection<String>> {",
+                "    private NamesCodec() { }",
+                "    public int sizeOf(Collection<String> value) { return 0; }",
+                "    public void encode(Collection<String> value, ByteBuffer buffer) { }",
+                "    public Collection<String> decode(ByteBuffer buffer) { return null; }",
+                "}"
+        ));
+
+        ASSERT.about(javaSources()).that(Arrays.asList(source, codecSource))
+                .processedWith(new LeashAnnotationProcessor())
+                .failsToCompile()
+                .withErrorContaining("The codec test.NamesCodec needs a public no-argument constructor");
+    }
+
+    @Test
+    public void testProcessIndexIsDeterministic() {
+        JavaFileObject firstSource = JavaFileObjects.forSourceString("test.First", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class First extends Activity {",
+                "    @Retain",
+                "    Object thing;",
+                "}"
+        ));
+
+        JavaFileObject secondSource = JavaFileObjects.forSourceString("test.Second", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Second extends Activity {",
+                "    @Retain",
+                "    Object thing;",
+                "}"
+        ));
+
+        JavaFileObject expectedSource = JavaFileObjects.forSourceString("test/TestLeashIndex",
+                Joiner.on('\n').join(
+                        "package test;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashIndex;",
+                        "import java.lang.Class;",
+                        "import java.lang.Integer;",
+                        "import java.lang.Override;",
+                        "import java.util.HashMap;",
+                        "import java.util.Map;",
+                        "",
+                        "public final class TestLeashIndex implements LeashIndex {",
+                        "  private final Map<Class<?>, Integer> hosts = new HashMap<>(4);",
+                        "",
+                        "  public TestLeashIndex() {",
+                        "    hosts.put(First.class, 0);",
+                        "    hosts.put(Second.class, 1);",
+                        "  }",
+                        "",
+                        "  @Override",
+                        "  public LeashBinder<?> getBinder(Class<?> hostClass) {",
+                        "    Integer host = hosts.get(hostClass);",
+                        "    if (host == null) {",
+                        "      return null;",
+                        "    }",
+                        "    switch (host) {",
+                        "      case 0:",
+                        "        return new FirstLeash.Binder();",
+                        "      case 1:",
+                        "        return new SecondLeash.Binder();",
+                        "      default:",
+                        "        return null;",
+                        "    }",
+                        "  }",
+                        "}"
+                ));
+
+        // the output must not depend on the order of the source files
+        ASSERT.about(javaSources()).that(Arrays.asList(firstSource, secondSource))
+                .withCompilerOptions("-Aleash.index=test.TestLeashIndex")
+                .processedWith(new LeashAnnotationProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expectedSource);
+
+        ASSERT.about(javaSources()).that(Arrays.asList(secondSource, firstSource))
+                .withCompilerOptions("-Aleash.index=test.TestLeashIndex")
+                .processedWith(new LeashAnnotationProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expectedSource);
+    }
+
+    @Test
+    public void testSupportedOptionsIncremental() {
+        ProcessingEnvironment processingEnv = mock(ProcessingEnvironment.class);
+        Map<String, String> options = new HashMap<>();
+        when(processingEnv.getOptions()).thenReturn(options);
+
+        LeashAnnotationProcessor processor = new LeashAnnotationProcessor();
+        processor.init(processingEnv);
+        assertTrue(processor.getSupportedOptions().contains("org.gradle.annotation.processing.isolating"));
+
+        // the index depends on all annotated classes
+        options.put("leash.index", "test.TestLeashIndex");
+        processor = new LeashAnnotationProcessor();
+        processor.init(processingEnv);
+        assertTrue(processor.getSupportedOptions().contains("org.gradle.annotation.processing.aggregating"));
+
+        // and so does the report
+        options.remove("leash.index");
+        options.put("leash.report", "leash-report.json");
+        processor = new LeashAnnotationProcessor();
+        processor.init(processingEnv);
+        assertTrue(processor.getSupportedOptions().contains("org.gradle.annotation.processing.aggregating"));
+    }
+
+    @Test
+    public void testProcessTrace() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Test extends Activity {",
+                "    @Retain",
+                "    Object thing;",
+                "}"
+        ));
+
+        JavaFileObject expectedSource = JavaFileObjects.forSourceString("test/TestLeash",
+                Joiner.on('\n').join(
+                        "package test;",
+                        "import android.app.Activity;",
+                        "import android.app.Fragment;",
+                        "import android.app.FragmentManager;",
+                        "import android.os.Trace;",
+                        "import com.rgeldmacher.leash.HolderCache;",
+                        "import com.rgeldmacher.leash.HolderFragments;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
+                        "import java.lang.Object;",
+                        "import java.lang.Override;",
+                        "",
+                        "public final class TestLeash {",
+                        "  private static final HolderCache<TestRetainedDataFragment> HOLDER_CACHE = new HolderCache<>();",
+                        "",
+                        "  private TestLeash() {",
+                        "  }",
+                        "",
+                        "  public static void restore(Test activity) {",
+                        "    Trace.beginSection(\"Leash.restore(Test)\");",
+                        "    try {",
+                        "      TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "      if (retainedFragment != null) {",
+                        "        if (retainedFragment.hasBeenRetained) {",
+                        "          activity.thing = retainedFragment.thing;",
+                        "          LeashMetrics.fieldsRestored(1);",
+                        "        }",
+                        "      }",
+                        "    } finally {",
+                        "      Trace.endSection();",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void retain(Test activity) {",
+                        "    Trace.beginSection(\"Leash.retain(Test)\");",
+                        "    try {",
+                        "      TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "      if (retainedFragment != null) {",
+                        "        retainedFragment.thing = activity.thing;",
+                        "        retainedFragment.hasBeenRetained = true;",
+                        "      }",
+                        "    } finally {",
+                        "      Trace.endSection();",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static void clear(Test activity) {",
+                        "    Trace.beginSection(\"Leash.clear(Test)\");",
+                        "    try {",
+                        "      TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "      if (retainedFragment != null) {",
+                        "        retainedFragment.hasBeenRetained = false;",
+                        "        retainedFragment.thing = null;",
+                        "      }",
+                        "    } finally {",
+                        "      Trace.endSection();",
+                        "    }",
+                        "  }",
+                        "",
+                        "  private static TestRetainedDataFragment getRetainedFragment(Activity activity) {",
+                        "    Trace.beginSection(\"Leash.getRetainedFragment(Test)\");",
+                        "    try {",
+                        "      if (activity != null) {",
+                        "        FragmentManager fm = activity.getFragmentManager();",
+                        "        if (fm != null) {",
+                        "          TestRetainedDataFragment cachedFragment = HOLDER_CACHE.get(fm);",
+                        "          if (cachedFragment != null) {",
+                        "            LeashMetrics.holderLookup(Test.class, true);",
+                        "            return cachedFragment;",
+                        "          }",
+                        "          LeashMetrics.holderLookup(Test.class, false);",
+                        "          Fragment retainedFragment = fm.findFragmentByTag(\"TestRetainedDataFragment\");",
+                        "          if (retainedFragment == null) {",
+                        "            retainedFragment = new TestRetainedDataFragment();",
+                        "            HolderFragments.add(fm, retainedFragment, \"TestRetainedDataFragment\");",
+                        "            LeashMetrics.holderCreated(Test.class, true);",
+                        "          }",
+                        "          if (retainedFragment instanceof TestRetainedDataFragment) {",
+                        "            HOLDER_CACHE.put(fm, (TestRetainedDataFragment) retainedFragment);",
+                        "            return (TestRetainedDataFragment) retainedFragment;",
+                        "          }",
+                        "        }",
+                        "      }",
+                        "      return null;",
+                        "    } finally {",
+                        "      Trace.endSection();",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static final class Binder implements LeashBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static class TestRetainedDataFragment extends Fragment {",
+                        "    Object thing;",
+                        "",
+                        "    boolean hasBeenRetained;",
+                        "",
+                        "    public TestRetainedDataFragment() {",
+                        "      setRetainInstance(true);}",
+                        "  }",
+                        "}"
+                ));
+
+        ASSERT.about(javaSource()).that(source)
+                .withCompilerOptions("-Aleash.trace=true")
+                .processedWith(new LeashAnnotationProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expectedSource);
+    }
+
+    @Test
+    public void testProcessLeakingType() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import android.view.View;",
+                "import com.rgeldmacher.leash.Retain;",
+                "import java.util.List;",
+                "import java.util.Map;",
+                "public class Test extends Activity {",
+                "    @Retain",
+                "    Map<String, List<? extends View>> views;",
+                "}"
+        ));
+
+        ASSERT.about(javaSource()).that(source)
+                .processedWith(new LeashAnnotationProcessor())
+                .failsToCompile()
+                .withErrorContaining("Retaining View (android.view.View) leaks the Activity on every configuration change, set @Retain(allowLeak = true) to retain it anyway");
+    }
+
+    @Test
+    public void testProcessInnerClass() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Test extends Activity {",
+                "    @Retain",
+                "    Callback callback;",
+                "    class Callback {",
+                "    }",
+                "}"
+        ));
+
+        ASSERT.about(javaSource()).that(source)
+                .processedWith(new LeashAnnotationProcessor())
+                .failsToCompile()
+                .withErrorContaining("Retaining Callback (non-static inner class of Test) leaks the Activity");
+    }
+
+    @Test
+    public void testProcessAllowLeak() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import android.content.Context;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Test extends Activity {",
+                "    @Retain(allowLeak = true)",
+                "    Context applicationContext;",
+                "    @Retain",
+                "    Callback callback;",
+                "    static class Callback {",
+                "    }",
+                "}"
+        ));
+
+        ASSERT.about(javaSource()).that(source)
+                .processedWith(new LeashAnnotationProcessor())
+                .compilesWithoutError();
+    }
+
+    @Test
+    public void testProcessReport() {
+        JavaFileObject baseSource = JavaFileObjects.forSourceString("test.Base", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Base extends Activity {",
+                "    @Retain",
+                "    String title;",
+                "}"
+        ));
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import com.rgeldmacher.leash.Retain;",
+                "import java.util.List;",
+                "public class Test extends Base {",
+                "    @Retain(policy = Retain.Policy.SOFT)",
+                "    List<String> names;",
+                "    @Retain(persist = true)",
+                "    long id;",
+                "}"
+        ));
+
+        String expectedReport = Joiner.on('\n').join(
+                "{",
+                "  \"hosts\": [",
+                "    {",
+                "      \"host\": \"test.Base\",",
+                "      \"holder\": \"fragment\",",
+                "      \"retainedFields\": 1,",
+                "      \"shallowSize\": 4,",
+                "      \"fields\": [",
+                "        {\"name\": \"title\", \"type\": \"java.lang.String\", \"policy\": \"STRONG\", \"persist\": false, \"shallowSize\": 4}",
+                "      ]",
+                "    },",
+                "    {",
+                "      \"host\": \"test.Test\",",
+                "      \"superclass\": \"test.Base\",",
+                "      \"holder\": \"fragment\",",
+                "      \"retainedFields\": 3,",
+                "      \"shallowSize\": 12,",
+                "      \"fields\": [",
+                "        {\"name\": \"names\", \"type\": \"java.util.List<java.lang.String>\", \"policy\": \"SOFT\", \"persist\": false, \"shallowSize\": 4},",
+                "        {\"name\": \"id\", \"type\": \"long\", \"policy\": \"STRONG\", \"persist\": true, \"shallowSize\": 8}",
+                "      ]",
+                "    }",
+                "  ]",
+                "}",
+                "");
+
+        ASSERT.about(javaSources()).that(Arrays.asList(source, baseSource))
+                .withCompilerOptions("-Aleash.report=leash-report.json")
+                .processedWith(new LeashAnnotationProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesFileNamed(StandardLocation.SOURCE_OUTPUT, "", "leash-report.json")
+                .withContents(ByteSource.wrap(expectedReport.getBytes(Charsets.UTF_8)));
+    }
+
+    @Test
+    public void testProcessMaxFields() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Test extends Activity {",
+                "    @Retain",
+                "    String title;",
+                "    @Retain",
+                "    String subtitle;",
+                "    @Retain",
+                "    int count;",
+                "}"
+        ));
+
+        ASSERT.about(javaSource()).that(source)
+                .withCompilerOptions("-Aleash.maxFields=2")
+                .processedWith(new LeashAnnotationProcessor())
+                .failsToCompile()
+                .withErrorContaining("Test retains 3 fields, more than the 2 allowed by option leash.maxFields");
+    }
+
+    @Test
+    public void testProcessDeniedType() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import android.graphics.Bitmap;",
+                "import com.rgeldmacher.leash.Retain;",
+                "import java.util.Map;",
+                "public class Test extends Activity {",
+                "    @Retain",
+                "    Map<String, Bitmap> thumbnails;",
+                "}"
+        ));
+
+        ASSERT.about(javaSource()).that(source)
+                .withCompilerOptions("-Aleash.deny=java.util.Set, android.graphics.Bitmap")
+                .processedWith(new LeashAnnotationProcessor())
+                .failsToCompile()
+                .withErrorContaining("Retaining Bitmap (android.graphics.Bitmap) is denied by option leash.deny");
+    }
+
+    @Test
+    public void testProcessRetainedResult() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.OnRetainedResult;",
+                "import com.rgeldmacher.leash.Retain;",
+                "import java.util.concurrent.Future;",
+                "public class Test extends Activity {",
+                "    @Retain",
+                "    Future<String> loadTitle;",
+                "    @OnRetainedResult(\"loadTitle\")",
+                "    void onTitleLoaded(Future<String> loadTitle) {",
+                "    }",
+                "}"
+        ));
+
+        JavaFileObject expectedSource = JavaFileObjects.forSourceString("test/TestLeash",
+                Joiner.on('\n').join(
+                        "package test;",
+                        "import android.app.Activity;",
+                        "import android.app.Fragment;",
+                        "import android.app.FragmentManager;",
+                        "import com.rgeldmacher.leash.HolderCache;",
+                        "import com.rgeldmacher.leash.HolderFragments;",
+                        "import com.rgeldmacher.leash.LeashBinder;",
+                        "import com.rgeldmacher.leash.LeashMetrics;",
+                        "import com.rgeldmacher.leash.RetainedResultReceiver;",
+                        "import com.rgeldmacher.leash.RetainedResults;",
+                        "import java.lang.Override;",
+                        "import java.lang.String;",
+                        "import java.lang.SuppressWarnings;",
+                        "import java.util.concurrent.Future;",
+                        "",
+                        "public final class TestLeash {",
+                        "  private static final HolderCache<TestRetainedDataFragment> HOLDER_CACHE = new HolderCache<>();",
+                        "",
+                        "  private static final RetainedResultReceiver<Test> LOAD_TITLE_RESULT = new RetainedResultReceiver<Test>() {",
+                        "    @Override",
+                        "    @SuppressWarnings(\"unchecked\")",
+                        "    public void onResult(Test host, Future<?> result) {",
+                        "      host.onTitleLoaded((Future<String>) result);",
+                        "    }",
+                        "  };",
+                        "",
+                        "  private TestLeash() {",
+                        "  }",
+                        "",
+                        "  public static void restore(Test activity) {",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      if (retainedFragment.hasBeenRetained) {",
+                        "        activity.loadTitle = retainedFragment.loadTitle;",
+                        "        LeashMetrics.fieldsRestored(1);",
+                        "      }",
+                        "    }",
+                        "    RetainedResults.attach(activity, activity.loadTitle, LOAD_TITLE_RESULT);",
+                        "  }",
+                        "",
+                        "  public static void retain(Test activity) {",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      retainedFragment.loadTitle = activity.loadTitle;",
+                        "      retainedFragment.hasBeenRetained = true;",
+                        "    }",
+                        "    RetainedResults.attach(activity, activity.loadTitle, LOAD_TITLE_RESULT);",
+                        "  }",
+                        "",
+                        "  public static void clear(Test activity) {",
+                        "    TestRetainedDataFragment retainedFragment = getRetainedFragment(activity);",
+                        "    if (retainedFragment != null) {",
+                        "      retainedFragment.hasBeenRetained = false;",
+                        "      retainedFragment.loadTitle = null;",
+                        "    }",
+                        "  }",
+                        "",
+                        "  private static TestRetainedDataFragment getRetainedFragment(Activity activity) {",
+                        "    if (activity != null) {",
+                        "      FragmentManager fm = activity.getFragmentManager();",
+                        "      if (fm != null) {",
+                        "        TestRetainedDataFragment cachedFragment = HOLDER_CACHE.get(fm);",
+                        "        if (cachedFragment != null) {",
+                        "          LeashMetrics.holderLookup(Test.class, true);",
+                        "          return cachedFragment;",
+                        "        }",
+                        "        LeashMetrics.holderLookup(Test.class, false);",
+                        "        Fragment retainedFragment = fm.findFragmentByTag(\"TestRetainedDataFragment\");",
+                        "        if (retainedFragment == null) {",
+                        "          retainedFragment = new TestRetainedDataFragment();",
+                        "          HolderFragments.add(fm, retainedFragment, \"TestRetainedDataFragment\");",
+                        "          LeashMetrics.holderCreated(Test.class, true);",
+                        "        }",
+                        "        if (retainedFragment instanceof TestRetainedDataFragment) {",
+                        "          HOLDER_CACHE.put(fm, (TestRetainedDataFragment) retainedFragment);",
+                        "          return (TestRetainedDataFragment) retainedFragment;",
+                        "        }",
+                        "      }",
+                        "    }",
+                        "    return null;",
+                        "  }",
+                        "",
+                        "  public static final class Binder implements LeashBinder<Test> {",
+                        "    @Override",
+                        "    public void restore(Test source) {",
+                        "      TestLeash.restore(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void retain(Test source) {",
+                        "      TestLeash.retain(source);",
+                        "    }",
+                        "",
+                        "    @Override",
+                        "    public void clear(Test source) {",
+                        "      TestLeash.clear(source);",
+                        "    }",
+                        "  }",
+                        "",
+                        "  public static class TestRetainedDataFragment extends Fragment {",
+                        "    Future<String> loadTitle;",
+                        "",
+                        "    boolean hasBeenRetained;",
+                        "",
+                        "    public TestRetainedDataFragment() {",
+                        "      setRetainInstance(true);}",
+                        "  }",
+                        "}"
+                ));
+
+        ASSERT.about(javaSource()).that(source)
+                .processedWith(new LeashAnnotationProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expectedSource);
+    }
+
+    @Test
+    public void testProcessRetainedResultNoFuture() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.OnRetainedResult;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Test extends Activity {",
+                "    @Retain",
+                "    String title;",
+                "    @OnRetainedResult(\"title\")",
+                "    void onTitleLoaded(String title) {",
+                "    }",
+                "}"
+        ));
+
+        ASSERT.about(javaSource()).that(source)
+                .processedWith(new LeashAnnotationProcessor())
+                .failsToCompile()
+                .withErrorContaining("Field title must be a Future to deliver its result");
+    }
+
+    @Test
+    public void testProcessLeashSourceNoActivityOrFragment() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Test {",
+                "    @Retain",
+                "    Object thing;",
+                "}"
+        ));
+
+        ASSERT.about(javaSource()).that(source)
+                .processedWith(new LeashAnnotationProcessor())
+                .failsToCompile()
+                .withErrorContaining("The @Retain annotation can only be applied to fields of an Activity or Fragment")
+                .in(source).onLine(5);
+    }
+
+    @Test
+    public void testProcessFieldIsPrivate() {
+        JavaFileObject source = JavaFileObjects.forSourceString("test.Test", Joiner.on('\n').join(
+                "package test;",
+                "import android.app.Activity;",
+                "import com.rgeldmacher.leash.Retain;",
+                "public class Test extends Activity {",
+                "    @Retain",
+                "    private Object thing;",
+                "}"
+        ));
+
+        ASSERT.about(javaSource()).that(source)
+                .processedWith(new LeashAnnotationProcessor())
+                .failsToCompile()
+                .withErrorContaining("Field must not be private, protected, static or final")
+                .in(source).onLine(6);
+    }
+
+    private static List<JavaFileObject> getAndroidXSources() {
+        return Arrays.asList(
+                JavaFileObjects.forSourceString("androidx.lifecycle.ViewModel", Joiner.on('\n').join(
+                        "package androidx.lifecycle;",
+                        "public abstract class ViewModel {",
+                        "}"
+                )),
+                JavaFileObjects.forSourceString("androidx.lifecycle.ViewModelStore", Joiner.on('\n').join(
+                        "package androidx.lifecycle;",
+                        "public class ViewModelStore {",
+                        "}"
+                )),
+                JavaFileObjects.forSourceString("androidx.lifecycle.ViewModelStoreOwner", Joiner.on('\n').join(
+                        "package androidx.lifecycle;",
+                        "public interface ViewModelStoreOwner {",
+                        "    ViewModelStore getViewModelStore();",
+                        "}"
+                )),
+                JavaFileObjects.forSourceString("androidx.lifecycle.ViewModelProvider", Joiner.on('\n').join(
+                        "package androidx.lifecycle;",
+                        "public class ViewModelProvider {",
+                        "    public interface Factory {",
+                        "        <T extends ViewModel> T create(Class<T> modelClass);",
+                        "    }",
+                        "    public static class NewInstanceFactory implements Factory {",
+                        "        public <T extends ViewModel> T create(Class<T> modelClass) {",
+                        "            return null;",
+                        "        }",
+                        "    }",
+                        "    public ViewModelProvider(ViewModelStore store, Factory factory) {",
+                        "    }",
+                        "    public <T extends ViewModel> T get(Class<T> modelClass) {",
+                        "        return null;",
+                        "    }",
+                        "}"
+                )),
+                JavaFileObjects.forSourceString("androidx.fragment.app.Fragment", Joiner.on('\n').join(
+                        "package androidx.fragment.app;",
+                        "import androidx.lifecycle.ViewModelStore;",
+                        "import androidx.lifecycle.ViewModelStoreOwner;",
+                        "public class Fragment implements ViewModelStoreOwner {",
+                        "    public ViewModelStore getViewModelStore() {",
+                        "        return null;",
+                        "    }",
+                        "}"
+                )));
     }
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.app.Activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author rgeldmacher
+ */
+public class LeashBinderCacheTest {
+
+    private static final List<Class<?>> LOOKUPS = Collections.synchronizedList(new ArrayList<Class<?>>());
+
+    private static final AtomicInteger RETAINS = new AtomicInteger();
+
+    private static final LeashIndex INDEX = new LeashIndex() {
+        @Override
+        public LeashBinder<?> getBinder(Class<?> hostClass) {
+            LOOKUPS.add(hostClass);
+            if (hostClass == BaseActivity.class) {
+                return new CountingBinder();
+            } else if (hostClass == SlowActivity.class) {
+                try {
+                    // let the other threads miss the cache
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return new CountingBinder();
+            }
+
+            return null;
+        }
+    };
+
+    @Before
+    public void setup() {
+        // adding the index drops the cached binders
+        Leash.addIndex(INDEX);
+        LOOKUPS.clear();
+        RETAINS.set(0);
+    }
+
+    @After
+    public void tearDown() {
+        Leash.removeIndex(INDEX);
+    }
+
+    @Test
+    public void testMissingBinderIsCached() {
+        for (int i = 0; i < 2; i++) {
+            try {
+                Leash.retain(new PlainActivity());
+                fail("Retained an Activity without Leash");
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage().contains(PlainActivity.class.getName()));
+            }
+        }
+
+        assertEquals(Collections.<Class<?>>singletonList(PlainActivity.class), LOOKUPS);
+    }
+
+    @Test
+    public void testSuperclassBinderIsUsed() {
+        Leash.retain(new SubActivity());
+        Leash.retain(new SubActivity());
+        Leash.retain(new BaseActivity());
+
+        assertEquals(3, RETAINS.get());
+        assertEquals(Arrays.<Class<?>>asList(SubActivity.class, BaseActivity.class, BaseActivity.class), LOOKUPS);
+    }
+
+    @Test
+    public void testConcurrentCallsCreateOneBinder() throws InterruptedException {
+        final int threadCount = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Leash.retain(new SlowActivity());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        start.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(threadCount, RETAINS.get());
+        assertEquals(Collections.<Class<?>>singletonList(SlowActivity.class), LOOKUPS);
+    }
+
+    public static class PlainActivity extends Activity {
+    }
+
+    public static class BaseActivity extends Activity {
+    }
+
+    public static class SubActivity extends BaseActivity {
+    }
+
+    public static class SlowActivity extends Activity {
+    }
+
+    private static final class CountingBinder implements LeashBinder<Object> {
+
+        @Override
+        public void restore(Object source) {
+        }
+
+        @Override
+        public void retain(Object source) {
+            RETAINS.incrementAndGet();
+        }
+
+        @Override
+        public void clear(Object source) {
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.app.Activity;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentActivity;
+import android.support.v4.app.FragmentManager;
+import android.support.v4.app.FragmentTransaction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author rgeldmacher
+ */
+public class LeashMetricsTest {
+
+    private static final LeashIndex INDEX = new LeashIndex() {
+        @Override
+        public LeashBinder<?> getBinder(Class<?> hostClass) {
+            return MetricsActivity.class.isAssignableFrom(hostClass) ? new MetricsActivityBinder() : null;
+        }
+    };
+
+    private MetricsListener listener;
+
+    @Before
+    public void setup() {
+        listener = mock(MetricsListener.class);
+        Leash.setMetricsListener(listener);
+    }
+
+    @After
+    public void tearDown() {
+        Leash.setMetricsListener(null);
+        Leash.removeIndex(INDEX);
+    }
+
+    @Test
+    public void testRestoreIsReported() {
+        Leash.addIndex(INDEX);
+
+        // fields counted outside of Leash are not reported
+        LeashMetrics.fieldsRestored(5);
+
+        MetricsActivity activity = mock(MetricsActivity.class);
+        Leash.restore(activity);
+        Leash.retain(activity);
+
+        verify(listener).onRestore(eq(activity.getClass()), anyLong(), eq(2));
+        verify(listener).onRetain(eq(activity.getClass()), anyLong());
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void testHolderLookupIsReported() {
+        FragmentTransaction transaction = mock(FragmentTransaction.class);
+        when(transaction.add(any(Fragment.class), anyString())).thenReturn(transaction);
+        FragmentManager fragmentManager = mock(FragmentManager.class);
+        when(fragmentManager.beginTransaction()).thenReturn(transaction);
+        FragmentActivity activity = mock(FragmentActivity.class);
+        when(activity.getSupportFragmentManager()).thenReturn(fragmentManager);
+
+        RetainStore store = new FragmentRetainStore();
+        store.get(activity, MetricsFragment.class);
+        store.get(activity, MetricsFragment.class);
+        store.get(activity, MetricsFragment.class);
+
+        verify(listener).onHolderLookup(MetricsFragment.class, false);
+        verify(listener).onHolderCreated(MetricsFragment.class, true);
+        verify(listener, times(2)).onHolderLookup(MetricsFragment.class, true);
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void testNothingIsReportedWithoutListener() {
+        Leash.setMetricsListener(null);
+        LeashMetrics.fieldsRestored(5);
+        LeashMetrics.holderLookup(Activity.class, true);
+        LeashMetrics.holderCreated(Activity.class, true);
+
+        verifyNoMoreInteractions(listener);
+    }
+
+    public static class MetricsActivity extends Activity {
+    }
+
+    public static class MetricsFragment extends Fragment {
+    }
+
+    private static final class MetricsActivityBinder implements LeashBinder<MetricsActivity> {
+
+        @Override
+        public void restore(MetricsActivity source) {
+            LeashMetrics.fieldsRestored(1);
+            LeashMetrics.fieldsRestored(1);
+        }
+
+        @Override
+        public void retain(MetricsActivity source) {
+        }
+
+        @Override
+        public void clear(MetricsActivity source) {
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentActivity;
+import android.support.v4.app.FragmentManager;
+import android.support.v4.app.FragmentTransaction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author rgeldmacher
+ */
+public class LeashRetainAllTest {
+
+    private static final List<String> CALLS = new ArrayList<>();
+
+    private static boolean perClassHolders;
+
+    private static final LeashIndex INDEX = new LeashIndex() {
+        @Override
+        public LeashBinder<?> getBinder(Class<?> hostClass) {
+            if (AllActivity.class.isAssignableFrom(hostClass)) {
+                return new HolderBinder("activity");
+            } else if (ParentFragment.class.isAssignableFrom(hostClass)) {
+                return new HolderBinder("parent");
+            } else if (ChildFragment.class.isAssignableFrom(hostClass)) {
+                return new HolderBinder("child");
+            }
+
+            return null;
+        }
+    };
+
+    private FragmentTransaction transaction;
+    private AllActivity activity;
+    private FragmentManager fragmentManager;
+    private FragmentManager childFragmentManager;
+
+    @Before
+    public void setup() {
+        CALLS.clear();
+        perClassHolders = false;
+        Leash.addIndex(INDEX);
+
+        // commits are never executed, like transactions that are still pending in the current frame
+        transaction = mock(FragmentTransaction.class);
+        when(transaction.add(any(Fragment.class), anyString())).thenReturn(transaction);
+
+        childFragmentManager = mock(FragmentManager.class);
+        ChildFragment child = mockFragment(ChildFragment.class, true, mock(FragmentManager.class));
+        PlainFragment plainChild = mockFragment(PlainFragment.class, true, null);
+        when(childFragmentManager.getFragments()).thenReturn(Arrays.<Fragment>asList(child, null, plainChild));
+
+        fragmentManager = mock(FragmentManager.class);
+        when(fragmentManager.beginTransaction()).thenReturn(transaction);
+        ParentFragment parent = mockFragment(ParentFragment.class, true, childFragmentManager);
+        ParentFragment removed = mockFragment(ParentFragment.class, false, null);
+        PlainFragment plain = mockFragment(PlainFragment.class, true, mock(FragmentManager.class));
+        when(fragmentManager.getFragments()).thenReturn(Arrays.<Fragment>asList(parent, removed, plain));
+
+        activity = mock(AllActivity.class);
+        when(activity.getSupportFragmentManager()).thenReturn(fragmentManager);
+        when(parent.getActivity()).thenReturn(activity);
+        when(child.getActivity()).thenReturn(activity);
+    }
+
+    @After
+    public void tearDown() {
+        Leash.removeIndex(INDEX);
+    }
+
+    @Test
+    public void testRetainAllBindsNestedFragments() {
+        Leash.retainAll(activity);
+
+        assertEquals(Arrays.asList("retain activity", "retain parent", "retain child"), CALLS);
+    }
+
+    @Test
+    public void testRestoreAllBindsNestedFragments() {
+        Leash.restoreAll(activity);
+
+        assertEquals(Arrays.asList("restore activity", "restore parent", "restore child"), CALLS);
+    }
+
+    @Test
+    public void testFragmentsWithoutBindingsAreSkipped() {
+        AllActivity emptyActivity = mock(AllActivity.class);
+        FragmentManager emptyFragmentManager = mock(FragmentManager.class);
+        when(emptyFragmentManager.beginTransaction()).thenReturn(transaction);
+        when(emptyActivity.getSupportFragmentManager()).thenReturn(emptyFragmentManager);
+        PlainFragment plain = mockFragment(PlainFragment.class, true, null);
+        when(emptyFragmentManager.getFragments()).thenReturn(Collections.<Fragment>singletonList(plain));
+
+        Leash.retainAll(emptyActivity);
+
+        assertEquals(Collections.singletonList("retain activity"), CALLS);
+    }
+
+    @Test
+    public void testSharedHolderIsAddedInOneTransaction() {
+        Leash.restoreAll(activity);
+        Leash.retainAll(activity);
+
+        verify(fragmentManager, times(1)).beginTransaction();
+        verify(childFragmentManager, never()).beginTransaction();
+    }
+
+    @Test
+    public void testPerClassHoldersAreAddedInOneTransaction() {
+        perClassHolders = true;
+        Leash.restoreAll(activity);
+        Leash.retainAll(activity);
+
+        verify(fragmentManager, times(1)).beginTransaction();
+        verify(transaction, times(3)).add(any(Fragment.class), anyString());
+        verify(transaction, times(1)).commit();
+        verify(childFragmentManager, never()).beginTransaction();
+    }
+
+    @Test
+    public void testPerClassHolderIsCommittedOutsideOfRetainAll() {
+        perClassHolders = true;
+        Leash.retain(activity);
+
+        verify(fragmentManager, times(1)).beginTransaction();
+        verify(transaction, times(1)).commit();
+    }
+
+    private static <T extends Fragment> T mockFragment(Class<T> fragmentClass, boolean added, FragmentManager childFragmentManager) {
+        T fragment = mock(fragmentClass);
+        when(fragment.isAdded()).thenReturn(added);
+        when(fragment.getChildFragmentManager()).thenReturn(childFragmentManager);
+        return fragment;
+    }
+
+    public static class AllActivity extends FragmentActivity {
+    }
+
+    public static class ParentFragment extends Fragment {
+    }
+
+    public static class ChildFragment extends Fragment {
+    }
+
+    public static class PlainFragment extends Fragment {
+    }
+
+    /**
+     * Records the CALLS and gets the holder of the Activity like the code generated with
+     * {@code leash.holder=shared} or a holder Fragment per class like the default code.
+     */
+    private static final class HolderBinder implements LeashBinder<Object> {
+
+        private static final HolderCache<Fragment> HOLDER_CACHE = new HolderCache<>();
+
+        private final String name;
+
+        HolderBinder(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void restore(Object source) {
+            CALLS.add("restore " + name);
+            getHolder(source);
+        }
+
+        @Override
+        public void retain(Object source) {
+            CALLS.add("retain " + name);
+            getHolder(source);
+        }
+
+        @Override
+        public void clear(Object source) {
+            CALLS.add("clear " + name);
+        }
+
+        private void getHolder(Object source) {
+            FragmentActivity activity = source instanceof Fragment ? ((Fragment) source).getActivity() : (FragmentActivity) source;
+            if (!perClassHolders) {
+                RetainedHolders.FRAGMENT.get(activity, source.getClass());
+                return;
+            }
+
+            FragmentManager fm = activity.getSupportFragmentManager();
+            if (HOLDER_CACHE.get(fm, name) == null) {
+                Fragment holder = new PlainFragment();
+                HolderFragments.add(fm, holder, name);
+                HOLDER_CACHE.put(fm, name, holder);
+            }
+        }
+    }
+}
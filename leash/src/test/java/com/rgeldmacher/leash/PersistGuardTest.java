@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author rgeldmacher
+ */
+public class PersistGuardTest {
+
+    private int measured;
+
+    @Before
+    public void setup() {
+        PersistGuard.setLimit(1000);
+        // every element of a collection and every other object is 100 bytes
+        PersistGuard.setParceledSizer(new Sizer() {
+            @Override
+            public long sizeOf(Object object) {
+                measured++;
+                if (object instanceof Collection) {
+                    return 100 * ((Collection) object).size();
+                }
+
+                return 100;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        PersistGuard.setLimit(64 * 1024);
+        PersistGuard.setParceledSizer(null);
+    }
+
+    @Test
+    public void testGrownListIsRejected() {
+        ArrayList<String> list = new ArrayList<>();
+        list.add("a");
+        assertTrue(PersistGuard.start().fits(list));
+
+        for (int i = 0; i < 10; i++) {
+            list.add("a");
+        }
+
+        assertFalse(PersistGuard.start().fits(list));
+    }
+
+    @Test
+    public void testObjectsAreMeasuredOnEverySave() {
+        ArrayList<String> list = new ArrayList<>();
+        assertTrue(PersistGuard.start().fits(list));
+        assertTrue(PersistGuard.start().fits(list));
+        assertEquals(2, measured);
+    }
+
+    @Test
+    public void testFixedSizesAreMeasuredOnce() {
+        assertTrue(PersistGuard.start().fits(42L));
+        assertTrue(PersistGuard.start().fits(43L));
+        assertTrue(PersistGuard.start().fits(Thread.State.NEW));
+        assertTrue(PersistGuard.start().fits(Thread.State.NEW));
+        assertEquals(2, measured);
+    }
+
+    @Test
+    public void testLimitIsSharedWithinOneSave() {
+        PersistGuard guard = PersistGuard.start();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(guard.fits(new Object()));
+        }
+
+        assertFalse(guard.fits(new Object()));
+    }
+}
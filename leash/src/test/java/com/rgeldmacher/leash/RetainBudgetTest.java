@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.ref.Reference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author rgeldmacher
+ */
+public class RetainBudgetTest {
+
+    @Before
+    public void setup() {
+        // every object is 10 bytes
+        Leash.setRetainBudget(30, new Sizer() {
+            @Override
+            public long sizeOf(Object object) {
+                return 10;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        Leash.setRetainBudget(0, null);
+    }
+
+    @Test
+    public void testLeastRecentlyRestoredIsEvicted() {
+        Reference<Object> first = RetainedReferences.strong(null, new Object(), 0);
+        Reference<Object> second = RetainedReferences.strong(null, new Object(), 0);
+        Reference<Object> third = RetainedReferences.strong(null, new Object(), 0);
+        assertNotNull(RetainedReferences.get(first));
+
+        Reference<Object> fourth = RetainedReferences.strong(null, new Object(), 0);
+        assertNotNull(RetainedReferences.get(first));
+        assertNull(RetainedReferences.get(second));
+        assertNotNull(RetainedReferences.get(third));
+        assertNotNull(RetainedReferences.get(fourth));
+        assertEquals(30, RetainBudget.getTotalBytes());
+    }
+
+    @Test
+    public void testLowerPriorityIsEvictedFirst() {
+        Reference<Object> important = RetainedReferences.strong(null, new Object(), 1);
+        Reference<Object> first = RetainedReferences.strong(null, new Object(), 0);
+        Reference<Object> second = RetainedReferences.strong(null, new Object(), 0);
+        Reference<Object> third = RetainedReferences.strong(null, new Object(), 0);
+
+        assertNotNull(RetainedReferences.get(important));
+        assertNull(RetainedReferences.get(first));
+        assertNotNull(RetainedReferences.get(second));
+        assertNotNull(RetainedReferences.get(third));
+    }
+
+    @Test
+    public void testReplacedReferenceIsReleased() {
+        Reference<Object> reference = RetainedReferences.strong(null, new Object(), 0);
+        reference = RetainedReferences.strong(reference, new Object(), 0);
+        assertEquals(10, RetainBudget.getTotalBytes());
+
+        RetainedReferences.release(reference);
+        assertEquals(0, RetainBudget.getTotalBytes());
+    }
+
+    @Test
+    public void testDiscardedHolderIsReleased() throws InterruptedException {
+        Reference<Object> kept = RetainedReferences.strong(null, new Object(), 0);
+        // the reference of a holder that is discarded without a call to clear
+        RetainedReferences.strong(null, new Object(), 0);
+        assertEquals(20, RetainBudget.getTotalBytes());
+
+        for (int i = 0; i < 100 && RetainBudget.getTotalBytes() > 10; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertEquals(10, RetainBudget.getTotalBytes());
+        assertNotNull(RetainedReferences.get(kept));
+    }
+
+    @Test
+    public void testEstimateSize() {
+        assertEquals(16 + 8 * 4, RetainBudget.estimateSize(new long[4]));
+        assertEquals(32 + 2 * 3, RetainBudget.estimateSize("abc"));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rgeldmacher.leash;
+
+import android.app.Activity;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentActivity;
+import android.support.v4.app.FragmentManager;
+import android.support.v4.app.FragmentTransaction;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author rgeldmacher
+ */
+public class RetainedHoldersTest {
+
+    private FragmentActivity activity;
+    private FragmentManager fragmentManager;
+
+    @Before
+    public void setup() {
+        // commits are never executed, like transactions that are still pending in the current frame
+        FragmentTransaction transaction = mock(FragmentTransaction.class);
+        when(transaction.add(any(Fragment.class), anyString())).thenReturn(transaction);
+
+        fragmentManager = mock(FragmentManager.class);
+        when(fragmentManager.beginTransaction()).thenReturn(transaction);
+
+        activity = mock(FragmentActivity.class);
+        when(activity.getSupportFragmentManager()).thenReturn(fragmentManager);
+    }
+
+    @Test
+    public void testPendingHolderIsNotAddedTwice() {
+        RetainedHolder holder = RetainedHolders.get(activity, FragmentActivity.class);
+        assertNotNull(holder);
+
+        for (int i = 0; i < 10000; i++) {
+            assertSame(holder, RetainedHolders.get(activity, FragmentActivity.class));
+        }
+
+        verify(fragmentManager, times(1)).beginTransaction();
+    }
+
+    @Test
+    public void testNonConfigurationInstanceIsPassedOn() {
+        RetainedHolder holder = RetainedHolders.NON_CONFIGURATION_INSTANCE.get(activity, FragmentActivity.class);
+        assertNotNull(holder);
+
+        FragmentActivity recreatedActivity = mock(FragmentActivity.class);
+        when(recreatedActivity.getLastCustomNonConfigurationInstance())
+                .thenReturn(Leash.onRetainCustomNonConfigurationInstance(activity));
+
+        assertSame(holder, RetainedHolders.NON_CONFIGURATION_INSTANCE.get(recreatedActivity, FragmentActivity.class));
+        verify(fragmentManager, never()).beginTransaction();
+    }
+
+    @Test
+    public void testFrameworkFragmentOfFragmentActivityFindsHolder() {
+        RetainedHolder holder = RetainedHolders.NON_CONFIGURATION_INSTANCE.get(activity, FragmentActivity.class);
+
+        FragmentActivity recreatedActivity = mock(FragmentActivity.class);
+        when(recreatedActivity.getLastCustomNonConfigurationInstance())
+                .thenReturn(Leash.onRetainCustomNonConfigurationInstance(activity));
+
+        // the FragmentActivity keeps its own state in getLastNonConfigurationInstance()
+        assertSame(holder, RetainedHolders.NON_CONFIGURATION_INSTANCE.get((Activity) recreatedActivity, android.app.Fragment.class));
+        assertSame(holder, RetainedHolders.NON_CONFIGURATION_INSTANCE.get(recreatedActivity, FragmentActivity.class));
+        verify(recreatedActivity, never()).getLastNonConfigurationInstance();
+    }
+}
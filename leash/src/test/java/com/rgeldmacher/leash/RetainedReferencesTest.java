@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author rgeldmacher
+ */
+public class RetainedReferencesTest {
+
+    private final Object softObject = new Object();
+    private final Object weakObject = new Object();
+
+    @Test
+    public void testTrimMemory() {
+        Reference<Object> soft = RetainedReferences.soft(null, softObject);
+        Reference<Object> weak = RetainedReferences.weak(null, weakObject);
+
+        RetainedReferences.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertSame(softObject, RetainedReferences.get(soft));
+        assertSame(weakObject, RetainedReferences.get(weak));
+
+        RetainedReferences.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertSame(softObject, RetainedReferences.get(soft));
+        assertNull(RetainedReferences.get(weak));
+
+        RetainedReferences.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        assertNull(RetainedReferences.get(soft));
+    }
+
+    @Test
+    public void testTrimMemoryInBackground() {
+        Reference<Object> soft = RetainedReferences.soft(null, softObject);
+        Reference<Object> weak = RetainedReferences.weak(null, weakObject);
+
+        // sending the app to the background is no memory pressure
+        RetainedReferences.trim(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        RetainedReferences.trim(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertSame(softObject, RetainedReferences.get(soft));
+        assertSame(weakObject, RetainedReferences.get(weak));
+
+        RetainedReferences.trim(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+        assertSame(softObject, RetainedReferences.get(soft));
+        assertNull(RetainedReferences.get(weak));
+
+        RetainedReferences.trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertNull(RetainedReferences.get(soft));
+    }
+
+    @Test
+    public void testSpill() {
+        RetainedReferences.setSpillExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        Context context = mock(Context.class);
+        when(context.getCacheDir()).thenReturn(new File(System.getProperty("java.io.tmpdir")));
+        int[] data = {1, 2, 3};
+        Reference<int[]> spilled = RetainedReferences.spill(context, data, SpillCodecs.INT_ARRAY);
+
+        RetainedReferences.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertSame(data, RetainedReferences.get(spilled));
+
+        RetainedReferences.trim(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        int[] restored = RetainedReferences.get(spilled);
+        assertNotSame(data, restored);
+        assertArrayEquals(data, restored);
+        RetainedReferences.setSpillExecutor(null);
+    }
+
+    @Test
+    public void testSpillInBackground() throws InterruptedException {
+        final CountDownLatch spilling = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        RetainedReferences.setSpillExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                Thread thread = new Thread(command);
+                threads.add(thread);
+                thread.start();
+                spilling.countDown();
+            }
+        });
+        Context context = mock(Context.class);
+        when(context.getCacheDir()).thenReturn(new File(System.getProperty("java.io.tmpdir")));
+        long[] data = {1, 2, 3};
+        Reference<long[]> spilled = RetainedReferences.spill(context, data, SpillCodecs.LONG_ARRAY);
+
+        // backgrounding the app is no memory pressure
+        RetainedReferences.trim(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertTrue(threads.isEmpty());
+
+        RetainedReferences.trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertTrue(spilling.await(5, TimeUnit.SECONDS));
+        threads.get(0).join();
+        assertArrayEquals(data, RetainedReferences.get(spilled));
+        assertNotSame(data, RetainedReferences.get(spilled));
+        RetainedReferences.setSpillExecutor(null);
+    }
+
+    @Test
+    public void testReferentReadWhileSpillingStaysOnHeap() {
+        final List<SpillReference<int[]>> references = new ArrayList<>();
+        SpillCodec<int[]> codec = new SpillCodec<int[]>() {
+            @Override
+            public int sizeOf(int[] value) {
+                return SpillCodecs.INT_ARRAY.sizeOf(value);
+            }
+
+            @Override
+            public void encode(int[] value, ByteBuffer buffer) {
+                // the main thread reads the referent while the file is written
+                references.get(0).get()[0] = 42;
+                SpillCodecs.INT_ARRAY.encode(value, buffer);
+            }
+
+            @Override
+            public int[] decode(ByteBuffer buffer) {
+                return SpillCodecs.INT_ARRAY.decode(buffer);
+            }
+        };
+        int[] data = {1, 2, 3};
+        SpillReference<int[]> reference = new SpillReference<>(data, codec, new File(System.getProperty("java.io.tmpdir")));
+        references.add(reference);
+
+        assertFalse(reference.spill());
+        assertSame(data, reference.peek());
+        assertSame(data, reference.get());
+        assertArrayEquals(new int[]{42, 2, 3}, reference.get());
+    }
+
+    @Test
+    public void testNullIsNotReferenced() {
+        assertNull(RetainedReferences.soft(null, null));
+        assertNull(RetainedReferences.get(null));
+    }
+}
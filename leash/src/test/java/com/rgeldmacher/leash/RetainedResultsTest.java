@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 Robert Geldmacher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package com.rgeldmacher.leash;
+
+import android.app.Activity;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentActivity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author rgeldmacher
+ */
+public class RetainedResultsTest {
+
+    private final List<Object> hosts = new ArrayList<>();
+    private final RetainedResultReceiver<Object> receiver = new RetainedResultReceiver<Object>() {
+        @Override
+        public void onResult(Object host, Future<?> result) {
+            assertTrue(result.isDone());
+            hosts.add(host);
+        }
+    };
+
+    @Before
+    public void setup() {
+        RetainedResults.setMainThread(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        RetainedResults.setMainThread(null);
+    }
+
+    @Test
+    public void testCompletedResultIsDeliveredOnce() {
+        FutureTask<String> future = new FutureTask<>(new Result("done"));
+        future.run();
+
+        Activity activity = mock(Activity.class);
+        RetainedResults.attach(activity, future, receiver);
+        RetainedResults.attach(activity, future, receiver);
+        RetainedResults.attach(mock(Activity.class), future, receiver);
+
+        assertEquals(1, hosts.size());
+        assertSame(activity, hosts.get(0));
+    }
+
+    @Test
+    public void testPendingResultIsNotDelivered() {
+        RetainedResults.attach(mock(Activity.class), new FutureTask<>(new Result("pending")), receiver);
+
+        assertTrue(hosts.isEmpty());
+    }
+
+    @Test
+    public void testTaskIsDeliveredOnCompletion() {
+        RetainedTask<String> task = new RetainedTask<>(new Result("done"));
+        Activity activity = mock(Activity.class);
+        RetainedResults.attach(activity, task, receiver);
+        assertTrue(hosts.isEmpty());
+
+        task.run();
+
+        assertEquals(1, hosts.size());
+        assertSame(activity, hosts.get(0));
+    }
+
+    @Test
+    public void testResultIsQueuedDuringConfigurationChange() {
+        RetainedTask<String> task = new RetainedTask<>(new Result("done"));
+        Activity activity = mock(Activity.class);
+        RetainedResults.attach(activity, task, receiver);
+
+        when(activity.isChangingConfigurations()).thenReturn(true);
+        task.run();
+        assertTrue(hosts.isEmpty());
+
+        Activity recreatedActivity = mock(Activity.class);
+        RetainedResults.attach(recreatedActivity, task, receiver);
+
+        assertEquals(1, hosts.size());
+        assertSame(recreatedActivity, hosts.get(0));
+    }
+
+    @Test
+    public void testResultIsNotDeliveredToRemovingFragment() {
+        RetainedTask<String> task = new RetainedTask<>(new Result("done"));
+        Fragment fragment = mock(Fragment.class);
+        when(fragment.isAdded()).thenReturn(true);
+        when(fragment.isRemoving()).thenReturn(true);
+        when(fragment.getActivity()).thenReturn(mock(FragmentActivity.class));
+        RetainedResults.attach(fragment, task, receiver);
+
+        task.run();
+        assertTrue(hosts.isEmpty());
+
+        Fragment recreatedFragment = mock(Fragment.class);
+        when(recreatedFragment.isAdded()).thenReturn(true);
+        when(recreatedFragment.getActivity()).thenReturn(mock(FragmentActivity.class));
+        RetainedResults.attach(recreatedFragment, task, receiver);
+
+        assertEquals(1, hosts.size());
+        assertSame(recreatedFragment, hosts.get(0));
+    }
+
+    private static final class Result implements Callable<String> {
+
+        private final String value;
+
+        Result(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String call() {
+            return value;
+        }
+    }
+}